@@ -0,0 +1,35 @@
+package io.github.learnapachepoixssf.benchmark;
+
+import org.springframework.boot.WebApplicationType;
+import org.springframework.boot.autoconfigure.EnableAutoConfiguration;
+import org.springframework.boot.autoconfigure.domain.EntityScan;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.context.annotation.ComponentScan;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.data.jpa.repository.config.EnableJpaRepositories;
+
+import io.github.learnapachepoixssf.config.WidgetProperties;
+import io.github.learnapachepoixssf.model.Widget;
+import io.github.learnapachepoixssf.repository.WidgetRepository;
+import io.github.learnapachepoixssf.service.XlsxService;
+
+/**
+ * The application without its web layer. The benchmarks share the test class
+ * path, so scanning from the root package would also pick up the query logging
+ * DatasourceProxyBeanPostProcessor.
+ */
+@Configuration
+@EnableAutoConfiguration
+@EntityScan(basePackageClasses = Widget.class)
+@EnableJpaRepositories(basePackageClasses = WidgetRepository.class)
+@ComponentScan(basePackageClasses = XlsxService.class)
+@EnableConfigurationProperties(WidgetProperties.class)
+public class BenchmarkApplication {
+
+	public static ConfigurableApplicationContext start() {
+		return new SpringApplicationBuilder(BenchmarkApplication.class).web(WebApplicationType.NONE)
+				.logStartupInfo(false).run("--spring.main.banner-mode=off", "--logging.level.root=WARN");
+	}
+}
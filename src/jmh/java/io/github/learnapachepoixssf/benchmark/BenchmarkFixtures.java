@@ -0,0 +1,66 @@
+package io.github.learnapachepoixssf.benchmark;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.xssf.streaming.SXSSFWorkbook;
+
+import io.github.learnapachepoixssf.service.XlsxService;
+
+/**
+ * Workbooks used by the benchmarks. They are generated once into
+ * target/jmh-fixtures and reused by later runs.
+ */
+public class BenchmarkFixtures {
+
+	static final File FIXTURE_DIRECTORY = new File("target/jmh-fixtures");
+
+	/**
+	 * The same layout as the test widgets download, so it can be uploaded.
+	 */
+	public static File widgets(int rows) throws IOException {
+		File file = fixture("widgets-" + rows + ".xlsx");
+		if (!file.exists()) {
+			try (OutputStream out = new FileOutputStream(file)) {
+				new XlsxService().writeOutTestWidgets(out, rows);
+			}
+		}
+		return file;
+	}
+
+	/**
+	 * Numbers, shared strings, booleans and a gap column, like workbooks saved by
+	 * Excel.
+	 */
+	public static File mixedCells(int rows) throws IOException {
+		File file = fixture("mixed-cells-" + rows + ".xlsx");
+		if (!file.exists()) {
+			SXSSFWorkbook workbook = new SXSSFWorkbook(null, 100, false, true);
+			try (OutputStream out = new FileOutputStream(file)) {
+				Sheet sheet = workbook.createSheet();
+				for (int i = 0; i < rows; i++) {
+					Row row = sheet.createRow(i);
+					row.createCell(0).setCellValue(i);
+					row.createCell(1).setCellValue("Widget " + (i % 100));
+					// Column 2 is left empty
+					row.createCell(3).setCellValue(i * 0.5);
+					row.createCell(4).setCellValue(i % 2 == 0);
+				}
+				workbook.write(out);
+			} finally {
+				workbook.dispose();
+				workbook.close();
+			}
+		}
+		return file;
+	}
+
+	protected static File fixture(String name) {
+		FIXTURE_DIRECTORY.mkdirs();
+		return new File(FIXTURE_DIRECTORY, name);
+	}
+}
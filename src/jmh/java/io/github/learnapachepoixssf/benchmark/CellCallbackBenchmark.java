@@ -0,0 +1,106 @@
+package io.github.learnapachepoixssf.benchmark;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.poi.openxml4j.opc.OPCPackage;
+import org.apache.poi.openxml4j.opc.PackageAccess;
+import org.apache.poi.xssf.usermodel.XSSFComment;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import io.github.learnapachepoixssf.service.XlsxStreamParser;
+
+/**
+ * Compares the formatted Callback with the RawCallback on the same workbook,
+ * and the Callback when only some columns are wanted. Run with -prof gc to
+ * compare allocation rates.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class CellCallbackBenchmark {
+
+	static final int NUMBER_OF_COLUMNS = 5;
+
+	@Param({ "100000" })
+	public int rows;
+
+	File file;
+	OPCPackage xlsxPackage;
+
+	@Setup
+	public void setUp() throws Exception {
+		file = BenchmarkFixtures.mixedCells(rows);
+		xlsxPackage = OPCPackage.open(file, PackageAccess.READ);
+	}
+
+	@TearDown
+	public void tearDown() {
+		xlsxPackage.revert();
+	}
+
+	@Benchmark
+	public void callback(Blackhole blackhole) throws Exception {
+		new XlsxStreamParser(xlsxPackage, NUMBER_OF_COLUMNS, new XlsxStreamParser.Callback() {
+			@Override
+			public void cellValue(int rowNumber, int columnNumber, String formattedValue, String cellReference,
+					XSSFComment comment) {
+				blackhole.consume(formattedValue);
+			}
+		}).parseFirstSheetOnly();
+	}
+
+	@Benchmark
+	public void projectedCallback(Blackhole blackhole) throws Exception {
+		XlsxStreamParser parser = new XlsxStreamParser(xlsxPackage, NUMBER_OF_COLUMNS, new XlsxStreamParser.Callback() {
+			@Override
+			public void cellValue(int rowNumber, int columnNumber, String formattedValue, String cellReference,
+					XSSFComment comment) {
+				blackhole.consume(formattedValue);
+			}
+		});
+		parser.setColumns(0, 3);
+		parser.parseFirstSheetOnly();
+	}
+
+	@Benchmark
+	public void rawCallback(Blackhole blackhole) throws Exception {
+		new XlsxStreamParser(xlsxPackage, NUMBER_OF_COLUMNS).parseFirstSheetOnly(new XlsxStreamParser.RawCallback() {
+			@Override
+			public void cellValue(int rowNumber, int columnNumber, XlsxStreamParser.RawValue value) {
+				switch (columnNumber) {
+				case 0:
+					blackhole.consume(value.asLong());
+					break;
+				case 1:
+					blackhole.consume(value.getSharedStringIndex());
+					break;
+				case 3:
+					blackhole.consume(value.asDouble());
+					break;
+				case 4:
+					blackhole.consume(value.asBoolean());
+					break;
+				default:
+					blackhole.consume(value.isBlank());
+					break;
+				}
+			}
+		});
+	}
+}
@@ -0,0 +1,90 @@
+package io.github.learnapachepoixssf.benchmark;
+
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import io.github.learnapachepoixssf.service.FileFormat;
+import io.github.learnapachepoixssf.service.XlsxService;
+
+/**
+ * writeOutSavedWidgets at different SXSSF row access window sizes, reading
+ * with keyset pagination or through a JPA stream of entities, and the direct
+ * and parallel exports and the CSV and columnar formats, which do not use a
+ * window size and so are measured once each.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ExportBenchmark {
+
+	@Param({ "100000" })
+	public int rows;
+
+	ConfigurableApplicationContext context;
+	XlsxService xlsxService;
+
+	@State(Scope.Benchmark)
+	public static class Windowed {
+
+		@Param({ "10", "100", "1000", "10000" })
+		public int rowAccessWindowSize;
+
+		@Param({ "keyset", "jpa" })
+		public String reader;
+	}
+
+	@State(Scope.Benchmark)
+	public static class Unwindowed {
+
+		@Param({ "direct", "parallel", "csv", "columnar" })
+		public String export;
+	}
+
+	@Setup
+	public void setUp() throws Exception {
+		context = BenchmarkApplication.start();
+		xlsxService = context.getBean(XlsxService.class);
+		xlsxService.truncateWidgets();
+		xlsxService.saveWidgets(BenchmarkFixtures.widgets(rows).toPath(), 1000, "sax", "jdbc");
+	}
+
+	@TearDown
+	public void tearDown() {
+		context.close();
+	}
+
+	@Benchmark
+	public int writeOutSavedWidgetsInWindows(Windowed windowed) throws Exception {
+		if ("jpa".equals(windowed.reader)) {
+			return xlsxService.writeOutSavedWidgetsUsingJpa(OutputStream.nullOutputStream(),
+					windowed.rowAccessWindowSize);
+		}
+		return xlsxService.writeOutSavedWidgets(OutputStream.nullOutputStream(), windowed.rowAccessWindowSize);
+	}
+
+	@Benchmark
+	public int writeOutSavedWidgets(Unwindowed unwindowed) throws Exception {
+		if ("csv".equals(unwindowed.export) || "columnar".equals(unwindowed.export)) {
+			return xlsxService.writeOutSavedWidgets(OutputStream.nullOutputStream(), "direct",
+					FileFormat.forName(unwindowed.export), false);
+		}
+		return xlsxService.writeOutSavedWidgets(OutputStream.nullOutputStream(), unwindowed.export);
+	}
+}
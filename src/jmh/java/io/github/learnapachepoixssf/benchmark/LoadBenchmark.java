@@ -0,0 +1,124 @@
+package io.github.learnapachepoixssf.benchmark;
+
+import java.io.ByteArrayOutputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.boot.web.context.WebServerApplicationContext;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import io.github.learnapachepoixssf.service.WorkerThreads;
+import io.github.learnapachepoixssf.service.XlsxService;
+
+/**
+ * Hundreds of clients downloading or uploading widgets over HTTP at once, with
+ * requests handled on Tomcat's pool of platform threads or on virtual threads.
+ * Throughput is reported in operations per millisecond and the sample time
+ * mode gives the p99 latency. Downloads are rendered every time rather than
+ * sent from the snapshot cache. Virtual threads need the java21 build:
+ * <p>
+ * ./mvnw -Pjmh,java21 test-compile exec:exec -Djmh.includes=LoadBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 10)
+@Measurement(iterations = 5, time = 10)
+@Threads(400)
+@Fork(1)
+public class LoadBenchmark {
+
+	@Param({ "false", "true" })
+	public boolean virtualThreads;
+
+	@Param({ "download", "upload" })
+	public String operation;
+
+	@Param({ "10000" })
+	public int rows;
+
+	@Param({ "100" })
+	public int uploadRows;
+
+	ConfigurableApplicationContext context;
+	XlsxService xlsxService;
+	HttpClient client;
+	HttpRequest request;
+
+	@Setup
+	public void setUp() throws Exception {
+		context = WebBenchmarkApplication.start("--widgets.concurrency.virtual-threads=" + virtualThreads,
+				"--widgets.export.cached=false", "--widgets.ingest.enabled=false");
+		WorkerThreads workerThreads = context.getBeanProvider(WorkerThreads.class).getIfAvailable();
+		if (virtualThreads && (workerThreads == null || !workerThreads.isVirtual())) {
+			context.close();
+			throw new IllegalStateException("Virtual threads need the java21 build, run with -Pjmh,java21");
+		}
+		xlsxService = context.getBean(XlsxService.class);
+		URI base = URI.create("http://localhost:" + ((WebServerApplicationContext) context).getWebServer().getPort());
+		client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+		if ("upload".equals(operation)) {
+			String boundary = UUID.randomUUID().toString();
+			request = HttpRequest.newBuilder(base.resolve("/upload-widgets?batchSize=100"))
+					.header("Content-Type", "multipart/form-data; boundary=" + boundary)
+					.POST(HttpRequest.BodyPublishers.ofByteArray(multipart(boundary))).build();
+		} else {
+			request = HttpRequest.newBuilder(base.resolve("/download-widgets?exportType=direct")).GET().build();
+		}
+	}
+
+	/**
+	 * Uploads keep adding widgets, so start each iteration from the same table.
+	 */
+	@Setup(Level.Iteration)
+	public void saveWidgets() throws Exception {
+		xlsxService.truncateWidgets();
+		xlsxService.saveWidgets(BenchmarkFixtures.widgets(rows).toPath(), 1000, "sax", "jdbc");
+	}
+
+	@TearDown
+	public void tearDown() {
+		context.close();
+	}
+
+	@Benchmark
+	public int request() throws Exception {
+		HttpResponse<Void> response = client.send(request, HttpResponse.BodyHandlers.discarding());
+		// Uploads redirect back to the form
+		if (response.statusCode() >= 400) {
+			throw new IllegalStateException(request.uri() + " returned " + response.statusCode());
+		}
+		return response.statusCode();
+	}
+
+	protected byte[] multipart(String boundary) throws Exception {
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		body.write(("--" + boundary + "\r\n"
+				+ "Content-Disposition: form-data; name=\"file\"; filename=\"widgets.xlsx\"\r\n"
+				+ "Content-Type: application/vnd.openxmlformats-officedocument.spreadsheetml.sheet\r\n\r\n")
+				.getBytes(StandardCharsets.UTF_8));
+		body.write(Files.readAllBytes(BenchmarkFixtures.widgets(uploadRows).toPath()));
+		body.write(("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.UTF_8));
+		return body.toByteArray();
+	}
+}
@@ -0,0 +1,69 @@
+package io.github.learnapachepoixssf.benchmark;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.poi.openxml4j.opc.OPCPackage;
+import org.apache.poi.openxml4j.opc.PackageAccess;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import io.github.learnapachepoixssf.service.MappedZipEntrySource;
+import io.github.learnapachepoixssf.service.XlsxStreamParser;
+
+/**
+ * Time to open a saved workbook and parse it with the raw callback, either
+ * through ZipFile or a memory mapping, and with each shared strings store.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class PackageAccessBenchmark {
+
+	@Param({ "100000", "1000000" })
+	public int rows;
+
+	@Param({ "false", "true" })
+	public boolean memoryMapped;
+
+	@Param({ "TEMP_FILE", "MAPPED", "OFF_HEAP" })
+	public XlsxStreamParser.SharedStringsType sharedStrings;
+
+	File file;
+
+	@Setup
+	public void setUp() throws Exception {
+		file = BenchmarkFixtures.mixedCells(rows);
+	}
+
+	@Benchmark
+	public void openAndParse(Blackhole blackhole) throws Exception {
+		OPCPackage xlsxPackage = memoryMapped ? OPCPackage.open(MappedZipEntrySource.open(file.toPath()))
+				: OPCPackage.open(file, PackageAccess.READ);
+		try {
+			XlsxStreamParser parser = new XlsxStreamParser(xlsxPackage, 5);
+			parser.setSharedStringsType(sharedStrings);
+			parser.parseFirstSheetOnly(new XlsxStreamParser.RawCallback() {
+				@Override
+				public void cellValue(int rowNumber, int columnNumber, XlsxStreamParser.RawValue value) {
+					blackhole.consume(value.asString());
+				}
+			});
+		} finally {
+			xlsxPackage.revert();
+		}
+	}
+}
@@ -0,0 +1,65 @@
+package io.github.learnapachepoixssf.benchmark;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import io.github.learnapachepoixssf.service.XlsxService;
+
+/**
+ * saveWidgetsUsingDom against saveWidgetsUsingSax, both writing with JDBC.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class ParseTypeBenchmark {
+
+	@Param({ "10000", "100000" })
+	public int rows;
+
+	@Param({ "sax", "dom" })
+	public String parseType;
+
+	ConfigurableApplicationContext context;
+	XlsxService xlsxService;
+	File file;
+
+	@Setup
+	public void setUp() throws Exception {
+		context = BenchmarkApplication.start();
+		xlsxService = context.getBean(XlsxService.class);
+		file = BenchmarkFixtures.widgets(rows);
+	}
+
+	@Setup(Level.Invocation)
+	public void truncate() {
+		xlsxService.truncateWidgets();
+	}
+
+	@TearDown
+	public void tearDown() {
+		context.close();
+	}
+
+	@Benchmark
+	public int saveWidgets() throws Exception {
+		return xlsxService.saveWidgets(file.toPath(), 1000, parseType, "jdbc");
+	}
+}
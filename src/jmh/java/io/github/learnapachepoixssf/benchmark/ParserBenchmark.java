@@ -0,0 +1,85 @@
+package io.github.learnapachepoixssf.benchmark;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.poi.openxml4j.opc.OPCPackage;
+import org.apache.poi.openxml4j.opc.PackageAccess;
+import org.apache.poi.xssf.usermodel.XSSFComment;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import io.github.learnapachepoixssf.service.XlsxStreamParser;
+
+/**
+ * XlsxStreamParser throughput. Besides the parses per second, the rows and
+ * cells counters report rows and cells per second.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ParserBenchmark {
+
+	@Param({ "10000", "100000", "1000000" })
+	public int rows;
+
+	File file;
+	OPCPackage xlsxPackage;
+
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.OPERATIONS)
+	public static class Counters {
+		public long rows;
+		public long cells;
+
+		@Setup(Level.Iteration)
+		public void reset() {
+			rows = 0;
+			cells = 0;
+		}
+	}
+
+	@Setup
+	public void setUp() throws Exception {
+		file = BenchmarkFixtures.widgets(rows);
+		xlsxPackage = OPCPackage.open(file, PackageAccess.READ);
+	}
+
+	@TearDown
+	public void tearDown() {
+		xlsxPackage.revert();
+	}
+
+	@Benchmark
+	public void parse(Counters counters, Blackhole blackhole) throws Exception {
+		new XlsxStreamParser(xlsxPackage, 2, new XlsxStreamParser.Callback() {
+			@Override
+			public void cellValue(int rowNumber, int columnNumber, String formattedValue, String cellReference,
+					XSSFComment comment) {
+				counters.cells++;
+				blackhole.consume(formattedValue);
+			}
+
+			@Override
+			public void endRow(int rowNumber) {
+				counters.rows++;
+			}
+		}).parseFirstSheetOnly();
+	}
+}
@@ -0,0 +1,69 @@
+package io.github.learnapachepoixssf.benchmark;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import io.github.learnapachepoixssf.service.XlsxService;
+
+/**
+ * saveWidgetsUsingJpa, saveWidgetsUsingJdbc, saveWidgetsUsingBulk and
+ * saveWidgetsUsingMerge across batch sizes, all parsing with SAX.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class PersistenceBenchmark {
+
+	@Param({ "100000" })
+	public int rows;
+
+	@Param({ "100", "1000", "5000" })
+	public int batchSize;
+
+	@Param({ "jdbc", "jpa", "bulk", "merge" })
+	public String persistenceType;
+
+	ConfigurableApplicationContext context;
+	XlsxService xlsxService;
+	File file;
+
+	@Setup
+	public void setUp() throws Exception {
+		context = BenchmarkApplication.start();
+		xlsxService = context.getBean(XlsxService.class);
+		file = BenchmarkFixtures.widgets(rows);
+	}
+
+	@Setup(Level.Invocation)
+	public void truncate() {
+		xlsxService.truncateWidgets();
+	}
+
+	@TearDown
+	public void tearDown() {
+		context.close();
+	}
+
+	@Benchmark
+	public int saveWidgets() throws Exception {
+		return xlsxService.saveWidgets(file.toPath(), batchSize, "sax", persistenceType);
+	}
+}
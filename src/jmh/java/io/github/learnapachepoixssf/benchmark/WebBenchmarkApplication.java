@@ -0,0 +1,28 @@
+package io.github.learnapachepoixssf.benchmark;
+
+import java.util.stream.Stream;
+
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.context.annotation.ComponentScan;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Import;
+
+import io.github.learnapachepoixssf.config.WidgetProperties;
+import io.github.learnapachepoixssf.controller.XlsxController;
+
+/**
+ * The application with its web layer on a random port, along with the
+ * configuration the java21 build adds when it is there.
+ */
+@Configuration
+@Import(BenchmarkApplication.class)
+@ComponentScan(basePackageClasses = { XlsxController.class, WidgetProperties.class })
+public class WebBenchmarkApplication {
+
+	public static ConfigurableApplicationContext start(String... args) {
+		return new SpringApplicationBuilder(WebBenchmarkApplication.class).logStartupInfo(false)
+				.run(Stream.concat(Stream.of("--spring.main.banner-mode=off", "--logging.level.root=WARN",
+						"--server.port=0"), Stream.of(args)).toArray(String[]::new));
+	}
+}
@@ -0,0 +1,231 @@
+package io.github.learnapachepoixssf.config;
+
+import java.time.Duration;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.util.unit.DataSize;
+
+import io.github.learnapachepoixssf.service.OffHeapSharedStringsTable;
+import io.github.learnapachepoixssf.service.ParallelWidgetExporter;
+import io.github.learnapachepoixssf.service.XlsxStreamParser.SharedStringsType;
+import lombok.Getter;
+import lombok.Setter;
+
+@Getter
+@Setter
+@ConfigurationProperties(prefix = "widgets")
+public class WidgetProperties {
+
+	private final Xlsx xlsx = new Xlsx();
+
+	private final Dom dom = new Dom();
+
+	private final Limits limits = new Limits();
+
+	private final Jobs jobs = new Jobs();
+
+	private final Export export = new Export();
+
+	private final Persistence persistence = new Persistence();
+
+	private final Ingest ingest = new Ingest();
+
+	private final Concurrency concurrency = new Concurrency();
+
+	@Getter
+	@Setter
+	public static class Xlsx {
+
+		/**
+		 * Read saved uploads through a memory mapping of the file.
+		 */
+		private boolean memoryMapped = false;
+
+		/**
+		 * Where the shared strings of a workbook are kept while it is parsed.
+		 */
+		private SharedStringsType sharedStrings = SharedStringsType.TEMP_FILE;
+
+		/**
+		 * How many decoded strings the off heap shared strings table keeps.
+		 */
+		private int sharedStringsCacheSize = OffHeapSharedStringsTable.DEFAULT_CACHE_SIZE;
+	}
+
+	@Getter
+	@Setter
+	public static class Dom {
+
+		/**
+		 * How much heap the uploads parsed with parseType dom may take at once.
+		 * Uploads expected to need more are streamed instead.
+		 */
+		private DataSize memoryBudget = DataSize.ofMegabytes(256);
+
+		/**
+		 * How many uploads are parsed with parseType dom at the same time. The
+		 * rest are streamed.
+		 */
+		private int maxParses = 2;
+
+		/**
+		 * Bytes of heap a workbook is expected to take for each byte of its
+		 * uncompressed sheets and shared strings.
+		 */
+		private int expansionFactor = 16;
+	}
+
+	@Getter
+	@Setter
+	public static class Limits {
+
+		/**
+		 * How large a workbook sent as the request body may be, before it is
+		 * inflated. Multipart uploads are limited by spring.servlet.multipart.
+		 */
+		private DataSize maxUploadSize = DataSize.ofMegabytes(100);
+
+		/**
+		 * How large one part of an upload, such as a sheet, may inflate to.
+		 */
+		private DataSize maxEntrySize = DataSize.ofGigabytes(1);
+
+		/**
+		 * How large all the parts of an upload together may inflate to.
+		 */
+		private DataSize maxTotalSize = DataSize.ofGigabytes(2);
+
+		/**
+		 * How many times its compressed size a part of an upload may inflate to.
+		 */
+		private int maxExpansionRatio = 100;
+
+		/**
+		 * How many rows a sheet, or delimited or columnar upload, may have.
+		 */
+		private long maxRows = 10_000_000;
+
+		/**
+		 * How many cells a sheet, or delimited or columnar upload, may have.
+		 */
+		private long maxCells = 100_000_000;
+	}
+
+	@Getter
+	@Setter
+	public static class Jobs {
+
+		/**
+		 * How many imports run at the same time.
+		 */
+		private int threads = 2;
+
+		/**
+		 * How many imports may wait for a thread before new ones are rejected.
+		 */
+		private int queueCapacity = 10;
+
+		/**
+		 * How long a finished import can still be looked up.
+		 */
+		private Duration retention = Duration.ofHours(1);
+	}
+
+	@Getter
+	@Setter
+	public static class Export {
+
+		/**
+		 * How many widgets each query of a download reads.
+		 */
+		private int pageSize = 10000;
+
+		/**
+		 * How many threads a parallel download uses, 0 for one per processor.
+		 */
+		private int parallelism = 0;
+
+		/**
+		 * How many rows each thread of a parallel download renders at a time.
+		 */
+		private int chunkRows = 65536;
+
+		/**
+		 * How many rows a parallel download puts in a sheet before starting the next.
+		 */
+		private int rowsPerSheet = ParallelWidgetExporter.MAX_ROWS_PER_SHEET;
+
+		/**
+		 * Keep the last download of each export type and send it again until
+		 * widgets change.
+		 */
+		private boolean cached = true;
+	}
+
+	@Getter
+	@Setter
+	public static class Persistence {
+
+		/**
+		 * How many widget IDs JDBC, bulk and merge persistence take from the
+		 * sequence in one round trip, rounded up to whole blocks of what the
+		 * sequence increments by.
+		 */
+		private int idBlockSize = 100000;
+
+		/**
+		 * How many threads save the batches of an upload that does not say, 0 to
+		 * save them on the parsing thread. Each takes a connection from the pool.
+		 */
+		private int writerThreads = 0;
+	}
+
+	@Getter
+	@Setter
+	public static class Ingest {
+
+		/**
+		 * Remember uploads by a hash of their content, so the same upload is not
+		 * saved twice.
+		 */
+		private boolean enabled = true;
+
+		/**
+		 * How many uploads are remembered before the least recently used is
+		 * forgotten.
+		 */
+		private int cacheSize = 1000;
+
+		/**
+		 * How long an upload is remembered.
+		 */
+		private Duration expiry = Duration.ofHours(1);
+	}
+
+	@Getter
+	@Setter
+	public static class Concurrency {
+
+		/**
+		 * Handle requests, and run the threads imports and exports start, on
+		 * virtual threads. Only the java21 build can.
+		 */
+		private boolean virtualThreads = false;
+
+		/**
+		 * How many database connections uploads, downloads and import jobs may
+		 * hold at once. Keep it within the size of the pool.
+		 */
+		private int connections = 10;
+
+		/**
+		 * How much temporary disk the uploads being handled may take at once.
+		 */
+		private DataSize tempDisk = DataSize.ofGigabytes(1);
+
+		/**
+		 * How long work waits for connections or disk before it is turned away.
+		 */
+		private Duration acquireTimeout = Duration.ofSeconds(30);
+	}
+}
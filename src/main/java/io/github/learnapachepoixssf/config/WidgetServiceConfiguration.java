@@ -0,0 +1,74 @@
+package io.github.learnapachepoixssf.config;
+
+import java.sql.DatabaseMetaData;
+
+import javax.sql.DataSource;
+
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.jdbc.support.JdbcUtils;
+import org.springframework.jdbc.support.MetaDataAccessException;
+
+import io.github.learnapachepoixssf.model.Widget;
+import io.github.learnapachepoixssf.service.BulkInsertDialect;
+import io.github.learnapachepoixssf.service.BulkWidgetWriter;
+import io.github.learnapachepoixssf.service.DomAdmission;
+import io.github.learnapachepoixssf.service.MergeWidgetWriter;
+import io.github.learnapachepoixssf.service.ResourceLimiter;
+import io.github.learnapachepoixssf.service.SequenceIdAllocator;
+
+/**
+ * The collaborators of the widget services that are built from the widget
+ * properties, and shared by every request and job that uses them.
+ */
+@Configuration(proxyBeanMethods = false)
+public class WidgetServiceConfiguration {
+
+	@Bean
+	public BulkInsertDialect bulkInsertDialect(DataSource dataSource) {
+		try {
+			return BulkInsertDialect.forDatabase(
+					JdbcUtils.extractDatabaseMetaData(dataSource, DatabaseMetaData::getDatabaseProductName));
+		} catch (MetaDataAccessException e) {
+			throw new IllegalStateException("Cannot find out which database is used", e);
+		}
+	}
+
+	/**
+	 * Shared by JDBC, bulk and merge persistence and all of their threads. JPA
+	 * takes blocks from the same sequence through Hibernate's pooled-lo
+	 * optimizer, one at a time.
+	 */
+	@Bean
+	public SequenceIdAllocator sequenceIdAllocator(DataSource dataSource, BulkInsertDialect dialect,
+			WidgetProperties properties) {
+		int blocksPerFetch = Math.max(1,
+				(properties.getPersistence().getIdBlockSize() + Widget.ID_BLOCK_SIZE - 1) / Widget.ID_BLOCK_SIZE);
+		return new SequenceIdAllocator(dataSource, dialect, Widget.SEQUENCE, Widget.ID_BLOCK_SIZE, blocksPerFetch);
+	}
+
+	@Bean
+	public BulkWidgetWriter bulkWidgetWriter(DataSource dataSource, BulkInsertDialect dialect,
+			SequenceIdAllocator idAllocator) {
+		return new BulkWidgetWriter(dataSource, dialect, idAllocator);
+	}
+
+	@Bean
+	public MergeWidgetWriter mergeWidgetWriter(DataSource dataSource, BulkInsertDialect dialect,
+			SequenceIdAllocator idAllocator) {
+		return new MergeWidgetWriter(dataSource, dialect, idAllocator);
+	}
+
+	@Bean
+	public ResourceLimiter resourceLimiter(WidgetProperties properties) {
+		WidgetProperties.Concurrency concurrency = properties.getConcurrency();
+		return new ResourceLimiter(concurrency.getConnections(), concurrency.getTempDisk().toBytes(),
+				concurrency.getAcquireTimeout());
+	}
+
+	@Bean
+	public DomAdmission domAdmission(WidgetProperties properties) {
+		WidgetProperties.Dom dom = properties.getDom();
+		return new DomAdmission(dom.getMaxParses(), dom.getMemoryBudget().toBytes(), dom.getExpansionFactor());
+	}
+}
@@ -2,24 +2,58 @@ package io.github.learnapachepoixssf.controller;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.net.URI;
+import java.nio.channels.Channels;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
 
+import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 import org.apache.commons.io.FileUtils;
+import org.apache.poi.ss.util.CellRangeAddress;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpRange;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.InvalidMediaTypeException;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Controller;
 import org.springframework.util.StopWatch;
 import org.springframework.util.StringUtils;
+import org.springframework.web.bind.annotation.DeleteMapping;
+import org.springframework.web.bind.annotation.ExceptionHandler;
 import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.ResponseBody;
+import org.springframework.web.context.request.WebRequest;
 import org.springframework.web.multipart.MultipartFile;
+import org.springframework.web.server.ResponseStatusException;
 import org.springframework.web.servlet.mvc.support.RedirectAttributes;
 
+import io.github.learnapachepoixssf.config.WidgetProperties;
+import io.github.learnapachepoixssf.model.Widget;
+import io.github.learnapachepoixssf.service.ExportSnapshotCache;
+import io.github.learnapachepoixssf.service.FileFormat;
+import io.github.learnapachepoixssf.service.ImportCheckpoint;
+import io.github.learnapachepoixssf.service.ImportJob;
+import io.github.learnapachepoixssf.service.ImportJobService;
+import io.github.learnapachepoixssf.service.ImportOptions;
+import io.github.learnapachepoixssf.service.PermitPool;
+import io.github.learnapachepoixssf.service.ResourceLimiter;
+import io.github.learnapachepoixssf.service.UploadLimitException;
 import io.github.learnapachepoixssf.service.XlsxService;
 import lombok.extern.slf4j.Slf4j;
 
@@ -32,28 +66,63 @@ public class XlsxController {
 	@Autowired
 	protected XlsxService xlsxService;
 
+	@Autowired
+	protected ImportJobService importJobService;
+
+	@Autowired
+	protected WidgetProperties properties;
+
+	@Autowired
+	protected ResourceLimiter resourceLimiter;
+
 	@GetMapping("/test-widgets")
 	public void getTestWidgets(@RequestParam(value = "rows", defaultValue = "10", required = false) int rows,
+			@RequestParam(value = "exportType", defaultValue = "sxssf", required = false) String exportType,
 			HttpServletResponse response) throws IOException {
-		StopWatch stopWatch = new StopWatch("testdata");
+		StopWatch stopWatch = new StopWatch("testdata-" + exportType);
 		stopWatch.start();
 		response.setContentType(XLSX_CONTENT_TYPE);
 		response.setHeader("Content-Disposition", "attachment; filename=\"test-widgets.xlsx\"");
-		xlsxService.writeOutTestWidgets(response.getOutputStream(), rows);
+		xlsxService.writeOutTestWidgets(response.getOutputStream(), rows, exportType);
 		stopWatch.stop();
 		log.info("Time to write out test widgets: " + stopWatch.toString());
 	}
 
+	/**
+	 * Unless caching is turned off, the download is sent from a snapshot that is
+	 * kept until widgets change, with an entity tag so clients can check whether
+	 * theirs is still current, and a single byte range can be asked for.
+	 * <p>
+	 * The format is the one named, or else the first in the Accept header that
+	 * is one of FileFormat, falling back to XLSX.
+	 */
 	@GetMapping("/download-widgets")
 	@ResponseBody
-	public void downloadWidgets(HttpServletResponse response) throws IOException {
-		StopWatch stopWatch = new StopWatch("download");
+	public void downloadWidgets(
+			@RequestParam(value = "exportType", defaultValue = "sxssf", required = false) String exportType,
+			@RequestParam(value = "format", required = false) String format,
+			@RequestParam(value = "gzip", defaultValue = "false") boolean gzip, HttpServletRequest request,
+			HttpServletResponse response, WebRequest webRequest) throws IOException {
+		FileFormat fileFormat = downloadFormat(format, request, response);
+		StopWatch stopWatch = new StopWatch("download-" + exportType + "-" + fileFormat.getExtension());
 		stopWatch.start();
-		response.setContentType(XLSX_CONTENT_TYPE);
-		response.setHeader("Content-Disposition", "attachment; filename=\"widgets.xlsx\"");
-		int rowCount = xlsxService.writeOutSavedWidgets(response.getOutputStream());
-		stopWatch.stop();
-		log.info("Time to write out {} saved widgets: {}", rowCount, stopWatch.toString());
+		if (!xlsxService.isSnapshotted(exportType, fileFormat)) {
+			setDownloadHeaders(response, fileFormat, gzip);
+			int rowCount = xlsxService.writeOutSavedWidgets(response.getOutputStream(), exportType, fileFormat, gzip);
+			stopWatch.stop();
+			log.info("Time to write out {} saved widgets: {}", rowCount, stopWatch.toString());
+			return;
+		}
+		if (webRequest.checkNotModified(xlsxService.getSavedWidgetsETag(exportType, fileFormat, gzip))) {
+			return;
+		}
+		try (ExportSnapshotCache.Download download = xlsxService.openSavedWidgetsSnapshot(exportType, fileFormat,
+				gzip)) {
+			setDownloadHeaders(response, fileFormat, gzip);
+			sendSnapshot(download, request, response);
+			stopWatch.stop();
+			log.info("Time to send {} saved widgets: {}", download.getRowCount(), stopWatch.toString());
+		}
 	}
 
 	@PostMapping("/truncate-widgets")
@@ -71,25 +140,297 @@ public class XlsxController {
 			@RequestParam(value = "batchSize", defaultValue = "1000") int batchSize,
 			@RequestParam(value = "parseType", defaultValue = "sax") String parseType,
 			@RequestParam(value = "persistenceType", defaultValue = "jdbc") String persistenceType,
+			@RequestParam(value = "writerThreads", required = false) Integer writerThreads,
+			@RequestParam(value = "startRow", defaultValue = "0") int startRow,
+			@RequestParam(value = "async", defaultValue = "false") boolean async,
 			RedirectAttributes redirectAttributes) throws Exception {
-		Path savedFile = null;
+		if (async) {
+			ImportJob job = submitImportJob(file, batchSize, parseType, persistenceType, writerThreads, startRow);
+			return "redirect:/index.html?jobId=" + job.getId();
+		}
+		try (PermitPool.Permit disk = resourceLimiter.acquireTempDisk(file.getSize())) {
+			Path savedFile = null;
+			try {
+				StopWatch stopWatch = new StopWatch(parseType + "-" + persistenceType);
+				stopWatch.start();
+				MessageDigest digest = properties.getIngest().isEnabled() ? newContentDigest() : null;
+				savedFile = save(file, digest);
+				log.info("Uploaded file: " + savedFile);
+				xlsxService.checkUpload(savedFile);
+				String contentHash = digest != null ? HexFormat.of().formatHex(digest.digest()) : null;
+				int rowCount;
+				try (PermitPool.Permit connections = resourceLimiter
+						.acquireConnections(1 + writerThreads(writerThreads))) {
+					rowCount = xlsxService.saveUpload(savedFile, file.getOriginalFilename(), contentHash,
+							ImportOptions.of(ImportCheckpoint.start(startRow, batchSize), parseType, persistenceType)
+									.withWriterThreads(writerThreads(writerThreads)));
+				}
+				stopWatch.stop();
+				log.info("Time to save {} widgets: {}", rowCount, stopWatch.toString());
+				return "redirect:/index.html?uploaded=true";
+			} finally {
+				if (savedFile != null) {
+					// Remove the temporary directory along with the file
+					FileUtils.deleteQuietly(savedFile.getParent().toFile());
+				}
+			}
+		}
+	}
+
+	protected FileFormat downloadFormat(String format, HttpServletRequest request, HttpServletResponse response) {
+		if (format != null) {
+			try {
+				return FileFormat.forName(format);
+			} catch (IllegalArgumentException e) {
+				throw new ResponseStatusException(HttpStatus.BAD_REQUEST, e.getMessage());
+			}
+		}
+		// The download depends on what was accepted
+		response.setHeader(HttpHeaders.VARY, HttpHeaders.ACCEPT);
+		String accept = request.getHeader(HttpHeaders.ACCEPT);
+		if (accept == null) {
+			return FileFormat.XLSX;
+		}
 		try {
-			StopWatch stopWatch = new StopWatch(parseType + "-" + persistenceType);
+			List<MediaType> acceptable = MediaType.parseMediaTypes(accept);
+			MediaType.sortBySpecificityAndQuality(acceptable);
+			FileFormat accepted = FileFormat.forMediaTypes(acceptable);
+			return accepted != null ? accepted : FileFormat.XLSX;
+		} catch (InvalidMediaTypeException e) {
+			return FileFormat.XLSX;
+		}
+	}
+
+	protected void setDownloadHeaders(HttpServletResponse response, FileFormat format, boolean gzip) {
+		if (gzip) {
+			response.setContentType(FileFormat.GZIP.toString());
+		} else if (format.isDelimited()) {
+			response.setContentType(format.getMediaType() + ";charset=UTF-8");
+		} else {
+			response.setContentType(format.getMediaType().toString());
+		}
+		response.setHeader("Content-Disposition",
+				"attachment; filename=\"widgets." + format.getExtension() + (gzip ? ".gz" : "") + "\"");
+	}
+
+	protected void sendSnapshot(ExportSnapshotCache.Download download, HttpServletRequest request,
+			HttpServletResponse response) throws IOException {
+		long length = download.getLength();
+		long start = 0;
+		long count = length;
+		response.setHeader(HttpHeaders.ETAG, download.getETag());
+		response.setHeader(HttpHeaders.ACCEPT_RANGES, "bytes");
+		String range = request.getHeader(HttpHeaders.RANGE);
+		String ifRange = request.getHeader(HttpHeaders.IF_RANGE);
+		// A range of a download that has changed since is no use
+		if (range != null && (ifRange == null || ifRange.equals(download.getETag()))) {
+			List<HttpRange> ranges;
+			try {
+				ranges = HttpRange.parseRanges(range);
+			} catch (IllegalArgumentException e) {
+				// A header that cannot be parsed is ignored, and the whole download sent
+				ranges = List.of();
+			}
+			// Several ranges get the whole download
+			if (ranges.size() == 1) {
+				try {
+					start = ranges.get(0).getRangeStart(length);
+					count = ranges.get(0).getRangeEnd(length) - start + 1;
+				} catch (IllegalArgumentException e) {
+					count = 0;
+				}
+				if (count <= 0) {
+					response.setHeader(HttpHeaders.CONTENT_RANGE, "bytes */" + length);
+					response.sendError(HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE.value());
+					return;
+				}
+			}
+			if (count < length) {
+				response.setStatus(HttpStatus.PARTIAL_CONTENT.value());
+				response.setHeader(HttpHeaders.CONTENT_RANGE,
+						"bytes " + start + "-" + (start + count - 1) + "/" + length);
+			}
+		}
+		response.setContentLengthLong(count);
+		download.transferTo(start, count, Channels.newChannel(response.getOutputStream()));
+	}
+
+	/**
+	 * Upload a workbook as the request body (not multipart), which is parsed as it
+	 * arrives instead of being saved first. Delimited text and columnar records
+	 * are parsed the same way when sent with their content type, gzipped or not.
+	 */
+	@PostMapping(path = "/stream-widgets", consumes = { XLSX_CONTENT_TYPE, MediaType.APPLICATION_OCTET_STREAM_VALUE,
+			"text/csv", "text/tab-separated-values", "application/vnd.widgets.columnar" })
+	@ResponseBody
+	public Map<String, Object> streamWidgets(HttpServletRequest request,
+			@RequestParam(value = "batchSize", defaultValue = "1000") int batchSize,
+			@RequestParam(value = "persistenceType", defaultValue = "jdbc") String persistenceType,
+			@RequestParam(value = "writerThreads", required = false) Integer writerThreads) throws Exception {
+		StopWatch stopWatch = new StopWatch("stream-" + persistenceType);
+		stopWatch.start();
+		int rowCount;
+		try (PermitPool.Permit connections = resourceLimiter.acquireConnections(1 + writerThreads(writerThreads))) {
+			FileFormat format = FileFormat.forContentType(MediaType.parseMediaType(request.getContentType()));
+			InputStream body = xlsxService.limitUpload(request.getInputStream(), request.getContentLengthLong());
+			ImportOptions options = ImportOptions.of(batchSize, "sax", persistenceType)
+					.withWriterThreads(writerThreads(writerThreads));
+			rowCount = xlsxService.saveWidgets(body, format != null ? format : FileFormat.XLSX, options);
+		}
+		stopWatch.stop();
+		log.info("Time to stream {} widgets: {}", rowCount, stopWatch.toString());
+		return Map.of("rowCount", rowCount);
+	}
+
+	/**
+	 * Read some rows of the upload without saving them. The dimension is the
+	 * used range the first sheet declares, which is A1 when the writer did not
+	 * know it.
+	 */
+	@PostMapping("/preview-widgets")
+	@ResponseBody
+	public Map<String, Object> previewWidgets(@RequestParam("file") MultipartFile file,
+			@RequestParam(value = "startRow", defaultValue = "0") int startRow,
+			@RequestParam(value = "rows", defaultValue = "20") int rows) throws Exception {
+		if (startRow < 0 || rows < 0) {
+			throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Rows cannot be negative");
+		}
+		try (PermitPool.Permit disk = resourceLimiter.acquireTempDisk(file.getSize())) {
+			return previewWidgets(save(file), startRow, rows);
+		}
+	}
+
+	protected Map<String, Object> previewWidgets(Path savedFile, int startRow, int rows) throws Exception {
+		try {
+			StopWatch stopWatch = new StopWatch("preview");
 			stopWatch.start();
-			savedFile = save(file);
-			log.info("Uploaded file: " + savedFile);
-			int rowCount = xlsxService.saveWidgets(savedFile, batchSize, parseType, persistenceType);
+			CellRangeAddress dimension = xlsxService.readDimension(savedFile);
+			List<Widget> widgets = xlsxService.previewWidgets(savedFile, startRow, rows);
 			stopWatch.stop();
-			log.info("Time to save {} widgets: {}", rowCount, stopWatch.toString());
-			return "redirect:/index.html?uploaded=true";
+			log.info("Time to preview {} widgets: {}", widgets.size(), stopWatch.toString());
+			Map<String, Object> preview = new LinkedHashMap<>();
+			preview.put("dimension", dimension != null ? dimension.formatAsString() : null);
+			preview.put("startRow", startRow);
+			preview.put("widgets", widgets);
+			return preview;
 		} finally {
-			if (savedFile != null) {
-				FileUtils.deleteQuietly(savedFile.toFile());
-			}
+			FileUtils.deleteQuietly(savedFile.getParent().toFile());
 		}
 	}
 
+	/**
+	 * Start importing the upload in the background. Poll the returned job, or
+	 * cancel it, through its location.
+	 */
+	@PostMapping("/import-jobs")
+	public ResponseEntity<ImportJob> startImportJob(@RequestParam("file") MultipartFile file,
+			@RequestParam(value = "batchSize", defaultValue = "1000") int batchSize,
+			@RequestParam(value = "parseType", defaultValue = "sax") String parseType,
+			@RequestParam(value = "persistenceType", defaultValue = "jdbc") String persistenceType,
+			@RequestParam(value = "writerThreads", required = false) Integer writerThreads,
+			@RequestParam(value = "startRow", defaultValue = "0") int startRow) throws IOException {
+		ImportJob job = submitImportJob(file, batchSize, parseType, persistenceType, writerThreads, startRow);
+		return accepted(job);
+	}
+
+	@GetMapping("/import-jobs")
+	@ResponseBody
+	public List<ImportJob> getImportJobs() {
+		return importJobService.getJobs();
+	}
+
+	@GetMapping("/import-jobs/{id}")
+	@ResponseBody
+	public ImportJob getImportJob(@PathVariable("id") String id) {
+		return importJobService.getJob(id).orElseThrow(() -> noSuchJob(id));
+	}
+
+	/**
+	 * Carry on with a failed import from its checkpoint, as a new job.
+	 */
+	@PostMapping("/import-jobs/{id}/resume")
+	public ResponseEntity<ImportJob> resumeImportJob(@PathVariable("id") String id) {
+		try {
+			return accepted(importJobService.resume(id).orElseThrow(() -> noSuchJob(id)));
+		} catch (IllegalStateException e) {
+			throw new ResponseStatusException(HttpStatus.CONFLICT, e.getMessage());
+		} catch (RejectedExecutionException e) {
+			throw tooManyImports();
+		}
+	}
+
+	@DeleteMapping("/import-jobs/{id}")
+	@ResponseBody
+	public ImportJob cancelImportJob(@PathVariable("id") String id) {
+		return importJobService.cancel(id).orElseThrow(() -> noSuchJob(id));
+	}
+
+	protected ImportJob submitImportJob(MultipartFile file, int batchSize, String parseType, String persistenceType,
+			Integer writerThreads, int startRow) throws IOException {
+		Path savedFile = save(file);
+		log.info("Uploaded file for import job: " + savedFile);
+		try {
+			// Rather than failing the job once it runs
+			xlsxService.checkUpload(savedFile);
+		} catch (UploadLimitException e) {
+			FileUtils.deleteQuietly(savedFile.getParent().toFile());
+			throw e;
+		}
+		try {
+			return importJobService.submit(savedFile, ImportCheckpoint.start(startRow, batchSize), parseType,
+					persistenceType, writerThreads(writerThreads));
+		} catch (RejectedExecutionException e) {
+			FileUtils.deleteQuietly(savedFile.getParent().toFile());
+			throw tooManyImports();
+		}
+	}
+
+	/**
+	 * Work that waited too long for connections or disk, see ResourceLimiter.
+	 */
+	@ExceptionHandler(RejectedExecutionException.class)
+	public ResponseEntity<String> busy(RejectedExecutionException e) {
+		return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).header(HttpHeaders.RETRY_AFTER, "1")
+				.body(e.getMessage());
+	}
+
+	/**
+	 * Uploads that would expand too far, see UploadGuard.
+	 */
+	@ExceptionHandler(UploadLimitException.class)
+	public ResponseEntity<String> tooLarge(UploadLimitException e) {
+		return ResponseEntity.status(HttpStatus.PAYLOAD_TOO_LARGE).body(e.getMessage());
+	}
+
+	protected ResponseEntity<ImportJob> accepted(ImportJob job) {
+		return ResponseEntity.accepted().location(URI.create("/import-jobs/" + job.getId())).body(job);
+	}
+
+	protected ResponseStatusException tooManyImports() {
+		return new ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE, "Too many imports, try again later");
+	}
+
+	/**
+	 * Each writer thread holds a connection besides the one parsing holds, so
+	 * no more are started than the connection limit leaves room for.
+	 */
+	protected int writerThreads(Integer writerThreads) {
+		int requested = writerThreads != null ? writerThreads : properties.getPersistence().getWriterThreads();
+		return Math.max(0, Math.min(requested, properties.getConcurrency().getConnections() - 1));
+	}
+
+	protected ResponseStatusException noSuchJob(String id) {
+		return new ResponseStatusException(HttpStatus.NOT_FOUND, "No such import job: " + id);
+	}
+
 	protected Path save(MultipartFile file) throws IOException {
+		return save(file, null);
+	}
+
+	/**
+	 * @param digest updated with the content as it is saved, if given
+	 */
+	protected Path save(MultipartFile file, MessageDigest digest) throws IOException {
 		String filename = StringUtils.cleanPath(file.getOriginalFilename());
 		if (file.isEmpty()) {
 			throw new IllegalArgumentException("Cannot process empty file: " + filename);
@@ -98,11 +439,20 @@ public class XlsxController {
 			// This is a security check
 			throw new IllegalArgumentException("Cannot store file with relative path: " + filename);
 		}
-		try (InputStream inputStream = file.getInputStream()) {
+		try (InputStream inputStream = digest != null ? new DigestInputStream(file.getInputStream(), digest)
+				: file.getInputStream()) {
 			Path tempLocation = Files.createTempDirectory("widget-files");
 			Path tempFile = tempLocation.resolve(filename);
 			Files.copy(inputStream, tempFile, StandardCopyOption.REPLACE_EXISTING);
 			return tempFile;
 		}
 	}
+
+	protected MessageDigest newContentDigest() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
 }
@@ -0,0 +1,16 @@
+package io.github.learnapachepoixssf.model;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * The column of a spreadsheet row a field is read from, counting from 0. The
+ * field needs a setter.
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.FIELD)
+public @interface SheetColumn {
+	int value();
+}
@@ -8,6 +8,8 @@ import javax.persistence.Id;
 import javax.persistence.Table;
 import javax.persistence.Transient;
 
+import org.hibernate.annotations.GenericGenerator;
+import org.hibernate.annotations.Parameter;
 import org.springframework.data.domain.Persistable;
 
 import lombok.AllArgsConstructor;
@@ -23,12 +25,26 @@ import lombok.Setter;
 @Table(name = "WIDGET")
 public class Widget implements Persistable<Long> {
 
+	public static final String SEQUENCE = "SEQ_WIDGET";
+
+	/**
+	 * What the sequence increments by. Each value taken from it is the first of
+	 * this many IDs, for JPA and JDBC alike, see SequenceIdAllocator.
+	 */
+	public static final int ID_BLOCK_SIZE = 10000;
+
 	@Id
-	@GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "SEQ_WIDGET")
+	@GeneratedValue(strategy = GenerationType.SEQUENCE, generator = SEQUENCE)
+	@GenericGenerator(name = SEQUENCE, strategy = "org.hibernate.id.enhanced.SequenceStyleGenerator", parameters = {
+			@Parameter(name = "sequence_name", value = SEQUENCE),
+			@Parameter(name = "increment_size", value = "" + ID_BLOCK_SIZE),
+			@Parameter(name = "optimizer", value = "pooled-lo") })
 	@Column(name = "ID")
+	@SheetColumn(0)
 	private Long id;
 
 	@Column(name = "NAME", columnDefinition = "VARCHAR(50)", nullable = false, length = 50)
+	@SheetColumn(1)
 	private String name;
 
 	@Transient
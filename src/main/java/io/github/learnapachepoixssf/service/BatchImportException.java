@@ -0,0 +1,28 @@
+package io.github.learnapachepoixssf.service;
+
+import java.util.List;
+
+import lombok.Getter;
+
+/**
+ * A batch of a pipelined import could not be saved. Each batch is committed on
+ * its own, so the batches listed as committed stay saved and the others do not.
+ * Batches are numbered from 0 in the order they were parsed.
+ */
+@Getter
+public class BatchImportException extends RuntimeException {
+
+	private static final long serialVersionUID = 1L;
+
+	private final int failedBatch;
+	private final List<Integer> committedBatches;
+	private final int committedRows;
+
+	public BatchImportException(int failedBatch, List<Integer> committedBatches, int committedRows, Throwable cause) {
+		super("Cannot save batch " + failedBatch + " of widgets, " + committedBatches.size() + " batches with "
+				+ committedRows + " widgets were committed: " + cause.getMessage(), cause);
+		this.failedBatch = failedBatch;
+		this.committedBatches = List.copyOf(committedBatches);
+		this.committedRows = committedRows;
+	}
+}
@@ -0,0 +1,84 @@
+package io.github.learnapachepoixssf.service;
+
+import java.util.List;
+
+import org.springframework.jdbc.core.JdbcTemplate;
+
+/**
+ * What bulk and merge persistence need from a database that plain SQL does
+ * not cover.
+ */
+public interface BulkInsertDialect {
+
+	static BulkInsertDialect forDatabase(String databaseProductName) {
+		if ("H2".equalsIgnoreCase(databaseProductName)) {
+			return new H2BulkInsertDialect();
+		}
+		throw new IllegalStateException("Bulk persistence does not support " + databaseProductName);
+	}
+
+	/**
+	 * Take count values from the sequence in one round trip.
+	 */
+	long[] nextValues(JdbcTemplate jdbcTemplate, String sequence, int count);
+
+	/**
+	 * An insert of rowCount rows in one statement.
+	 */
+	default String multiRowInsert(String table, List<String> columns, int rowCount) {
+		StringBuilder sql = new StringBuilder("insert into ").append(table).append(" (")
+				.append(String.join(", ", columns)).append(") values ");
+		String row = "(" + String.join(", ", columns.stream().map(column -> "?").toArray(String[]::new)) + ")";
+		for (int i = 0; i < rowCount; i++) {
+			sql.append(i == 0 ? "" : ", ").append(row);
+		}
+		return sql.toString();
+	}
+
+	default int maxRowsPerStatement() {
+		return 500;
+	}
+
+	/**
+	 * A table only the current connection sees, created if it does not exist
+	 * yet. Creating it must not commit the current transaction.
+	 */
+	String createTemporaryTable(String table, String columnDefinitions);
+
+	/**
+	 * Update the target rows that match a source row by key, and insert the
+	 * source rows that match none.
+	 * 
+	 * @param insertValues the values of an inserted row, in the order of the
+	 *                     columns
+	 */
+	default String merge(String target, String source, String key, List<String> columns, List<String> insertValues) {
+		StringBuilder sql = new StringBuilder("merge into ").append(target).append(" t using ").append(source)
+				.append(" s on (t.").append(key).append(" = s.").append(key).append(") when matched then update set ");
+		String separator = "";
+		for (String column : columns) {
+			if (!column.equals(key)) {
+				sql.append(separator).append(column).append(" = s.").append(column);
+				separator = ", ";
+			}
+		}
+		return sql.append(" when not matched then insert (").append(String.join(", ", columns)).append(") values (")
+				.append(String.join(", ", insertValues)).append(")").toString();
+	}
+
+	class H2BulkInsertDialect implements BulkInsertDialect {
+
+		@Override
+		public long[] nextValues(JdbcTemplate jdbcTemplate, String sequence, int count) {
+			return jdbcTemplate
+					.queryForList("select " + sequence + ".nextval from system_range(1, ?)", Long.class, count)
+					.stream().mapToLong(Long::longValue).toArray();
+		}
+
+		@Override
+		public String createTemporaryTable(String table, String columnDefinitions) {
+			return "create local temporary table if not exists " + table + " (" + columnDefinitions
+					+ ") transactional";
+		}
+	}
+}
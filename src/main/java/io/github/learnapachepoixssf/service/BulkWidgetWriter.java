@@ -0,0 +1,82 @@
+package io.github.learnapachepoixssf.service;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import javax.sql.DataSource;
+
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.ParameterizedPreparedStatementSetter;
+
+import io.github.learnapachepoixssf.model.Widget;
+
+/**
+ * Inserts new widgets many rows to a statement, with IDs assigned from blocks
+ * reserved ahead of time instead of a sequence call per row.
+ */
+public class BulkWidgetWriter {
+
+	static final String TABLE = "widget";
+	static final List<String> COLUMNS = List.of("id", "name");
+
+	private final DataSource dataSource;
+	private final BulkInsertDialect dialect;
+	private final SequenceIdAllocator idAllocator;
+	private final int rowsPerStatement;
+	private final String fullInsert;
+
+	public BulkWidgetWriter(DataSource dataSource, BulkInsertDialect dialect, SequenceIdAllocator idAllocator) {
+		this.dataSource = dataSource;
+		this.dialect = dialect;
+		this.idAllocator = idAllocator;
+		this.rowsPerStatement = dialect.maxRowsPerStatement();
+		this.fullInsert = dialect.multiRowInsert(TABLE, COLUMNS, rowsPerStatement);
+	}
+
+	public void write(List<Widget> widgets, int batchSize) {
+		JdbcTemplate jdbcTemplate = new JdbcTemplate(dataSource);
+		List<Widget> newWidgets = widgets.stream().filter(w -> w.isNew()).collect(Collectors.toList());
+		insert(jdbcTemplate, newWidgets);
+		jdbcTemplate.batchUpdate("update widget set name=? where id = ?",
+				widgets.stream().filter(w -> !w.isNew()).collect(Collectors.toList()), batchSize,
+				new ParameterizedPreparedStatementSetter<Widget>() {
+					@Override
+					public void setValues(PreparedStatement ps, Widget widget) throws SQLException {
+						ps.setString(1, widget.getName());
+						ps.setLong(2, widget.getId());
+					}
+				});
+	}
+
+	protected void insert(JdbcTemplate jdbcTemplate, List<Widget> newWidgets) {
+		if (newWidgets.isEmpty()) {
+			return;
+		}
+		long[] ids = idAllocator.nextIds(newWidgets.size());
+		List<Object[]> fullStatements = new ArrayList<>();
+		int start = 0;
+		for (; start + rowsPerStatement <= newWidgets.size(); start += rowsPerStatement) {
+			fullStatements.add(values(newWidgets, ids, start, rowsPerStatement));
+		}
+		if (!fullStatements.isEmpty()) {
+			jdbcTemplate.batchUpdate(fullInsert, fullStatements);
+		}
+		int remaining = newWidgets.size() - start;
+		if (remaining > 0) {
+			jdbcTemplate.update(dialect.multiRowInsert(TABLE, COLUMNS, remaining),
+					values(newWidgets, ids, start, remaining));
+		}
+	}
+
+	protected Object[] values(List<Widget> widgets, long[] ids, int start, int rows) {
+		Object[] values = new Object[rows * COLUMNS.size()];
+		for (int i = 0; i < rows; i++) {
+			values[i * 2] = ids[start + i];
+			values[i * 2 + 1] = widgets.get(start + i).getName();
+		}
+		return values;
+	}
+}
@@ -0,0 +1,227 @@
+package io.github.learnapachepoixssf.service;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Writes rows in a compact binary format for moving widgets between systems
+ * rather than opening them in a spreadsheet. Rows are gathered into blocks,
+ * and a block holds its columns one after the other, so the values of a
+ * column sit together. Numbers are written as the difference from the number
+ * before them, which takes a byte or two for IDs in order, and the text of a
+ * column as the lengths of its values followed by all of their UTF-8 in one
+ * run.
+ * <p>
+ * The stream starts with "WCOL", a version byte, the number of columns and
+ * the type of each as a byte. Then comes each block: its number of rows, then
+ * for each column the number of cells left out, a bitmap of them if there
+ * are any, and the values of the other cells. A block of no rows ends the
+ * stream. Counts and lengths are unsigned varints, numbers zig-zag encoded
+ * varints.
+ */
+public class ColumnarRowWriter implements RowWriter {
+
+	static final byte[] MAGIC = { 'W', 'C', 'O', 'L' };
+	static final int VERSION = 1;
+	static final int DEFAULT_BLOCK_ROWS = 4096;
+	// Blocks with more cells than this are taken to be corrupt rather than allocated
+	static final int MAX_BLOCK_CELLS = 1 << 20;
+
+	public enum ColumnType {
+		NUMBER, STRING
+	}
+
+	private final OutputStream out;
+	private final ColumnType[] types;
+	private final int blockRows;
+	private final long[][] numbers;
+	private final String[][] strings;
+	private final boolean[][] present;
+	private int blockRow = 0;
+	private int columnIndex = 0;
+	private int rowCount = 0;
+	private boolean inRow = false;
+	private boolean closed = false;
+
+	public ColumnarRowWriter(OutputStream out, ColumnType... types) throws IOException {
+		this(out, DEFAULT_BLOCK_ROWS, types);
+	}
+
+	public ColumnarRowWriter(OutputStream out, int blockRows, ColumnType... types) throws IOException {
+		if (blockRows < 1 || types.length == 0) {
+			throw new IllegalArgumentException("A block needs at least one row and one column");
+		}
+		if ((long) blockRows * types.length > MAX_BLOCK_CELLS) {
+			throw new IllegalArgumentException("A block can have at most " + MAX_BLOCK_CELLS + " cells");
+		}
+		this.out = new BufferedOutputStream(out, StreamingXlsxWriter.BUFFER_SIZE);
+		this.types = types.clone();
+		this.blockRows = blockRows;
+		this.numbers = new long[types.length][];
+		this.strings = new String[types.length][];
+		this.present = new boolean[types.length][blockRows];
+		for (int i = 0; i < types.length; i++) {
+			if (types[i] == ColumnType.NUMBER) {
+				numbers[i] = new long[blockRows];
+			} else {
+				strings[i] = new String[blockRows];
+			}
+		}
+		this.out.write(MAGIC);
+		this.out.write(VERSION);
+		writeVarint(types.length);
+		for (ColumnType type : types) {
+			this.out.write(type.ordinal());
+		}
+	}
+
+	@Override
+	public void startRow() throws IOException {
+		if (inRow) {
+			endRow();
+		}
+		for (boolean[] column : present) {
+			column[blockRow] = false;
+		}
+		columnIndex = 0;
+		inRow = true;
+	}
+
+	/**
+	 * Written as text into a STRING column.
+	 */
+	@Override
+	public void numberCell(long value) throws IOException {
+		int column = nextColumn();
+		if (types[column] == ColumnType.NUMBER) {
+			numbers[column][blockRow] = value;
+		} else {
+			strings[column][blockRow] = Long.toString(value);
+		}
+		present[column][blockRow] = true;
+	}
+
+	@Override
+	public void stringCell(String value) throws IOException {
+		int column = nextColumn();
+		if (value == null) {
+			return;
+		}
+		if (types[column] != ColumnType.STRING) {
+			throw new IllegalArgumentException("Column " + column + " holds numbers");
+		}
+		strings[column][blockRow] = value;
+		present[column][blockRow] = true;
+	}
+
+	@Override
+	public void endRow() throws IOException {
+		inRow = false;
+		rowCount++;
+		if (++blockRow == blockRows) {
+			writeBlock();
+		}
+	}
+
+	@Override
+	public int getRowCount() {
+		return rowCount;
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		if (inRow) {
+			endRow();
+		}
+		if (blockRow > 0) {
+			writeBlock();
+		}
+		writeVarint(0);
+		// Leave the underlying stream open
+		out.flush();
+	}
+
+	/**
+	 * Without the block of no rows, a reader finds the stream cut off.
+	 */
+	@Override
+	public void abort() {
+		closed = true;
+	}
+
+	protected int nextColumn() {
+		if (columnIndex == types.length) {
+			throw new IllegalStateException("Rows only have " + types.length + " columns");
+		}
+		return columnIndex++;
+	}
+
+	protected void writeBlock() throws IOException {
+		writeVarint(blockRow);
+		for (int column = 0; column < types.length; column++) {
+			writeMissing(present[column]);
+			if (types[column] == ColumnType.NUMBER) {
+				long previous = 0;
+				for (int row = 0; row < blockRow; row++) {
+					if (present[column][row]) {
+						long value = numbers[column][row];
+						writeVarint(zigZag(value - previous));
+						previous = value;
+					}
+				}
+			} else {
+				StringBuilder text = new StringBuilder();
+				for (int row = 0; row < blockRow; row++) {
+					if (present[column][row]) {
+						String value = strings[column][row];
+						writeVarint(value.length());
+						text.append(value);
+					}
+				}
+				byte[] bytes = text.toString().getBytes(StandardCharsets.UTF_8);
+				writeVarint(bytes.length);
+				out.write(bytes);
+				Arrays.fill(strings[column], 0, blockRow, null);
+			}
+		}
+		blockRow = 0;
+	}
+
+	protected void writeMissing(boolean[] present) throws IOException {
+		int missing = 0;
+		for (int row = 0; row < blockRow; row++) {
+			if (!present[row]) {
+				missing++;
+			}
+		}
+		writeVarint(missing);
+		if (missing > 0) {
+			byte[] bitmap = new byte[(blockRow + 7) / 8];
+			for (int row = 0; row < blockRow; row++) {
+				if (!present[row]) {
+					bitmap[row >> 3] |= 1 << (row & 7);
+				}
+			}
+			out.write(bitmap);
+		}
+	}
+
+	protected void writeVarint(long value) throws IOException {
+		while ((value & ~0x7FL) != 0) {
+			out.write((int) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		out.write((int) value);
+	}
+
+	static long zigZag(long value) {
+		return (value << 1) ^ (value >> 63);
+	}
+}
@@ -0,0 +1,252 @@
+package io.github.learnapachepoixssf.service;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import io.github.learnapachepoixssf.service.ColumnarRowWriter.ColumnType;
+
+/**
+ * Parses the format ColumnarRowWriter writes, a block at a time. Numbers are
+ * handed to the callback as numbers and text as inline strings. The text of
+ * each column is decoded once per block into one buffer that the values are
+ * appended from, so no objects are created per cell. Buffers only grow with the
+ * bytes that actually arrive, so a forged count cannot make them larger.
+ */
+public class ColumnarStreamParser extends RecordStreamParser {
+
+	// Text is read this much at a time, growing the buffer as it arrives
+	static final int TEXT_CHUNK_SIZE = 64 * 1024;
+
+	public ColumnarStreamParser(InputStream inputStream, long streamSize, int minimumColumnsToProcess) {
+		this(inputStream, streamSize, minimumColumnsToProcess, new Callback() {
+		});
+	}
+
+	public ColumnarStreamParser(InputStream inputStream, long streamSize, int minimumColumnsToProcess,
+			Callback callback) {
+		super(inputStream, streamSize, minimumColumnsToProcess, callback);
+	}
+
+	@Override
+	protected Records openRecords(InputStream stream) throws IOException {
+		DataInputStream in = new DataInputStream(stream);
+		byte[] magic = new byte[ColumnarRowWriter.MAGIC.length];
+		in.readFully(magic);
+		if (!Arrays.equals(magic, ColumnarRowWriter.MAGIC)) {
+			throw new IOException("Not a columnar stream");
+		}
+		int version = in.readUnsignedByte();
+		if (version != ColumnarRowWriter.VERSION) {
+			throw new IOException("Unsupported columnar version " + version);
+		}
+		int columnCount = (int) readCount(in, 1024);
+		ColumnType[] types = new ColumnType[columnCount];
+		for (int column = 0; column < columnCount; column++) {
+			int type = in.readUnsignedByte();
+			if (type >= ColumnType.values().length) {
+				throw new IOException("Unknown column type " + type);
+			}
+			types[column] = ColumnType.values()[type];
+		}
+		return new ColumnarRecords(in, types);
+	}
+
+	protected static long readVarint(DataInputStream in) throws IOException {
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			int b = in.readUnsignedByte();
+			value |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		throw new IOException("Malformed varint");
+	}
+
+	protected static long readCount(DataInputStream in, int max) throws IOException {
+		long count = readVarint(in);
+		if (count < 0 || count > max) {
+			throw new IOException("Count of " + count + " is out of range");
+		}
+		return count;
+	}
+
+	protected static class ColumnarRecords implements Records {
+		private final DataInputStream in;
+		private final ColumnType[] types;
+		private final CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder();
+		private final byte[][] missing;
+		private final long[][] numbers;
+		private final int[][] starts;
+		private final char[][] chars;
+		private byte[] bytes = new byte[0];
+		private int blockRows = 0;
+		private int row = 0;
+		private boolean ended = false;
+
+		ColumnarRecords(DataInputStream in, ColumnType[] types) {
+			this.in = in;
+			this.types = types;
+			this.missing = new byte[types.length][];
+			this.numbers = new long[types.length][];
+			this.starts = new int[types.length][];
+			this.chars = new char[types.length][];
+		}
+
+		@Override
+		public boolean next() throws IOException {
+			if (++row < blockRows) {
+				return true;
+			}
+			if (ended || !readBlock()) {
+				ended = true;
+				return false;
+			}
+			row = 0;
+			return true;
+		}
+
+		@Override
+		public int size() {
+			return types.length;
+		}
+
+		@Override
+		public boolean isBlank(int columnNumber) {
+			return isMissing(columnNumber, row);
+		}
+
+		@Override
+		public RawType getType(int columnNumber) {
+			return types[columnNumber] == ColumnType.NUMBER ? RawType.NUMBER : RawType.INLINE_STRING;
+		}
+
+		@Override
+		public void appendTo(int columnNumber, StringBuilder chars) {
+			if (types[columnNumber] == ColumnType.NUMBER) {
+				chars.append(numbers[columnNumber][row]);
+			} else {
+				int start = starts[columnNumber][row];
+				chars.append(this.chars[columnNumber], start, starts[columnNumber][row + 1] - start);
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			in.close();
+		}
+
+		protected boolean readBlock() throws IOException {
+			try {
+				blockRows = (int) readCount(in, ColumnarRowWriter.MAX_BLOCK_CELLS / types.length);
+				if (blockRows == 0) {
+					return false;
+				}
+				for (int column = 0; column < types.length; column++) {
+					readMissing(column);
+					if (types[column] == ColumnType.NUMBER) {
+						readNumbers(column);
+					} else {
+						readStrings(column);
+					}
+				}
+				return true;
+			} catch (EOFException e) {
+				throw new IOException("Columnar stream ends without its last block", e);
+			}
+		}
+
+		protected void readMissing(int column) throws IOException {
+			int missingCount = (int) readCount(in, blockRows);
+			if (missingCount == 0) {
+				missing[column] = null;
+				return;
+			}
+			int length = (blockRows + 7) / 8;
+			if (missing[column] == null || missing[column].length < length) {
+				missing[column] = new byte[length];
+			}
+			in.readFully(missing[column], 0, length);
+		}
+
+		protected boolean isMissing(int column, int row) {
+			byte[] bitmap = missing[column];
+			return bitmap != null && (bitmap[row >> 3] & (1 << (row & 7))) != 0;
+		}
+
+		protected void readNumbers(int column) throws IOException {
+			if (numbers[column] == null || numbers[column].length < blockRows) {
+				numbers[column] = new long[blockRows];
+			}
+			long value = 0;
+			for (int row = 0; row < blockRows; row++) {
+				if (!isMissing(column, row)) {
+					long zigZag = readVarint(in);
+					value += (zigZag >>> 1) ^ -(zigZag & 1);
+					numbers[column][row] = value;
+				}
+			}
+		}
+
+		/**
+		 * Values start where the one before ends, and missing values are empty.
+		 */
+		protected void readStrings(int column) throws IOException {
+			if (starts[column] == null || starts[column].length < blockRows + 1) {
+				starts[column] = new int[blockRows + 1];
+			}
+			int[] columnStarts = starts[column];
+			long charCount = 0;
+			for (int row = 0; row < blockRows; row++) {
+				columnStarts[row] = (int) charCount;
+				if (!isMissing(column, row)) {
+					charCount += readCount(in, Integer.MAX_VALUE);
+				}
+			}
+			int byteCount = (int) readCount(in, Integer.MAX_VALUE - 8);
+			if (charCount > byteCount) {
+				// UTF-8 never takes fewer bytes than chars
+				throw new IOException("Text of column " + column + " is shorter than its values");
+			}
+			columnStarts[blockRows] = (int) charCount;
+			readText(byteCount);
+			if (chars[column] == null || chars[column].length < byteCount) {
+				chars[column] = new char[byteCount];
+			}
+			CharBuffer decoded = CharBuffer.wrap(chars[column]);
+			decoder.reset();
+			CoderResult result = decoder.decode(ByteBuffer.wrap(bytes, 0, byteCount), decoded, true);
+			if (!result.isUnderflow()) {
+				result.throwException();
+			}
+			decoder.flush(decoded);
+			if (decoded.position() != charCount) {
+				throw new IOException("Text of column " + column + " does not match the lengths of its values");
+			}
+		}
+
+		/**
+		 * The buffer is grown a chunk at a time as the text is read, rather than
+		 * to the length the stream gives up front.
+		 */
+		protected void readText(int byteCount) throws IOException {
+			int read = 0;
+			while (read < byteCount) {
+				if (read == bytes.length) {
+					bytes = Arrays.copyOf(bytes, (int) Math.min(byteCount, Math.max(TEXT_CHUNK_SIZE, 2L * read)));
+				}
+				int chunk = Math.min(bytes.length, byteCount) - read;
+				in.readFully(bytes, read, chunk);
+				read += chunk;
+			}
+		}
+	}
+}
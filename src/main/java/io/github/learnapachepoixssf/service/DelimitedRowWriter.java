@@ -0,0 +1,80 @@
+package io.github.learnapachepoixssf.service;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVPrinter;
+
+/**
+ * Writes rows as delimited text, CSV or TSV depending on the format, with
+ * fields quoted only where they need to be. There is no header row, so a
+ * download can be uploaded again like a workbook. A cell left out is an empty
+ * field.
+ */
+public class DelimitedRowWriter implements RowWriter {
+
+	private final CSVPrinter printer;
+	private int rowCount = 0;
+	private boolean inRow = false;
+	private boolean closed = false;
+
+	public DelimitedRowWriter(OutputStream out, CSVFormat format) throws IOException {
+		this.printer = new CSVPrinter(new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8),
+				StreamingXlsxWriter.BUFFER_SIZE), format);
+	}
+
+	@Override
+	public void startRow() throws IOException {
+		if (inRow) {
+			endRow();
+		}
+		inRow = true;
+	}
+
+	@Override
+	public void numberCell(long value) throws IOException {
+		printer.print(Long.toString(value));
+	}
+
+	@Override
+	public void stringCell(String value) throws IOException {
+		printer.print(value);
+	}
+
+	@Override
+	public void endRow() throws IOException {
+		printer.println();
+		rowCount++;
+		inRow = false;
+	}
+
+	@Override
+	public int getRowCount() {
+		return rowCount;
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		if (inRow) {
+			endRow();
+		}
+		// Closing the printer would close the stream
+		printer.flush();
+	}
+
+	/**
+	 * The rows still buffered, which may end partway through one, are dropped.
+	 */
+	@Override
+	public void abort() {
+		closed = true;
+	}
+}
@@ -0,0 +1,86 @@
+package io.github.learnapachepoixssf.service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVParser;
+import org.apache.commons.csv.CSVRecord;
+
+/**
+ * Parses delimited text, CSV or TSV depending on the format, as it is read.
+ * Every field is handed to the callback as an inline string, empty fields as
+ * blank cells, and numbers are converted from the text when they are asked
+ * for.
+ */
+public class DelimitedStreamParser extends RecordStreamParser {
+
+	private final CSVFormat format;
+
+	public DelimitedStreamParser(InputStream inputStream, long streamSize, CSVFormat format,
+			int minimumColumnsToProcess) {
+		this(inputStream, streamSize, format, minimumColumnsToProcess, new Callback() {
+		});
+	}
+
+	public DelimitedStreamParser(InputStream inputStream, long streamSize, CSVFormat format,
+			int minimumColumnsToProcess, Callback callback) {
+		super(inputStream, streamSize, minimumColumnsToProcess, callback);
+		this.format = format;
+	}
+
+	@Override
+	protected Records openRecords(InputStream stream) throws IOException {
+		CSVParser parser = format.parse(new InputStreamReader(stream, StandardCharsets.UTF_8));
+		Iterator<CSVRecord> iterator = parser.iterator();
+		return new Records() {
+
+			CSVRecord record = null;
+
+			@Override
+			public boolean next() throws IOException {
+				try {
+					if (!iterator.hasNext()) {
+						return false;
+					}
+					record = iterator.next();
+					return true;
+				} catch (IllegalStateException e) {
+					// How the iterator reports a record that cannot be read
+					if (e.getCause() instanceof IOException) {
+						throw (IOException) e.getCause();
+					}
+					throw e;
+				}
+			}
+
+			@Override
+			public int size() {
+				return record.size();
+			}
+
+			@Override
+			public boolean isBlank(int columnNumber) {
+				return record.get(columnNumber).isEmpty();
+			}
+
+			@Override
+			public RawType getType(int columnNumber) {
+				return RawType.INLINE_STRING;
+			}
+
+			@Override
+			public void appendTo(int columnNumber, StringBuilder chars) {
+				chars.append(record.get(columnNumber));
+			}
+
+			@Override
+			public void close() throws IOException {
+				parser.close();
+			}
+		};
+	}
+}
@@ -0,0 +1,213 @@
+package io.github.learnapachepoixssf.service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.util.Enumeration;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.io.input.ProxyInputStream;
+import org.apache.poi.openxml4j.exceptions.InvalidFormatException;
+import org.apache.poi.openxml4j.opc.OPCPackage;
+import org.apache.poi.openxml4j.util.ZipFileZipEntrySource;
+import org.apache.poi.openxml4j.util.ZipSecureFile;
+import org.apache.poi.ss.usermodel.Workbook;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+
+import io.github.learnapachepoixssf.service.PermitPool.Permit;
+
+/**
+ * Decides whether a workbook may be parsed into memory with the usermodel,
+ * which holds every sheet of it in the heap at once. The heap a workbook
+ * needs is estimated from the uncompressed sizes of its sheet and shared
+ * strings parts, and the parses running share a budget of memory and a
+ * number of slots. A workbook that does not fit, or that arrives while the
+ * budget is taken, is left to be streamed instead; nothing waits.
+ * <p>
+ * The sizes are only what the zip directory claims, so an admitted workbook is
+ * opened with Admission.openWorkbook, which counts the parts as they are
+ * inflated and gives up once they are larger than claimed.
+ */
+public class DomAdmission {
+
+	static final String SHARED_STRINGS_PART = "xl/sharedStrings.xml";
+	static final String SHEETS_FOLDER = "xl/worksheets/";
+
+	private final PermitPool parses;
+	private final PermitPool memory;
+	private final int expansionFactor;
+
+	/**
+	 * @param expansionFactor bytes of heap taken by each byte of sheet and
+	 *                        shared strings XML
+	 */
+	public DomAdmission(int maxParses, long memoryBytes, int expansionFactor) {
+		if (maxParses < 0 || expansionFactor < 1) {
+			throw new IllegalArgumentException("Parses cannot be negative and XML takes at least its own size");
+		}
+		this.parses = new PermitPool(maxParses, 1, false);
+		this.memory = new PermitPool(memoryBytes, PermitPool.MEGABYTE, false);
+		this.expansionFactor = expansionFactor;
+	}
+
+	/**
+	 * @return an admission to hold while parsing the workbook, or null if it
+	 *         should be streamed instead
+	 */
+	public Admission tryAdmit(Path workbook) {
+		long xmlSize = measureXml(workbook);
+		if (xmlSize < 0) {
+			return null;
+		}
+		Permit parse = parses.tryAcquire(1);
+		if (parse == null) {
+			return null;
+		}
+		Permit heap = memory.tryAcquire(Math.max(1, expand(xmlSize)));
+		if (heap == null) {
+			parse.close();
+			return null;
+		}
+		return new Admission(xmlSize, parse, heap);
+	}
+
+	/**
+	 * The sizes come from the zip directory, so nothing is inflated to find
+	 * them.
+	 *
+	 * @return the bytes of heap the workbook is expected to take, or -1 if it
+	 *         cannot be told
+	 */
+	public long estimateHeap(Path workbook) {
+		long xmlSize = measureXml(workbook);
+		return xmlSize < 0 ? -1 : expand(xmlSize);
+	}
+
+	/**
+	 * @return the bytes of sheet and shared strings XML the zip directory gives,
+	 *         or -1 if it cannot be told
+	 */
+	protected long measureXml(Path workbook) {
+		long xmlSize = 0;
+		try (ZipFile zip = new ZipFile(workbook.toFile())) {
+			Enumeration<? extends ZipEntry> entries = zip.entries();
+			while (entries.hasMoreElements()) {
+				ZipEntry entry = entries.nextElement();
+				if (isMeasured(entry.getName())) {
+					if (entry.getSize() < 0) {
+						return -1;
+					}
+					xmlSize += entry.getSize();
+				}
+			}
+		} catch (IOException e) {
+			// Streaming reports what is wrong with it
+			return -1;
+		}
+		return xmlSize;
+	}
+
+	protected long expand(long xmlSize) {
+		return xmlSize > Long.MAX_VALUE / expansionFactor ? Long.MAX_VALUE : xmlSize * expansionFactor;
+	}
+
+	protected static boolean isMeasured(String name) {
+		return name.equals(SHARED_STRINGS_PART) || name.startsWith(SHEETS_FOLDER) && name.endsWith(".xml");
+	}
+
+	public int getAvailableParses() {
+		return (int) parses.getAvailable();
+	}
+
+	public long getAvailableMemory() {
+		return memory.getAvailable();
+	}
+
+	/**
+	 * A slot and the heap estimated for one workbook, given back when closed.
+	 */
+	public static class Admission implements Permit {
+		private final long xmlSize;
+		private final Permit parse;
+		private final Permit heap;
+
+		protected Admission(long xmlSize, Permit parse, Permit heap) {
+			this.xmlSize = xmlSize;
+			this.parse = parse;
+			this.heap = heap;
+		}
+
+		/**
+		 * Open the workbook read only, counting its sheet and shared strings XML
+		 * as the usermodel inflates it. The usermodel reads every part while it
+		 * is opened, so no rows have been read when this gives up.
+		 *
+		 * @return the workbook, or null if its parts inflate to more than the
+		 *         zip directory claimed, and it should be streamed instead
+		 */
+		public Workbook openWorkbook(Path workbook) throws IOException {
+			AtomicLong inflated = new AtomicLong();
+			ZipFileZipEntrySource zip = new ZipFileZipEntrySource(new ZipSecureFile(workbook.toFile())) {
+				@Override
+				public InputStream getInputStream(ZipArchiveEntry entry) throws IOException {
+					InputStream stream = super.getInputStream(entry);
+					return isMeasured(entry.getName()) ? count(stream, inflated) : stream;
+				}
+			};
+			try {
+				return new XSSFWorkbook(OPCPackage.open(zip));
+			} catch (InvalidFormatException e) {
+				zip.close();
+				throw new IOException("Cannot open workbook", e);
+			} catch (IOException | RuntimeException e) {
+				zip.close();
+				if (isLargerThanClaimed(e)) {
+					return null;
+				}
+				throw e;
+			}
+		}
+
+		public long getXmlSize() {
+			return xmlSize;
+		}
+
+		@Override
+		public void close() {
+			heap.close();
+			parse.close();
+		}
+
+		protected InputStream count(InputStream stream, AtomicLong inflated) {
+			return new ProxyInputStream(stream) {
+				@Override
+				protected void afterRead(int n) throws IOException {
+					if (n > 0 && inflated.addAndGet(n) > xmlSize) {
+						throw new LargerThanClaimedException();
+					}
+				}
+			};
+		}
+
+		protected static boolean isLargerThanClaimed(Throwable e) {
+			// The usermodel wraps what its streams throw
+			for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+				if (cause instanceof LargerThanClaimedException) {
+					return true;
+				}
+			}
+			return false;
+		}
+	}
+
+	protected static class LargerThanClaimedException extends IOException {
+		private static final long serialVersionUID = 1L;
+
+		public LargerThanClaimedException() {
+			super("Workbook inflates to more than its zip directory claims");
+		}
+	}
+}
@@ -0,0 +1,254 @@
+package io.github.learnapachepoixssf.service;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.PreDestroy;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+/**
+ * The last download rendered for each export type, kept in a temporary file
+ * and served again until widgets change. Every change moves the version on,
+ * and a snapshot is only served while the version is the one it was rendered
+ * at. Downloads that find no snapshot while one is being rendered for the
+ * current version wait for it instead of rendering their own.
+ * <p>
+ * The file is deleted once the snapshot is replaced and the last download
+ * reading it is closed.
+ */
+@Component
+public class ExportSnapshotCache {
+
+	@Autowired
+	protected WidgetMetrics metrics;
+
+	// Versions start again on restart, so tell the instances apart
+	private final String instanceId = UUID.randomUUID().toString().substring(0, 8);
+	private final AtomicLong version = new AtomicLong();
+	private final Map<String, Snapshot> snapshots = new HashMap<>();
+	private final Map<String, Render> renders = new HashMap<>();
+
+	public void invalidate() {
+		version.incrementAndGet();
+	}
+
+	/**
+	 * The entity tag a download of the widgets as they are now would have.
+	 */
+	public String getETag(String exportType) {
+		return eTag(exportType, version.get());
+	}
+
+	/**
+	 * Open the snapshot for the current version, rendering it if there is none.
+	 * The download must be closed once it has been sent.
+	 */
+	public Download open(String exportType, Renderer renderer) throws IOException {
+		while (true) {
+			long current = version.get();
+			Render render;
+			boolean rendering = false;
+			synchronized (this) {
+				Snapshot snapshot = snapshots.get(exportType);
+				if (snapshot != null && snapshot.version == current) {
+					metrics.exportSnapshot(exportType, "hit");
+					return snapshot.download();
+				}
+				render = renders.get(exportType);
+				if (render == null || render.version != current) {
+					render = new Render(current);
+					renders.put(exportType, render);
+					rendering = true;
+				}
+			}
+			if (rendering) {
+				metrics.exportSnapshot(exportType, "rendered");
+				return render(exportType, render, renderer);
+			}
+			Snapshot snapshot;
+			try {
+				snapshot = render.snapshot.join();
+			} catch (CompletionException e) {
+				if (e.getCause() instanceof IOException) {
+					throw (IOException) e.getCause();
+				}
+				throw e;
+			}
+			synchronized (this) {
+				// Unless a newer snapshot replaced it and its downloads are done
+				if (snapshot.references > 0) {
+					metrics.exportSnapshot(exportType, "joined");
+					return snapshot.download();
+				}
+			}
+		}
+	}
+
+	@PreDestroy
+	public synchronized void clear() {
+		snapshots.values().forEach(Snapshot::release);
+		snapshots.clear();
+	}
+
+	protected Download render(String exportType, Render render, Renderer renderer) throws IOException {
+		Snapshot snapshot;
+		try {
+			snapshot = render(exportType, render.version, renderer);
+		} catch (IOException | RuntimeException | Error e) {
+			synchronized (this) {
+				renders.remove(exportType, render);
+			}
+			render.snapshot.completeExceptionally(e);
+			throw e;
+		}
+		synchronized (this) {
+			renders.remove(exportType, render);
+			Download download = snapshot.download();
+			Snapshot previous = snapshots.get(exportType);
+			if (previous == null || previous.version < snapshot.version) {
+				snapshots.put(exportType, snapshot);
+				if (previous != null) {
+					previous.release();
+				}
+			} else {
+				// Only this download and those waiting for it use it
+				snapshot.release();
+			}
+			render.snapshot.complete(snapshot);
+			return download;
+		}
+	}
+
+	protected Snapshot render(String exportType, long version, Renderer renderer) throws IOException {
+		Path file = Files.createTempFile("widgets-" + exportType, ".download");
+		try {
+			int rowCount;
+			try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(file))) {
+				rowCount = renderer.render(out);
+			}
+			FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.DELETE_ON_CLOSE);
+			return new Snapshot(eTag(exportType, version), version, rowCount, channel);
+		} catch (IOException | RuntimeException | Error e) {
+			Files.deleteIfExists(file);
+			throw e;
+		}
+	}
+
+	protected String eTag(String exportType, long version) {
+		return "\"" + instanceId + "-" + exportType + "-" + version + "\"";
+	}
+
+	public interface Renderer {
+		/**
+		 * @return the number of rows written
+		 */
+		int render(OutputStream out) throws IOException;
+	}
+
+	protected static class Render {
+		final long version;
+		final CompletableFuture<Snapshot> snapshot = new CompletableFuture<>();
+
+		Render(long version) {
+			this.version = version;
+		}
+	}
+
+	/**
+	 * Counts the cache and each open download as references, all changed while
+	 * holding the lock of the cache.
+	 */
+	protected class Snapshot {
+		final String eTag;
+		final long version;
+		final int rowCount;
+		final FileChannel channel;
+		int references = 1;
+
+		Snapshot(String eTag, long version, int rowCount, FileChannel channel) {
+			this.eTag = eTag;
+			this.version = version;
+			this.rowCount = rowCount;
+			this.channel = channel;
+		}
+
+		Download download() {
+			references++;
+			return new Download(this);
+		}
+
+		void release() {
+			if (--references == 0) {
+				try {
+					channel.close();
+				} catch (IOException e) {
+					// Nothing more to read from it anyway
+				}
+			}
+		}
+	}
+
+	/**
+	 * A snapshot being sent. Any number can read the same snapshot at once.
+	 */
+	public class Download implements AutoCloseable {
+		private final Snapshot snapshot;
+		private boolean closed = false;
+
+		Download(Snapshot snapshot) {
+			this.snapshot = snapshot;
+		}
+
+		public String getETag() {
+			return snapshot.eTag;
+		}
+
+		public int getRowCount() {
+			return snapshot.rowCount;
+		}
+
+		public long getLength() throws IOException {
+			return snapshot.channel.size();
+		}
+
+		/**
+		 * Copy part of the snapshot without reading it into the heap first,
+		 * stopping at its end. A target that takes none of it fails rather than
+		 * being offered the same bytes forever.
+		 */
+		public void transferTo(long position, long count, WritableByteChannel target) throws IOException {
+			long end = Math.min(position + count, snapshot.channel.size());
+			while (position < end) {
+				long transferred = snapshot.channel.transferTo(position, end - position, target);
+				if (transferred == 0) {
+					throw new IOException("Download stopped taking the snapshot at byte " + position);
+				}
+				position += transferred;
+			}
+		}
+
+		@Override
+		public void close() {
+			synchronized (ExportSnapshotCache.this) {
+				if (!closed) {
+					closed = true;
+					snapshot.release();
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,111 @@
+package io.github.learnapachepoixssf.service;
+
+import java.util.List;
+import java.util.Locale;
+
+import org.apache.commons.csv.CSVFormat;
+import org.springframework.http.MediaType;
+
+/**
+ * The formats widgets can be downloaded and uploaded in. Delimited text and
+ * the columnar format are read and written a row at a time, like a streamed
+ * workbook, but without the zip and XML around the values. Any of them can be
+ * gzipped, which is recognised by its header when reading.
+ */
+public enum FileFormat {
+
+	XLSX("xlsx", MediaType.valueOf("application/vnd.openxmlformats-officedocument.spreadsheetml.sheet"), null),
+	CSV("csv", MediaType.valueOf("text/csv"), CSVFormat.DEFAULT),
+	TSV("tsv", MediaType.valueOf("text/tab-separated-values"), CSVFormat.DEFAULT.builder().setDelimiter('\t').build()),
+	/**
+	 * See ColumnarRowWriter.
+	 */
+	COLUMNAR("wcol", MediaType.valueOf("application/vnd.widgets.columnar"), null);
+
+	public static final MediaType GZIP = MediaType.valueOf("application/gzip");
+
+	private final String extension;
+	private final MediaType mediaType;
+	private final CSVFormat csvFormat;
+
+	FileFormat(String extension, MediaType mediaType, CSVFormat csvFormat) {
+		this.extension = extension;
+		this.mediaType = mediaType;
+		this.csvFormat = csvFormat;
+	}
+
+	public String getExtension() {
+		return extension;
+	}
+
+	public MediaType getMediaType() {
+		return mediaType;
+	}
+
+	/**
+	 * How fields are delimited and quoted, for CSV and TSV only.
+	 */
+	public CSVFormat getCsvFormat() {
+		return csvFormat;
+	}
+
+	public boolean isDelimited() {
+		return csvFormat != null;
+	}
+
+	/**
+	 * @param name the name or extension of a format, in any case
+	 */
+	public static FileFormat forName(String name) {
+		for (FileFormat format : values()) {
+			if (format.name().equalsIgnoreCase(name) || format.extension.equalsIgnoreCase(name)) {
+				return format;
+			}
+		}
+		throw new IllegalArgumentException("Unknown file format: " + name);
+	}
+
+	/**
+	 * The format of a file by its extension, ignoring a .gz after it. Files
+	 * without a known extension are taken to be workbooks.
+	 */
+	public static FileFormat forFilename(String filename) {
+		String name = filename.toLowerCase(Locale.ROOT);
+		if (name.endsWith(".gz")) {
+			name = name.substring(0, name.length() - 3);
+		}
+		for (FileFormat format : values()) {
+			if (name.endsWith("." + format.extension)) {
+				return format;
+			}
+		}
+		return XLSX;
+	}
+
+	/**
+	 * The first format acceptable in the order of preference given, for
+	 * example by an Accept header, or null if none is.
+	 */
+	public static FileFormat forMediaTypes(List<MediaType> acceptable) {
+		for (MediaType mediaType : acceptable) {
+			for (FileFormat format : values()) {
+				if (mediaType.includes(format.mediaType)) {
+					return format;
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * The format of content of this type, or null if it is none of them.
+	 */
+	public static FileFormat forContentType(MediaType contentType) {
+		for (FileFormat format : values()) {
+			if (format.mediaType.equalsTypeAndSubtype(contentType)) {
+				return format;
+			}
+		}
+		return null;
+	}
+}
@@ -0,0 +1,57 @@
+package io.github.learnapachepoixssf.service;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import lombok.Getter;
+
+/**
+ * Where an import starts, or where a failed one can carry on. Every row
+ * before the resume row has been saved. Batches are numbered from the resume
+ * row, and the committed ones were saved by writer threads that ran ahead of
+ * a failed batch, so they are skipped when the import carries on. That only
+ * lines up when the batch size stays the same, so it is part of the
+ * checkpoint.
+ */
+@Getter
+public class ImportCheckpoint {
+
+	private final int resumeRow;
+	private final int batchSize;
+	private final List<Integer> committedBatches;
+
+	public ImportCheckpoint(int resumeRow, int batchSize, List<Integer> committedBatches) {
+		if (resumeRow < 0) {
+			throw new IllegalArgumentException("Rows are numbered from 0");
+		}
+		if (batchSize < 1) {
+			throw new IllegalArgumentException("Batch size must be at least 1");
+		}
+		this.resumeRow = resumeRow;
+		this.batchSize = batchSize;
+		this.committedBatches = List.copyOf(committedBatches);
+	}
+
+	public static ImportCheckpoint start(int firstRow, int batchSize) {
+		return new ImportCheckpoint(firstRow, batchSize, List.of());
+	}
+
+	public boolean isCommitted(int batchNumber) {
+		return committedBatches.contains(batchNumber);
+	}
+
+	/**
+	 * The checkpoint after an import from this one committed these batches,
+	 * which include the ones skipped because they were already committed.
+	 */
+	public ImportCheckpoint after(Collection<Integer> committed) {
+		int firstUncommitted = 0;
+		while (committed.contains(firstUncommitted)) {
+			firstUncommitted++;
+		}
+		int skipped = firstUncommitted;
+		return new ImportCheckpoint(resumeRow + skipped * batchSize, batchSize, committed.stream()
+				.filter(batch -> batch > skipped).map(batch -> batch - skipped).sorted().collect(Collectors.toList()));
+	}
+}
@@ -0,0 +1,135 @@
+package io.github.learnapachepoixssf.service;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import lombok.Getter;
+
+/**
+ * The state of an import running in the background. The parsing and writing
+ * threads update it while it runs and requests read it at any time. A failed
+ * job's checkpoint says where a resumed import would carry on.
+ */
+@Getter
+public class ImportJob implements ImportProgress {
+
+	public enum Status {
+		QUEUED, RUNNING, COMPLETED, FAILED, CANCELLED
+	}
+
+	private final String id;
+	private final String filename;
+	private final String parseType;
+	private final String persistenceType;
+	private final int writerThreads;
+	private final String resumedFrom;
+	private final Instant submittedAt = Instant.now();
+	private volatile Status status = Status.QUEUED;
+	private volatile Instant startedAt;
+	private volatile Instant finishedAt;
+	private volatile String error;
+	private volatile long sheetBytesRead;
+	private volatile long sheetSize = -1;
+	private volatile boolean cancelled = false;
+	private volatile ImportCheckpoint checkpoint;
+	private final AtomicLong rowsParsed = new AtomicLong();
+	private final AtomicLong rowsPersisted = new AtomicLong();
+
+	public ImportJob(String id, String filename, String parseType, String persistenceType, int writerThreads,
+			ImportCheckpoint checkpoint, String resumedFrom) {
+		this.id = id;
+		this.filename = filename;
+		this.parseType = parseType;
+		this.persistenceType = persistenceType;
+		this.writerThreads = writerThreads;
+		this.checkpoint = checkpoint;
+		this.resumedFrom = resumedFrom;
+	}
+
+	public long getRowsParsed() {
+		return rowsParsed.get();
+	}
+
+	public long getRowsPersisted() {
+		return rowsPersisted.get();
+	}
+
+	public boolean isDone() {
+		return finishedAt != null;
+	}
+
+	/**
+	 * Rows parsed per second since the job started.
+	 */
+	public double getRowsPerSecond() {
+		long millis = getElapsed().toMillis();
+		return millis > 0 ? getRowsParsed() * 1000.0 / millis : 0;
+	}
+
+	/**
+	 * Estimated from how much of the sheet has been read, or null when that is
+	 * not known, e.g. for DOM parsing.
+	 */
+	public Long getEtaSeconds() {
+		if (isDone()) {
+			return 0L;
+		}
+		long read = sheetBytesRead;
+		long size = sheetSize;
+		if (startedAt == null || read <= 0 || size <= 0) {
+			return null;
+		}
+		long elapsedMillis = getElapsed().toMillis();
+		return Math.max(0, size - read) * elapsedMillis / read / 1000;
+	}
+
+	public Duration getElapsed() {
+		Instant start = startedAt;
+		if (start == null) {
+			return Duration.ZERO;
+		}
+		Instant end = finishedAt;
+		return Duration.between(start, end != null ? end : Instant.now());
+	}
+
+	@Override
+	public void sheetBytesRead(long bytesRead, long sheetSize) {
+		this.sheetSize = sheetSize;
+		this.sheetBytesRead = bytesRead;
+	}
+
+	@Override
+	public void rowParsed() {
+		rowsParsed.incrementAndGet();
+	}
+
+	@Override
+	public void rowsPersisted(int rows) {
+		rowsPersisted.addAndGet(rows);
+	}
+
+	@Override
+	public void batchesCommitted(List<Integer> committedBatches) {
+		checkpoint = checkpoint.after(committedBatches);
+	}
+
+	/**
+	 * A queued job will not start, a running one stops at its next row.
+	 */
+	public void cancel() {
+		cancelled = true;
+	}
+
+	void started() {
+		startedAt = Instant.now();
+		status = Status.RUNNING;
+	}
+
+	void finished(Status status, String error) {
+		this.error = error;
+		finishedAt = Instant.now();
+		this.status = status;
+	}
+}
@@ -0,0 +1,211 @@
+package io.github.learnapachepoixssf.service;
+
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.apache.commons.io.FileUtils;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import io.github.learnapachepoixssf.config.WidgetProperties;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Runs imports of saved uploads on a bounded pool of threads, so requests do
+ * not wait for them. When the pool and its queue are full, new jobs are
+ * rejected rather than queued without limit. Finished jobs are forgotten once
+ * they are older than the configured retention. A failed job keeps its upload
+ * until then, so it can be resumed from its checkpoint.
+ */
+@Slf4j
+@Service
+public class ImportJobService {
+
+	@Autowired
+	protected XlsxService xlsxService;
+
+	@Autowired
+	protected WidgetProperties properties;
+
+	@Autowired
+	protected ResourceLimiter resourceLimiter;
+
+	@Autowired(required = false)
+	protected WorkerThreads workerThreads = WorkerThreads.PLATFORM;
+
+	private final Map<String, ImportJob> jobs = new ConcurrentHashMap<>();
+	private final Map<String, Path> resumableFiles = new ConcurrentHashMap<>();
+	private ThreadPoolExecutor executor;
+
+	@PostConstruct
+	public void start() {
+		WidgetProperties.Jobs config = properties.getJobs();
+		executor = new ThreadPoolExecutor(config.getThreads(), config.getThreads(), 0, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<>(Math.max(1, config.getQueueCapacity())),
+				workerThreads.newThreadFactory("import-job-"));
+	}
+
+	@PreDestroy
+	public void stop() {
+		executor.shutdownNow();
+		resumableFiles.values().forEach(this::deleteSavedFile);
+		resumableFiles.clear();
+	}
+
+	/**
+	 * Once accepted, the job owns the saved file and deletes it along with its
+	 * directory when done.
+	 * 
+	 * @throws RejectedExecutionException when there is no room for another job
+	 */
+	public ImportJob submit(Path savedFile, int batchSize, String parseType, String persistenceType,
+			int writerThreads) {
+		return submit(savedFile, ImportCheckpoint.start(0, batchSize), parseType, persistenceType, writerThreads);
+	}
+
+	/**
+	 * Import from a checkpoint, for example to start at a later row.
+	 * 
+	 * @throws RejectedExecutionException when there is no room for another job
+	 */
+	public ImportJob submit(Path savedFile, ImportCheckpoint checkpoint, String parseType, String persistenceType,
+			int writerThreads) {
+		return submit(savedFile, checkpoint, parseType, persistenceType, writerThreads, null);
+	}
+
+	/**
+	 * Start a new job that carries on from the checkpoint of a failed one, with
+	 * the same settings and the upload it kept. Each failed job can only be
+	 * resumed once.
+	 * 
+	 * @throws IllegalStateException       when the job did not fail or was
+	 *                                     already resumed
+	 * @throws RejectedExecutionException when there is no room for another job
+	 */
+	public Optional<ImportJob> resume(String id) {
+		Optional<ImportJob> failedJob = getJob(id);
+		if (failedJob.isEmpty()) {
+			return Optional.empty();
+		}
+		ImportJob failed = failedJob.get();
+		Path savedFile = failed.getStatus() == ImportJob.Status.FAILED ? resumableFiles.remove(id) : null;
+		if (savedFile == null) {
+			throw new IllegalStateException("Import job " + id + " cannot be resumed");
+		}
+		try {
+			return Optional.of(submit(savedFile, failed.getCheckpoint(), failed.getParseType(),
+					failed.getPersistenceType(), failed.getWriterThreads(), id));
+		} catch (RejectedExecutionException e) {
+			resumableFiles.put(id, savedFile);
+			throw e;
+		}
+	}
+
+	protected ImportJob submit(Path savedFile, ImportCheckpoint checkpoint, String parseType, String persistenceType,
+			int writerThreads, String resumedFrom) {
+		removeExpiredJobs();
+		ImportJob job = new ImportJob(UUID.randomUUID().toString(), savedFile.getFileName().toString(), parseType,
+				persistenceType, writerThreads, checkpoint, resumedFrom);
+		jobs.put(job.getId(), job);
+		try {
+			executor.execute(() -> run(job, savedFile));
+		} catch (RejectedExecutionException e) {
+			jobs.remove(job.getId());
+			throw e;
+		}
+		return job;
+	}
+
+	public Optional<ImportJob> getJob(String id) {
+		return Optional.ofNullable(jobs.get(id));
+	}
+
+	public List<ImportJob> getJobs() {
+		List<ImportJob> list = new ArrayList<>(jobs.values());
+		list.sort(Comparator.comparing(ImportJob::getSubmittedAt));
+		return list;
+	}
+
+	public Optional<ImportJob> cancel(String id) {
+		Optional<ImportJob> job = getJob(id);
+		job.ifPresent(ImportJob::cancel);
+		return job;
+	}
+
+	protected void run(ImportJob job, Path savedFile) {
+		boolean keepFile = false;
+		try {
+			if (job.isCancelled()) {
+				job.finished(ImportJob.Status.CANCELLED, null);
+				return;
+			}
+			int rowCount;
+			// Only running once it has its connections
+			try (PermitPool.Permit permit = resourceLimiter.acquireConnections(1 + job.getWriterThreads())) {
+				job.started();
+				rowCount = xlsxService.saveWidgets(savedFile,
+						ImportOptions.of(job.getCheckpoint(), job.getParseType(), job.getPersistenceType())
+								.withWriterThreads(job.getWriterThreads()).withProgress(job));
+			}
+			job.finished(ImportJob.Status.COMPLETED, null);
+			log.info("Import job {} saved {} widgets in {}", job.getId(), rowCount, job.getElapsed());
+		} catch (Exception e) {
+			if (isCancellation(e)) {
+				job.finished(ImportJob.Status.CANCELLED, null);
+				log.info("Import job {} cancelled after {} rows", job.getId(), job.getRowsParsed());
+			} else {
+				resumableFiles.put(job.getId(), savedFile);
+				keepFile = true;
+				job.finished(ImportJob.Status.FAILED, e.getMessage() != null ? e.getMessage() : e.toString());
+				log.warn("Import job {} failed, it can resume from row {}", job.getId(),
+						job.getCheckpoint().getResumeRow(), e);
+			}
+		} finally {
+			if (!keepFile) {
+				deleteSavedFile(savedFile);
+			}
+		}
+	}
+
+	protected void deleteSavedFile(Path savedFile) {
+		FileUtils.deleteQuietly(savedFile.getParent().toFile());
+	}
+
+	protected boolean isCancellation(Throwable t) {
+		for (; t != null; t = t.getCause()) {
+			if (t instanceof CancellationException) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	protected void removeExpiredJobs() {
+		Instant expiry = Instant.now().minus(properties.getJobs().getRetention());
+		jobs.values().removeIf(job -> {
+			if (job.isDone() && job.getFinishedAt().isBefore(expiry)) {
+				Path savedFile = resumableFiles.remove(job.getId());
+				if (savedFile != null) {
+					deleteSavedFile(savedFile);
+				}
+				return true;
+			}
+			return false;
+		});
+	}
+}
@@ -0,0 +1,44 @@
+package io.github.learnapachepoixssf.service;
+
+import lombok.AccessLevel;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.With;
+
+/**
+ * How widgets are imported: the checkpoint to start from, which gives the
+ * batch size, how a workbook is parsed and batches persisted, how many writer
+ * threads persist them and what follows the import as it runs. Uploads that
+ * are not workbooks, and workbooks parsed as they arrive, ignore the parse
+ * type.
+ */
+@Getter
+@With
+@AllArgsConstructor(access = AccessLevel.PRIVATE)
+public class ImportOptions {
+
+	private final ImportCheckpoint checkpoint;
+	private final String parseType;
+	private final String persistenceType;
+	private final int writerThreads;
+	private final ImportProgress progress;
+
+	/**
+	 * Import on the calling thread without following it.
+	 */
+	public static ImportOptions of(ImportCheckpoint checkpoint, String parseType, String persistenceType) {
+		return new ImportOptions(checkpoint, parseType, persistenceType, 0, ImportProgress.NONE);
+	}
+
+	public static ImportOptions of(int batchSize, String parseType, String persistenceType) {
+		return of(ImportCheckpoint.start(0, batchSize), parseType, persistenceType);
+	}
+
+	public int getBatchSize() {
+		return checkpoint.getBatchSize();
+	}
+
+	public int getFirstRow() {
+		return checkpoint.getResumeRow();
+	}
+}
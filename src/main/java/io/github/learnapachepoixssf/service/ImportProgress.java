@@ -0,0 +1,34 @@
+package io.github.learnapachepoixssf.service;
+
+import java.util.List;
+
+/**
+ * Follows an import of widgets as it runs. Rows are reported once parsed and
+ * again once written, and the import stops at the next row once cancelled.
+ */
+public interface ImportProgress extends XlsxStreamParser.ProgressListener {
+
+	ImportProgress NONE = new ImportProgress() {
+	};
+
+	@Override
+	default void sheetBytesRead(long bytesRead, long sheetSize) {
+	}
+
+	default void rowParsed() {
+	}
+
+	default void rowsPersisted(int rows) {
+	}
+
+	/**
+	 * Called once a pipelined import has stopped, whether it completed or not,
+	 * with every batch committed, including those its checkpoint already had.
+	 */
+	default void batchesCommitted(List<Integer> committedBatches) {
+	}
+
+	default boolean isCancelled() {
+		return false;
+	}
+}
@@ -0,0 +1,149 @@
+package io.github.learnapachepoixssf.service;
+
+import java.time.Instant;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import io.github.learnapachepoixssf.config.WidgetProperties;
+import lombok.Getter;
+
+/**
+ * What earlier uploads were imported as, keyed by a hash of their content and
+ * the persistence type they were saved with, so an upload seen before does not
+ * have to be parsed and saved again. A merge does not take the place of an
+ * import saved some other way, nor the other way around. The least recently
+ * used entries are evicted once there are too many, and entries expire after a
+ * while.
+ * <p>
+ * Importing an upload again only changes nothing if no widget it saved has
+ * been changed since. Widgets without an ID are always inserted, so an import
+ * of only those stays valid, but a batch with IDs may update any widget. Every
+ * such batch moves the update count on, and an entry that relies on the
+ * widgets it saved is only used while the count is what it was when the entry
+ * was recorded.
+ */
+@Component
+public class IngestCache {
+
+	@Autowired
+	protected WidgetProperties properties;
+
+	private final AtomicLong updates = new AtomicLong();
+
+	// In access order, so the eldest entry is the least recently used
+	private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+			return size() > properties.getIngest().getCacheSize();
+		}
+	};
+
+	/**
+	 * An earlier import of the same content from the same row with the same
+	 * persistence type, whose widgets are still as it saved them.
+	 */
+	public synchronized Optional<Entry> find(String contentHash, String persistenceType, int firstRow) {
+		removeExpired();
+		Entry entry = entries.get(key(contentHash, persistenceType));
+		if (entry == null || entry.getFirstRow() != firstRow || !entry.isInsertsOnly() && !isCurrent(entry)) {
+			return Optional.empty();
+		}
+		return Optional.of(entry);
+	}
+
+	/**
+	 * The latest import of an upload with this name, whose batches can be
+	 * compared with those of a changed upload. Only an import whose widgets no
+	 * other batch has updated since will do.
+	 */
+	public synchronized Optional<Entry> findLatest(String filename, String persistenceType, int firstRow,
+			int batchSize) {
+		removeExpired();
+		Entry latest = null;
+		for (Entry entry : entries.values()) {
+			if (entry.getFilename().equals(filename) && entry.getPersistenceType().equals(persistenceType)
+					&& entry.getFirstRow() == firstRow && entry.getBatchSize() == batchSize && isCurrent(entry)
+					&& (latest == null || entry.getRecordedAt().isAfter(latest.getRecordedAt()))) {
+				latest = entry;
+			}
+		}
+		return Optional.ofNullable(latest);
+	}
+
+	public synchronized void record(Entry entry) {
+		removeExpired();
+		entries.put(key(entry.getContentHash(), entry.getPersistenceType()), entry);
+	}
+
+	public synchronized void clear() {
+		entries.clear();
+	}
+
+	/**
+	 * Called for every batch saved that has a widget with an ID.
+	 */
+	public long widgetsUpdated() {
+		return updates.incrementAndGet();
+	}
+
+	public long getUpdates() {
+		return updates.get();
+	}
+
+	protected static String key(String contentHash, String persistenceType) {
+		return persistenceType + ":" + contentHash;
+	}
+
+	protected boolean isCurrent(Entry entry) {
+		return entry.getUpdates() == updates.get();
+	}
+
+	protected void removeExpired() {
+		Instant expiry = Instant.now().minus(properties.getIngest().getExpiry());
+		for (Iterator<Entry> i = entries.values().iterator(); i.hasNext();) {
+			if (i.next().getRecordedAt().isBefore(expiry)) {
+				i.remove();
+			}
+		}
+	}
+
+	@Getter
+	public static class Entry {
+		private final String contentHash;
+		private final String filename;
+		private final String persistenceType;
+		private final int firstRow;
+		private final int batchSize;
+		private final int rowCount;
+		private final List<Long> batchChecksums;
+		private final boolean insertsOnly;
+		/**
+		 * The update count after the import, or -1 if other batches updated
+		 * widgets while it ran.
+		 */
+		private final long updates;
+		private final Instant recordedAt = Instant.now();
+
+		public Entry(String contentHash, String filename, String persistenceType, int firstRow, int batchSize,
+				int rowCount, List<Long> batchChecksums, boolean insertsOnly, long updates) {
+			this.contentHash = contentHash;
+			this.filename = filename;
+			this.persistenceType = persistenceType;
+			this.firstRow = firstRow;
+			this.batchSize = batchSize;
+			this.rowCount = rowCount;
+			this.batchChecksums = List.copyOf(batchChecksums);
+			this.insertsOnly = insertsOnly;
+			this.updates = updates;
+		}
+	}
+}
@@ -0,0 +1,154 @@
+package io.github.learnapachepoixssf.service;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.apache.poi.ooxml.util.SAXHelper;
+import org.apache.poi.openxml4j.opc.OPCPackage;
+import org.apache.poi.openxml4j.opc.PackagePart;
+import org.apache.poi.ss.usermodel.RichTextString;
+import org.apache.poi.xssf.usermodel.XSSFRelation;
+import org.apache.poi.xssf.usermodel.XSSFRichTextString;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+
+/**
+ * Shared strings kept off heap in two memory mapped temporary files: the UTF-8
+ * bytes of every string, and an index of where each one starts. Lookups read
+ * straight from the mappings and are safe from several threads.
+ */
+public class MappedSharedStringsTable implements PlainTextSharedStrings, Closeable {
+
+	private final Path dataFile;
+	private final Path indexFile;
+	private volatile ByteBuffer data;
+	private volatile ByteBuffer index;
+	private int count;
+	private int uniqueCount;
+
+	public static MappedSharedStringsTable open(OPCPackage xlsxPackage)
+			throws IOException, SAXException, ParserConfigurationException {
+		List<PackagePart> parts = xlsxPackage.getPartsByContentType(XSSFRelation.SHARED_STRINGS.getContentType());
+		if (parts.isEmpty()) {
+			return new MappedSharedStringsTable(null);
+		}
+		try (InputStream stream = parts.get(0).getInputStream()) {
+			return new MappedSharedStringsTable(stream);
+		}
+	}
+
+	/**
+	 * @param sharedStringsXml the sharedStrings.xml part, or null for a workbook
+	 *                         without one
+	 */
+	public MappedSharedStringsTable(InputStream sharedStringsXml)
+			throws IOException, SAXException, ParserConfigurationException {
+		dataFile = Files.createTempFile("shared-strings", ".data");
+		indexFile = Files.createTempFile("shared-strings", ".index");
+		try {
+			write(sharedStringsXml);
+			data = map(dataFile);
+			index = map(indexFile);
+		} catch (IOException | SAXException | ParserConfigurationException | RuntimeException e) {
+			close();
+			throw e;
+		}
+	}
+
+	@Override
+	public RichTextString getItemAt(int idx) {
+		return new XSSFRichTextString(getString(idx));
+	}
+
+	@Override
+	public String getString(int idx) {
+		ByteBuffer data = this.data;
+		ByteBuffer index = this.index;
+		if (data == null || index == null) {
+			throw new IllegalStateException("Shared strings table has been closed");
+		}
+		if (idx < 0 || idx >= uniqueCount) {
+			throw new IndexOutOfBoundsException("No shared string at " + idx + " of " + uniqueCount);
+		}
+		long start = index.getLong(idx * Long.BYTES);
+		long end = idx + 1 < uniqueCount ? index.getLong((idx + 1) * Long.BYTES) : data.limit();
+		byte[] bytes = new byte[(int) (end - start)];
+		data.get((int) start, bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	@Override
+	public int getCount() {
+		return count;
+	}
+
+	@Override
+	public int getUniqueCount() {
+		return uniqueCount;
+	}
+
+	@Override
+	public void close() throws IOException {
+		data = null;
+		index = null;
+		Files.deleteIfExists(dataFile);
+		Files.deleteIfExists(indexFile);
+	}
+
+	protected void write(InputStream sharedStringsXml) throws IOException, SAXException, ParserConfigurationException {
+		try (OutputStream dataOut = new BufferedOutputStream(Files.newOutputStream(dataFile));
+				DataOutputStream indexOut = new DataOutputStream(
+						new BufferedOutputStream(Files.newOutputStream(indexFile)))) {
+			SharedStringsXmlHandler handler = new SharedStringsXmlHandler() {
+				long offset = 0;
+
+				@Override
+				protected void sharedString(String value) {
+					byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+					try {
+						indexOut.writeLong(offset);
+						dataOut.write(bytes);
+					} catch (IOException e) {
+						throw new UncheckedIOException(e);
+					}
+					offset += bytes.length;
+					uniqueCount++;
+				}
+			};
+			if (sharedStringsXml != null) {
+				XMLReader reader = SAXHelper.newXMLReader();
+				reader.setContentHandler(handler);
+				try {
+					reader.parse(new InputSource(sharedStringsXml));
+				} catch (UncheckedIOException e) {
+					throw e.getCause();
+				}
+			}
+			count = Math.max(handler.getCount(), uniqueCount);
+		}
+		if (Files.size(dataFile) > Integer.MAX_VALUE) {
+			throw new IOException("Shared strings over 2GB are not supported");
+		}
+	}
+
+	protected ByteBuffer map(Path file) throws IOException {
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+	}
+}
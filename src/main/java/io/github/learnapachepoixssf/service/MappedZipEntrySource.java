@@ -0,0 +1,331 @@
+package io.github.learnapachepoixssf.service;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.poi.openxml4j.util.ZipEntrySource;
+
+/**
+ * Serves the entries of a zip file from a read only memory mapping of it, for
+ * use with OPCPackage.open(ZipEntrySource). Entries are inflated straight from
+ * the mapped region, so no stream or buffer copies of the compressed bytes are
+ * made and nothing is held on the heap. Entries read to the end are checked
+ * against their CRC. ZIP64 archives are not supported.
+ * <p>
+ * Unlike POI's own zip file, nothing limits what an entry inflates to unless
+ * an upload guard is set.
+ */
+public class MappedZipEntrySource implements ZipEntrySource {
+
+	static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+	static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+	static final int END_OF_CENTRAL_DIRECTORY_SIGNATURE = 0x06054b50;
+	static final int END_OF_CENTRAL_DIRECTORY_SIZE = 22;
+	static final int MAX_COMMENT_SIZE = 0xFFFF;
+
+	private final Map<String, MappedEntry> entries = new LinkedHashMap<>();
+	private volatile ByteBuffer buffer;
+	private UploadGuard uploadGuard = null;
+
+	public static MappedZipEntrySource open(Path path) throws IOException {
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			long size = channel.size();
+			if (size > Integer.MAX_VALUE) {
+				throw new ZipException("Cannot map zip files over 2GB: " + path);
+			}
+			// The mapping stays valid after the channel is closed
+			return new MappedZipEntrySource(channel.map(FileChannel.MapMode.READ_ONLY, 0, size));
+		}
+	}
+
+	protected MappedZipEntrySource(ByteBuffer buffer) throws ZipException {
+		this.buffer = buffer.order(ByteOrder.LITTLE_ENDIAN);
+		readCentralDirectory();
+	}
+
+	/**
+	 * Count every entry against the guard as it is inflated, the shared strings
+	 * and other parts read by POI included, see UploadGuard.
+	 */
+	public void setUploadGuard(UploadGuard uploadGuard) {
+		this.uploadGuard = uploadGuard;
+	}
+
+	@Override
+	public Enumeration<? extends ZipArchiveEntry> getEntries() {
+		List<ZipArchiveEntry> list = new ArrayList<>(entries.values());
+		return Collections.enumeration(list);
+	}
+
+	@Override
+	public ZipArchiveEntry getEntry(String path) {
+		return entries.get(path);
+	}
+
+	@Override
+	public InputStream getInputStream(ZipArchiveEntry entry) throws IOException {
+		ByteBuffer mapped = buffer;
+		if (mapped == null) {
+			throw new IOException("Zip file has been closed");
+		}
+		MappedEntry mappedEntry = entries.get(entry.getName());
+		if (mappedEntry == null) {
+			throw new ZipException("No such entry: " + entry.getName());
+		}
+		long localHeader = mappedEntry.localHeaderOffset;
+		if (localHeader > mapped.limit() - 30 || mapped.getInt((int) localHeader) != LOCAL_HEADER_SIGNATURE) {
+			throw new ZipException("Invalid local header for entry: " + entry.getName());
+		}
+		// The lengths in the local header may differ from the central directory
+		long dataOffset = localHeader + 30 + unsignedShort(mapped, (int) localHeader + 26)
+				+ unsignedShort(mapped, (int) localHeader + 28);
+		if (dataOffset + mappedEntry.getCompressedSize() > mapped.limit()) {
+			throw new ZipException("Entry extends past the end of the zip file: " + entry.getName());
+		}
+		ByteBuffer data = mapped.duplicate().position((int) dataOffset)
+				.limit((int) (dataOffset + mappedEntry.getCompressedSize())).slice();
+		InputStream stream;
+		switch (mappedEntry.getMethod()) {
+		case ZipEntry.STORED:
+			stream = new CrcCheckingInputStream(new ByteBufferInputStream(data), mappedEntry);
+			break;
+		case ZipEntry.DEFLATED:
+			stream = new CrcCheckingInputStream(new InflatingInputStream(data), mappedEntry);
+			break;
+		default:
+			throw new ZipException("Unsupported compression method " + mappedEntry.getMethod() + " for entry: "
+					+ entry.getName());
+		}
+		long compressedSize = mappedEntry.getCompressedSize();
+		return uploadGuard == null ? stream : uploadGuard.guard(entry.getName(), stream, () -> compressedSize);
+	}
+
+	@Override
+	public void close() {
+		// The mapping itself is released once it is garbage collected
+		buffer = null;
+	}
+
+	@Override
+	public boolean isClosed() {
+		return buffer == null;
+	}
+
+	protected void readCentralDirectory() throws ZipException {
+		int end = findEndOfCentralDirectory();
+		int totalEntries = unsignedShort(buffer, end + 10);
+		long centralDirectoryOffset = unsignedInt(buffer, end + 16);
+		if (totalEntries == 0xFFFF || centralDirectoryOffset == 0xFFFFFFFFL) {
+			throw new ZipException("ZIP64 archives are not supported");
+		}
+		if (centralDirectoryOffset > end) {
+			throw new ZipException("Central directory starts past its end");
+		}
+		int offset = (int) centralDirectoryOffset;
+		for (int i = 0; i < totalEntries; i++) {
+			if (offset > end - 46 || buffer.getInt(offset) != CENTRAL_HEADER_SIGNATURE) {
+				throw new ZipException("Invalid central directory header at " + offset);
+			}
+			int flags = unsignedShort(buffer, offset + 8);
+			int nameLength = unsignedShort(buffer, offset + 28);
+			int extraLength = unsignedShort(buffer, offset + 30);
+			int commentLength = unsignedShort(buffer, offset + 32);
+			if (offset + 46 + nameLength > end) {
+				throw new ZipException("Invalid central directory header at " + offset);
+			}
+			byte[] name = new byte[nameLength];
+			buffer.get(offset + 46, name);
+			// General purpose flag 11 marks UTF-8 names
+			Charset charset = (flags & 0x800) != 0 ? StandardCharsets.UTF_8 : StandardCharsets.ISO_8859_1;
+			MappedEntry entry = new MappedEntry(new String(name, charset), unsignedInt(buffer, offset + 42));
+			entry.setMethod(unsignedShort(buffer, offset + 10));
+			entry.setCrc(unsignedInt(buffer, offset + 16));
+			entry.setCompressedSize(unsignedInt(buffer, offset + 20));
+			entry.setSize(unsignedInt(buffer, offset + 24));
+			entries.put(entry.getName(), entry);
+			offset += 46 + nameLength + extraLength + commentLength;
+		}
+	}
+
+	protected int findEndOfCentralDirectory() throws ZipException {
+		int limit = buffer.limit();
+		int lowest = Math.max(0, limit - END_OF_CENTRAL_DIRECTORY_SIZE - MAX_COMMENT_SIZE);
+		for (int offset = limit - END_OF_CENTRAL_DIRECTORY_SIZE; offset >= lowest; offset--) {
+			if (buffer.getInt(offset) == END_OF_CENTRAL_DIRECTORY_SIGNATURE) {
+				return offset;
+			}
+		}
+		throw new ZipException("Not a zip file, no end of central directory found");
+	}
+
+	static int unsignedShort(ByteBuffer buffer, int offset) {
+		return Short.toUnsignedInt(buffer.getShort(offset));
+	}
+
+	static long unsignedInt(ByteBuffer buffer, int offset) {
+		return Integer.toUnsignedLong(buffer.getInt(offset));
+	}
+
+	static class MappedEntry extends ZipArchiveEntry {
+		final long localHeaderOffset;
+
+		MappedEntry(String name, long localHeaderOffset) {
+			super(name);
+			this.localHeaderOffset = localHeaderOffset;
+		}
+	}
+
+	static class ByteBufferInputStream extends InputStream {
+		private final ByteBuffer data;
+
+		ByteBufferInputStream(ByteBuffer data) {
+			this.data = data;
+		}
+
+		@Override
+		public int read() {
+			return data.hasRemaining() ? data.get() & 0xFF : -1;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) {
+			if (len == 0) {
+				return 0;
+			}
+			if (!data.hasRemaining()) {
+				return -1;
+			}
+			int count = Math.min(len, data.remaining());
+			data.get(b, off, count);
+			return count;
+		}
+
+		@Override
+		public int available() {
+			return data.remaining();
+		}
+	}
+
+	/**
+	 * Checks the CRC the central directory gives once the entry has been read to
+	 * the end.
+	 */
+	static class CrcCheckingInputStream extends InputStream {
+		private final InputStream in;
+		private final ZipArchiveEntry entry;
+		private final CRC32 crc = new CRC32();
+		private final byte[] single = new byte[1];
+
+		CrcCheckingInputStream(InputStream in, ZipArchiveEntry entry) {
+			this.in = in;
+			this.entry = entry;
+		}
+
+		@Override
+		public int read() throws IOException {
+			return read(single, 0, 1) == -1 ? -1 : single[0] & 0xFF;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int count = in.read(b, off, len);
+			if (count > 0) {
+				crc.update(b, off, count);
+			} else if (count == -1 && crc.getValue() != entry.getCrc()) {
+				throw new ZipException("CRC mismatch for entry: " + entry.getName());
+			}
+			return count;
+		}
+
+		@Override
+		public int available() throws IOException {
+			return in.available();
+		}
+
+		@Override
+		public void close() throws IOException {
+			in.close();
+		}
+	}
+
+	/**
+	 * Inflates directly from the mapped region.
+	 */
+	static class InflatingInputStream extends InputStream {
+		private final Inflater inflater = new Inflater(true);
+		private final byte[] single = new byte[1];
+		private boolean dummyByteAdded = false;
+		private boolean closed = false;
+
+		InflatingInputStream(ByteBuffer data) {
+			inflater.setInput(data);
+		}
+
+		@Override
+		public int read() throws IOException {
+			return read(single, 0, 1) == -1 ? -1 : single[0] & 0xFF;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (closed) {
+				throw new IOException("Stream closed");
+			}
+			if (len == 0) {
+				return 0;
+			}
+			try {
+				while (true) {
+					int count = inflater.inflate(b, off, len);
+					if (count > 0) {
+						return count;
+					}
+					if (inflater.finished()) {
+						return -1;
+					}
+					if (inflater.needsDictionary()) {
+						throw new ZipException("Entry needs a preset dictionary");
+					}
+					if (inflater.needsInput()) {
+						// Raw inflation may need one byte past the end of the data
+						if (dummyByteAdded) {
+							throw new EOFException("Unexpected end of compressed entry");
+						}
+						inflater.setInput(new byte[1]);
+						dummyByteAdded = true;
+					}
+				}
+			} catch (DataFormatException e) {
+				throw new ZipException("Invalid compressed data: " + e.getMessage());
+			}
+		}
+
+		@Override
+		public void close() {
+			if (!closed) {
+				closed = true;
+				inflater.end();
+			}
+		}
+	}
+}
@@ -0,0 +1,152 @@
+package io.github.learnapachepoixssf.service;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.sql.DataSource;
+
+import org.springframework.jdbc.core.ConnectionCallback;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import io.github.learnapachepoixssf.model.Widget;
+
+/**
+ * Saves a batch of widgets by loading it into a staging table and merging that
+ * into the widget table with one statement. Widgets with an ID update the row
+ * with that ID, and the last of them wins when a batch has the same ID twice.
+ * The batch fails if there is no row with that ID, since inserting it could
+ * take an ID the allocator is yet to hand out. Widgets without an ID are given
+ * one from the ID allocator. The staging table is temporary, so each
+ * connection has its own, and it is emptied before every batch.
+ */
+public class MergeWidgetWriter {
+
+	static final String TABLE = "widget";
+	static final String STAGING_TABLE = "widget_staging";
+	static final List<String> COLUMNS = List.of("id", "name");
+
+	private final DataSource dataSource;
+	private final BulkInsertDialect dialect;
+	private final SequenceIdAllocator idAllocator;
+	private final int rowsPerStatement;
+	private final String createStagingTable;
+	private final String fullInsert;
+	private final String merge;
+
+	public MergeWidgetWriter(DataSource dataSource, BulkInsertDialect dialect, SequenceIdAllocator idAllocator) {
+		this.dataSource = dataSource;
+		this.dialect = dialect;
+		this.idAllocator = idAllocator;
+		this.rowsPerStatement = dialect.maxRowsPerStatement();
+		this.createStagingTable = dialect.createTemporaryTable(STAGING_TABLE, "id bigint, name varchar(50)");
+		this.fullInsert = dialect.multiRowInsert(STAGING_TABLE, COLUMNS, rowsPerStatement);
+		this.merge = dialect.merge(TABLE, STAGING_TABLE, "id", COLUMNS,
+				List.of("s.id", "s.name"));
+	}
+
+	public void write(List<Widget> widgets) {
+		if (widgets.isEmpty()) {
+			return;
+		}
+		List<Widget> rows = lastOfEachId(widgets);
+		long[] newIds = idAllocator.nextIds((int) rows.stream().filter(Widget::isNew).count());
+		// All on one connection, which is the only one that sees its staging table
+		new JdbcTemplate(dataSource).execute((ConnectionCallback<Void>) connection -> {
+			try (Statement statement = connection.createStatement()) {
+				statement.execute(createStagingTable);
+				// A batch that failed on this connection may have left its rows
+				statement.executeUpdate("delete from " + STAGING_TABLE);
+			}
+			stage(connection, rows, newIds);
+			try (Statement statement = connection.createStatement()) {
+				checkIdsExist(statement, newIds);
+				statement.executeUpdate(merge);
+			}
+			return null;
+		});
+	}
+
+	/**
+	 * The widgets without an ID, and the last widget with each ID, since a
+	 * merge cannot match a row twice.
+	 */
+	protected List<Widget> lastOfEachId(List<Widget> widgets) {
+		List<Widget> rows = new ArrayList<>(widgets.size());
+		Map<Long, Widget> byId = new LinkedHashMap<>();
+		for (Widget widget : widgets) {
+			if (widget.isNew()) {
+				rows.add(widget);
+			} else {
+				byId.put(widget.getId(), widget);
+			}
+		}
+		rows.addAll(byId.values());
+		return rows;
+	}
+
+	/**
+	 * Only the IDs just allocated may be missing from the widget table.
+	 */
+	protected void checkIdsExist(Statement statement, long[] newIds) throws SQLException {
+		long[] allocated = newIds.clone();
+		Arrays.sort(allocated);
+		long missing = 0;
+		long firstMissing = 0;
+		try (ResultSet unmatched = statement.executeQuery("select s.id from " + STAGING_TABLE + " s where not exists"
+				+ " (select 1 from " + TABLE + " t where t.id = s.id)")) {
+			while (unmatched.next()) {
+				long id = unmatched.getLong(1);
+				if (Arrays.binarySearch(allocated, id) < 0 && missing++ == 0) {
+					firstMissing = id;
+				}
+			}
+		}
+		if (missing > 0) {
+			throw new IllegalArgumentException(
+					missing + " widgets to update are not saved, such as the widget with ID " + firstMissing);
+		}
+	}
+
+	protected void stage(Connection connection, List<Widget> widgets, long[] newIds) throws SQLException {
+		int[] nextNewId = { 0 };
+		int start = 0;
+		if (widgets.size() >= rowsPerStatement) {
+			try (PreparedStatement insert = connection.prepareStatement(fullInsert)) {
+				for (; start + rowsPerStatement <= widgets.size(); start += rowsPerStatement) {
+					setValues(insert, widgets, newIds, nextNewId, start, rowsPerStatement);
+					insert.addBatch();
+				}
+				insert.executeBatch();
+			}
+		}
+		int remaining = widgets.size() - start;
+		if (remaining > 0) {
+			try (PreparedStatement insert = connection
+					.prepareStatement(dialect.multiRowInsert(STAGING_TABLE, COLUMNS, remaining))) {
+				setValues(insert, widgets, newIds, nextNewId, start, remaining);
+				insert.executeUpdate();
+			}
+		}
+	}
+
+	/**
+	 * New widgets take the next of the IDs allocated for them, in order.
+	 */
+	protected void setValues(PreparedStatement insert, List<Widget> widgets, long[] newIds, int[] nextNewId,
+			int start, int rows) throws SQLException {
+		int parameter = 1;
+		for (int i = start; i < start + rows; i++) {
+			Widget widget = widgets.get(i);
+			insert.setLong(parameter++, widget.getId() != null ? widget.getId() : newIds[nextNewId[0]++]);
+			insert.setString(parameter++, widget.getName());
+		}
+	}
+}
@@ -0,0 +1,165 @@
+package io.github.learnapachepoixssf.service;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.apache.poi.ooxml.util.SAXHelper;
+import org.apache.poi.openxml4j.opc.OPCPackage;
+import org.apache.poi.openxml4j.opc.PackagePart;
+import org.apache.poi.ss.usermodel.RichTextString;
+import org.apache.poi.xssf.usermodel.XSSFRelation;
+import org.apache.poi.xssf.usermodel.XSSFRichTextString;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+
+/**
+ * Shared strings kept as UTF-8 bytes in a direct buffer outside the heap, with
+ * the start of each string in an int array. Workbooks tend to repeat a few
+ * strings many times, so a direct mapped cache of decoded strings sits in
+ * front of the buffer: string i is kept in slot i modulo the cache size,
+ * replacing whichever string was there. Lookups are safe from several threads
+ * and take no lock.
+ */
+public class OffHeapSharedStringsTable implements PlainTextSharedStrings, Closeable {
+
+	public static final int DEFAULT_CACHE_SIZE = 1024;
+
+	static final int INITIAL_CAPACITY = 64 * 1024;
+
+	// Written and read without a lock, the final fields of a CachedString make that safe
+	private final CachedString[] cache;
+	private ByteBuffer data = ByteBuffer.allocateDirect(INITIAL_CAPACITY);
+	// offsets[i] is where string i starts, offsets[uniqueCount] where the last one ends
+	private int[] offsets = new int[1024];
+	private int count;
+	private int uniqueCount;
+
+	public static OffHeapSharedStringsTable open(OPCPackage xlsxPackage, int cacheSize)
+			throws IOException, SAXException, ParserConfigurationException {
+		List<PackagePart> parts = xlsxPackage.getPartsByContentType(XSSFRelation.SHARED_STRINGS.getContentType());
+		if (parts.isEmpty()) {
+			return new OffHeapSharedStringsTable(null, cacheSize);
+		}
+		try (InputStream stream = parts.get(0).getInputStream()) {
+			return new OffHeapSharedStringsTable(stream, cacheSize);
+		}
+	}
+
+	/**
+	 * @param sharedStringsXml the sharedStrings.xml part, or null for a workbook
+	 *                         without one
+	 * @param cacheSize        how many decoded strings to keep, 0 for none
+	 */
+	public OffHeapSharedStringsTable(InputStream sharedStringsXml, int cacheSize)
+			throws IOException, SAXException, ParserConfigurationException {
+		if (sharedStringsXml != null) {
+			read(sharedStringsXml);
+		}
+		data.flip();
+		offsets = Arrays.copyOf(offsets, uniqueCount + 1);
+		// No more slots than strings, so small tables do not allocate the whole cache
+		this.cache = cacheSize > 0 ? new CachedString[Math.min(cacheSize, Math.max(1, uniqueCount))] : null;
+	}
+
+	/**
+	 * A new rich text string each time, since they can be changed. The parser
+	 * uses getString instead.
+	 */
+	@Override
+	public RichTextString getItemAt(int idx) {
+		return new XSSFRichTextString(getString(idx));
+	}
+
+	@Override
+	public String getString(int idx) {
+		if (idx < 0 || idx >= uniqueCount) {
+			throw new IndexOutOfBoundsException("No shared string at " + idx + " of " + uniqueCount);
+		}
+		if (cache == null) {
+			return decode(idx);
+		}
+		int slot = idx % cache.length;
+		CachedString cached = cache[slot];
+		if (cached != null && cached.idx == idx) {
+			return cached.value;
+		}
+		// Another thread may decode the same string, or take the slot, meanwhile
+		String value = decode(idx);
+		cache[slot] = new CachedString(idx, value);
+		return value;
+	}
+
+	@Override
+	public int getCount() {
+		return count;
+	}
+
+	@Override
+	public int getUniqueCount() {
+		return uniqueCount;
+	}
+
+	@Override
+	public void close() {
+		if (cache != null) {
+			Arrays.fill(cache, null);
+		}
+	}
+
+	protected String decode(int idx) {
+		int start = offsets[idx];
+		byte[] bytes = new byte[offsets[idx + 1] - start];
+		data.get(start, bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	protected void read(InputStream sharedStringsXml) throws IOException, SAXException, ParserConfigurationException {
+		SharedStringsXmlHandler handler = new SharedStringsXmlHandler() {
+			@Override
+			protected void sharedString(String value) {
+				add(value.getBytes(StandardCharsets.UTF_8));
+			}
+		};
+		XMLReader reader = SAXHelper.newXMLReader();
+		reader.setContentHandler(handler);
+		reader.parse(new InputSource(sharedStringsXml));
+		count = Math.max(handler.getCount(), uniqueCount);
+	}
+
+	static class CachedString {
+		final int idx;
+		final String value;
+
+		CachedString(int idx, String value) {
+			this.idx = idx;
+			this.value = value;
+		}
+	}
+
+	protected void add(byte[] bytes) {
+		if (data.remaining() < bytes.length) {
+			long needed = (long) data.position() + bytes.length;
+			if (needed > Integer.MAX_VALUE) {
+				throw new IllegalStateException("Shared strings over 2GB are not supported");
+			}
+			ByteBuffer larger = ByteBuffer
+					.allocateDirect((int) Math.min(Integer.MAX_VALUE, Math.max(needed, 2L * data.capacity())));
+			data.flip();
+			larger.put(data);
+			data = larger;
+		}
+		data.put(bytes);
+		if (uniqueCount + 1 == offsets.length) {
+			offsets = Arrays.copyOf(offsets, offsets.length * 2);
+		}
+		offsets[++uniqueCount] = data.position();
+	}
+}
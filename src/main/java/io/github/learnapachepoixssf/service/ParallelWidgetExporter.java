@@ -0,0 +1,409 @@
+package io.github.learnapachepoixssf.service;
+
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.SequenceInputStream;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.ZipEntry;
+
+import javax.sql.DataSource;
+
+import org.apache.commons.compress.archivers.zip.Zip64Mode;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.output.CountingOutputStream;
+import org.apache.poi.ss.SpreadsheetVersion;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+/**
+ * Exports the widget table by splitting it into chunks of rows by ID and
+ * rendering the sheet XML of each chunk on its own thread. Each chunk is
+ * deflated into a temporary file and ends on a sync flush, so the compressed
+ * chunks of a sheet can be joined into one zip entry without inflating them
+ * again. Once a sheet is full the export carries on in the next one.
+ * <p>
+ * The chunk boundaries are read once at the start. Widgets saved while the
+ * export runs may be left out.
+ */
+public class ParallelWidgetExporter {
+
+	public static final int MAX_ROWS_PER_SHEET = SpreadsheetVersion.EXCEL2007.getMaxRows();
+
+	static final int BUFFER_SIZE = 64 * 1024;
+
+	private final XlsxService xlsxService;
+	private final DataSource dataSource;
+	private final int parallelism;
+	private final int chunkRows;
+	private final int rowsPerSheet;
+	private final int pageSize;
+	private final ThreadFactory threadFactory;
+
+	public ParallelWidgetExporter(XlsxService xlsxService, DataSource dataSource, int parallelism, int chunkRows,
+			int rowsPerSheet, int pageSize) {
+		this(xlsxService, dataSource, parallelism, chunkRows, rowsPerSheet, pageSize, Executors.defaultThreadFactory());
+	}
+
+	public ParallelWidgetExporter(XlsxService xlsxService, DataSource dataSource, int parallelism, int chunkRows,
+			int rowsPerSheet, int pageSize, ThreadFactory threadFactory) {
+		if (chunkRows < 1 || rowsPerSheet < 1 || rowsPerSheet > MAX_ROWS_PER_SHEET) {
+			throw new IllegalArgumentException("Invalid chunk rows " + chunkRows + " or rows per sheet " + rowsPerSheet);
+		}
+		this.xlsxService = xlsxService;
+		this.dataSource = dataSource;
+		this.parallelism = parallelism > 0 ? parallelism : Runtime.getRuntime().availableProcessors();
+		this.chunkRows = chunkRows;
+		this.rowsPerSheet = rowsPerSheet;
+		this.pageSize = pageSize;
+		this.threadFactory = threadFactory;
+	}
+
+	public int export(OutputStream out) throws IOException {
+		List<Chunk> chunks = findChunks();
+		Path directory = Files.createTempDirectory("widget-export");
+		try {
+			renderInParallel(chunks, directory);
+			int sheetCount = chunks.isEmpty() ? 1 : chunks.get(chunks.size() - 1).sheetIndex + 1;
+			writePackage(out, sheetCount, chunks);
+		} finally {
+			FileUtils.deleteQuietly(directory.toFile());
+		}
+		int rowCount = 0;
+		for (Chunk chunk : chunks) {
+			rowCount += chunk.rowsWritten;
+		}
+		return rowCount;
+	}
+
+	/**
+	 * Finds the ID at the end of every chunk, and of every sheet, so that no
+	 * chunk spans two sheets. Each end is probed from the one before it through
+	 * the primary key, so the table is never numbered or counted as a whole.
+	 */
+	protected List<Chunk> findChunks() {
+		JdbcTemplate jdbcTemplate = new JdbcTemplate(dataSource);
+		List<Chunk> chunks = new ArrayList<>();
+		long rowNumber = 0;
+		long afterId = Long.MIN_VALUE;
+		while (true) {
+			int rows = (int) Math.min(chunkRows - rowNumber % chunkRows, rowsPerSheet - rowNumber % rowsPerSheet);
+			List<Long> lastId = jdbcTemplate.queryForList(
+					"select id from widget where id > ? order by id limit 1 offset ?", Long.class, afterId, rows - 1);
+			if (lastId.isEmpty()) {
+				// Fewer rows than a chunk are left
+				long[] rest = jdbcTemplate.queryForObject("select count(*), max(id) from widget where id > ?",
+						(rs, rowNum) -> new long[] { rs.getLong(1), rs.getLong(2) }, afterId);
+				if (rest[0] == 0) {
+					return chunks;
+				}
+				rows = (int) rest[0];
+				lastId = List.of(rest[1]);
+			}
+			Chunk chunk = new Chunk();
+			chunk.sheetIndex = (int) (rowNumber / rowsPerSheet);
+			chunk.firstRowIndex = (int) (rowNumber % rowsPerSheet);
+			chunk.rows = rows;
+			chunk.afterId = afterId;
+			chunk.lastId = lastId.get(0);
+			chunks.add(chunk);
+			rowNumber += rows;
+			afterId = chunk.lastId;
+		}
+	}
+
+	protected void renderInParallel(List<Chunk> chunks, Path directory) throws IOException {
+		ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(parallelism, chunks.size())),
+				threadFactory);
+		try {
+			CompletionService<Void> completionService = new ExecutorCompletionService<>(executor);
+			for (Chunk chunk : chunks) {
+				completionService.submit(() -> {
+					render(chunk, directory);
+					return null;
+				});
+			}
+			for (int i = 0; i < chunks.size(); i++) {
+				// Stop at the first failure instead of waiting for the other chunks
+				completionService.take().get();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while exporting widgets");
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			} else if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			} else if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new IOException("Cannot export widgets", cause);
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	protected void render(Chunk chunk, Path directory) throws IOException {
+		chunk.file = Files.createTempFile(directory, "chunk", ".deflate");
+		try (OutputStream file = Files.newOutputStream(chunk.file)) {
+			Fragment fragment = new Fragment(file, false);
+			Writer xml = fragment.writer();
+			int[] rowIndex = { chunk.firstRowIndex };
+			int lastRowIndex = chunk.firstRowIndex + chunk.rows;
+			xlsxService.forEachSavedWidget(chunk.afterId, chunk.lastId, pageSize, (id, name) -> {
+				// Widgets saved since the chunks were found must not overrun the next chunk
+				if (rowIndex[0] < lastRowIndex) {
+					try {
+						XlsxParts.widgetRow(xml, rowIndex[0]++, id, name);
+					} catch (IOException e) {
+						throw new UncheckedIOException(e);
+					}
+				}
+			});
+			chunk.rowsWritten = rowIndex[0] - chunk.firstRowIndex;
+			fragment.close(xml);
+			chunk.crc = fragment.crc.getValue();
+			chunk.size = fragment.uncompressed.getByteCount();
+			chunk.compressedSize = fragment.compressed.getByteCount();
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+	}
+
+	protected void writePackage(OutputStream out, int sheetCount, List<Chunk> chunks) throws IOException {
+		ZipArchiveOutputStream zip = new ZipArchiveOutputStream(out);
+		zip.setUseZip64(Zip64Mode.AsNeeded);
+		writePart(zip, XlsxParts.CONTENT_TYPES, XlsxParts.contentTypes(sheetCount));
+		writePart(zip, XlsxParts.ROOT_RELATIONSHIPS, XlsxParts.rootRelationships());
+		writePart(zip, XlsxParts.WORKBOOK, XlsxParts.workbook(sheetCount));
+		writePart(zip, XlsxParts.WORKBOOK_RELATIONSHIPS, XlsxParts.workbookRelationships(sheetCount));
+		writePart(zip, XlsxParts.STYLES, XlsxParts.styles());
+		byte[] start = deflate(XlsxParts.sheetStart(), false);
+		byte[] end = deflate(XlsxParts.sheetEnd(), true);
+		long startCrc = crc(XlsxParts.sheetStart());
+		long endCrc = crc(XlsxParts.sheetEnd());
+		int startSize = XlsxParts.sheetStart().getBytes(StandardCharsets.UTF_8).length;
+		int endSize = XlsxParts.sheetEnd().getBytes(StandardCharsets.UTF_8).length;
+		int next = 0;
+		for (int sheetIndex = 0; sheetIndex < sheetCount; sheetIndex++) {
+			List<InputStream> streams = new ArrayList<>();
+			streams.add(new ByteArrayInputStream(start));
+			long crc = startCrc;
+			long size = startSize;
+			long compressedSize = start.length;
+			for (; next < chunks.size() && chunks.get(next).sheetIndex == sheetIndex; next++) {
+				Chunk chunk = chunks.get(next);
+				streams.add(new LazyFileInputStream(chunk.file));
+				crc = crc32Combine(crc, chunk.crc, chunk.size);
+				size += chunk.size;
+				compressedSize += chunk.compressedSize;
+			}
+			streams.add(new ByteArrayInputStream(end));
+			crc = crc32Combine(crc, endCrc, endSize);
+			size += endSize;
+			compressedSize += end.length;
+
+			ZipArchiveEntry entry = new ZipArchiveEntry(XlsxParts.sheetPartName(sheetIndex));
+			entry.setMethod(ZipEntry.DEFLATED);
+			entry.setCrc(crc);
+			entry.setSize(size);
+			entry.setCompressedSize(compressedSize);
+			Enumeration<InputStream> parts = Collections.enumeration(streams);
+			try (InputStream raw = new SequenceInputStream(parts)) {
+				zip.addRawArchiveEntry(entry, raw);
+			}
+		}
+		zip.finish();
+		zip.flush();
+	}
+
+	protected void writePart(ZipArchiveOutputStream zip, String name, String xml) throws IOException {
+		ZipArchiveEntry entry = new ZipArchiveEntry(name);
+		entry.setMethod(ZipEntry.DEFLATED);
+		zip.putArchiveEntry(entry);
+		zip.write(xml.getBytes(StandardCharsets.UTF_8));
+		zip.closeArchiveEntry();
+	}
+
+	protected byte[] deflate(String xml, boolean last) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		Fragment fragment = new Fragment(bytes, last);
+		Writer writer = fragment.writer();
+		writer.write(xml);
+		fragment.close(writer);
+		return bytes.toByteArray();
+	}
+
+	protected long crc(String xml) {
+		CRC32 crc = new CRC32();
+		crc.update(xml.getBytes(StandardCharsets.UTF_8));
+		return crc.getValue();
+	}
+
+	/**
+	 * The CRC-32 of two blocks of data joined together, from the CRC-32 of each
+	 * and the length of the second, as crc32_combine in zlib.
+	 */
+	static long crc32Combine(long crc1, long crc2, long length2) {
+		if (length2 <= 0) {
+			return crc1;
+		}
+		long[] even = new long[32];
+		long[] odd = new long[32];
+		// The operator for one zero bit
+		odd[0] = 0xEDB88320L;
+		long row = 1;
+		for (int n = 1; n < 32; n++) {
+			odd[n] = row;
+			row <<= 1;
+		}
+		// Two zero bits, then four
+		gf2MatrixSquare(even, odd);
+		gf2MatrixSquare(odd, even);
+		// Apply length2 zero bytes to crc1, starting with one byte
+		do {
+			gf2MatrixSquare(even, odd);
+			if ((length2 & 1) != 0) {
+				crc1 = gf2MatrixTimes(even, crc1);
+			}
+			length2 >>= 1;
+			if (length2 == 0) {
+				break;
+			}
+			gf2MatrixSquare(odd, even);
+			if ((length2 & 1) != 0) {
+				crc1 = gf2MatrixTimes(odd, crc1);
+			}
+			length2 >>= 1;
+		} while (length2 != 0);
+		return crc1 ^ crc2;
+	}
+
+	private static long gf2MatrixTimes(long[] matrix, long vector) {
+		long sum = 0;
+		for (int i = 0; vector != 0; i++, vector >>>= 1) {
+			if ((vector & 1) != 0) {
+				sum ^= matrix[i];
+			}
+		}
+		return sum;
+	}
+
+	private static void gf2MatrixSquare(long[] square, long[] matrix) {
+		for (int n = 0; n < 32; n++) {
+			square[n] = gf2MatrixTimes(matrix, matrix[n]);
+		}
+	}
+
+	protected static class Chunk {
+		int sheetIndex;
+		int firstRowIndex;
+		int rows;
+		long afterId;
+		long lastId;
+		int rowsWritten;
+		Path file;
+		long crc;
+		long size;
+		long compressedSize;
+	}
+
+	/**
+	 * Raw deflate output that, unless it is the last part of an entry, ends on a
+	 * sync flush rather than the final block.
+	 */
+	static class Fragment {
+		final CountingOutputStream compressed;
+		final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+		final DeflaterOutputStream deflating;
+		final CRC32 crc = new CRC32();
+		final CountingOutputStream uncompressed;
+		final boolean last;
+
+		Fragment(OutputStream out, boolean last) {
+			this.compressed = new CountingOutputStream(out);
+			this.deflating = new DeflaterOutputStream(compressed, deflater, BUFFER_SIZE, true);
+			this.uncompressed = new CountingOutputStream(new CheckedOutputStream(deflating, crc));
+			this.last = last;
+		}
+
+		Writer writer() {
+			return new BufferedWriter(new OutputStreamWriter(uncompressed, StandardCharsets.UTF_8), BUFFER_SIZE);
+		}
+
+		void close(Writer writer) throws IOException {
+			try {
+				// Flushing the writer sync flushes the deflater
+				writer.flush();
+				if (last) {
+					deflating.finish();
+				}
+				compressed.flush();
+			} finally {
+				deflater.end();
+			}
+		}
+	}
+
+	/**
+	 * Opens the file when first read, so only one chunk file is open at a time.
+	 */
+	static class LazyFileInputStream extends InputStream {
+		private final Path file;
+		private InputStream in;
+
+		LazyFileInputStream(Path file) {
+			this.file = file;
+		}
+
+		@Override
+		public int read() throws IOException {
+			return open().read();
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			return open().read(b, off, len);
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (in != null) {
+				in.close();
+			}
+		}
+
+		private InputStream open() throws IOException {
+			if (in == null) {
+				in = Files.newInputStream(file);
+			}
+			return in;
+		}
+	}
+}
@@ -0,0 +1,89 @@
+package io.github.learnapachepoixssf.service;
+
+import java.time.Duration;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * An amount of something, such as connections or bytes, handed out in permits
+ * that give it back when closed. Amounts are kept in units of a semaphore, so
+ * bytes can be counted in megabytes and large budgets still fit.
+ */
+public class PermitPool {
+
+	static final long MEGABYTE = 1024 * 1024;
+
+	private final Semaphore semaphore;
+	private final int maxUnits;
+	private final long unit;
+
+	/**
+	 * @param fair whether those waiting are given the units in the order they
+	 *             asked
+	 */
+	public PermitPool(long amount, long unit, boolean fair) {
+		this.unit = unit;
+		this.maxUnits = (int) Math.min(Integer.MAX_VALUE, amount / unit);
+		this.semaphore = new Semaphore(maxUnits, fair);
+	}
+
+	/**
+	 * Wait for an amount, or for all there is when it is more than that. Throws
+	 * a RejectedExecutionException if that takes longer than the timeout.
+	 */
+	public Permit acquire(long amount, Duration timeout, String resource) {
+		int units = Math.min(units(amount), maxUnits);
+		if (units <= 0) {
+			return () -> {
+			};
+		}
+		try {
+			if (!semaphore.tryAcquire(units, timeout.toNanos(), TimeUnit.NANOSECONDS)) {
+				throw new RejectedExecutionException("Timed out waiting for " + resource);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while waiting for " + resource, e);
+		}
+		return release(units);
+	}
+
+	/**
+	 * @return a permit for the amount, or null if it is not free right now or is
+	 *         more than there is
+	 */
+	public Permit tryAcquire(long amount) {
+		int units = units(amount);
+		if (units > maxUnits || !semaphore.tryAcquire(units)) {
+			return null;
+		}
+		return release(units);
+	}
+
+	public long getAvailable() {
+		return semaphore.availablePermits() * unit;
+	}
+
+	protected int units(long amount) {
+		return (int) Math.min(Integer.MAX_VALUE, (amount + unit - 1) / unit);
+	}
+
+	protected Permit release(int units) {
+		AtomicBoolean released = new AtomicBoolean();
+		return () -> {
+			if (released.compareAndSet(false, true)) {
+				semaphore.release(units);
+			}
+		};
+	}
+
+	/**
+	 * Gives back what was acquired when closed.
+	 */
+	public interface Permit extends AutoCloseable {
+		@Override
+		void close();
+	}
+}
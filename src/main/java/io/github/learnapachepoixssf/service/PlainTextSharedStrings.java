@@ -0,0 +1,12 @@
+package io.github.learnapachepoixssf.service;
+
+import org.apache.poi.xssf.model.SharedStrings;
+
+/**
+ * Shared strings that can be looked up as plain text, without building a
+ * rich text string around each one.
+ */
+public interface PlainTextSharedStrings extends SharedStrings {
+
+	String getString(int idx);
+}
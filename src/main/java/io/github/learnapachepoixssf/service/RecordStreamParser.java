@@ -0,0 +1,200 @@
+package io.github.learnapachepoixssf.service;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.commons.io.input.CountingInputStream;
+import org.apache.poi.ss.util.CellAddress;
+import org.xml.sax.SAXException;
+
+/**
+ * Parses rows kept outside a workbook, such as delimited text, and hands them
+ * to the same callbacks as the rows of a sheet, as if they were the only sheet
+ * of a workbook. Columns, row ranges and upload guards are applied as they are
+ * to sheets, and a stream that starts with a gzip header is decompressed as it
+ * is read. Like a streamed workbook, the rows can only be parsed once.
+ */
+public abstract class RecordStreamParser extends SheetStreamParser {
+
+	static final String SHEET_NAME = "Sheet1";
+
+	private final InputStream inputStream;
+	private final long streamSize;
+
+	/**
+	 * @param streamSize the length of the stream, or -1 if unknown
+	 */
+	protected RecordStreamParser(InputStream inputStream, long streamSize, int minimumColumnsToProcess,
+			Callback callback) {
+		super(minimumColumnsToProcess, callback);
+		this.inputStream = inputStream;
+		this.streamSize = streamSize;
+	}
+
+	/**
+	 * Read the records from the decompressed stream.
+	 */
+	protected abstract Records openRecords(InputStream stream) throws IOException;
+
+	/**
+	 * Cells are formatted by their raw value, as there are no styles.
+	 */
+	@Override
+	protected void parse(int numberOfSheetsToProcess) throws IOException, SAXException {
+		parse(numberOfSheetsToProcess, new RawCallback() {
+			@Override
+			public void beginSheet(String sheetName, int index) {
+				callback.beginSheet(sheetName, index);
+			}
+
+			@Override
+			public void beginRow(int rowNumber) {
+				callback.beginRow(rowNumber);
+			}
+
+			@Override
+			public void cellValue(int rowNumber, int columnNumber, RawValue value) {
+				callback.cellValue(rowNumber, columnNumber, value.asString(),
+						new CellAddress(rowNumber, columnNumber).formatAsString(), null);
+			}
+
+			@Override
+			public void endRow(int rowNumber) {
+				callback.endRow(rowNumber);
+			}
+
+			@Override
+			public void endSheet(String sheetName, int index) {
+				callback.endSheet(sheetName, index);
+			}
+
+			@Override
+			public void endSpreadsheet() {
+				callback.endSpreadsheet();
+			}
+		});
+	}
+
+	@Override
+	protected void parse(int numberOfSheetsToProcess, RawCallback rawCallback) throws IOException, SAXException {
+		if (numberOfSheetsToProcess > 0) {
+			try (Records records = openRecords(decompress(trackProgress(inputStream, streamSize)))) {
+				long start = System.nanoTime();
+				rawCallback.beginSheet(SHEET_NAME, 0);
+				long[] counts = parseRecords(records, rawCallback);
+				rawCallback.endSheet(SHEET_NAME, 0);
+				sheetParsed(SHEET_NAME, start, counts[0], counts[1]);
+			}
+		}
+		rawCallback.endSpreadsheet();
+	}
+
+	/**
+	 * @return the rows and cells read, not counting the blank ones filled in
+	 */
+	protected long[] parseRecords(Records records, RawCallback rawCallback) throws IOException, SAXException {
+		StringBuilder chars = new StringBuilder(64);
+		RawValue value = new RawValue(null, chars);
+		ColumnFilter columnFilter = columns != null ? new ColumnFilter(columns) : null;
+		UploadGuard.SheetCounter limits = uploadGuard != null ? uploadGuard.newSheetCounter() : null;
+		long rowCount = 0;
+		long cellCount = 0;
+		int rowNumber = -1;
+		while (records.next()) {
+			rowNumber++;
+			if (limits != null) {
+				limits.row();
+				limits.cells(records.size());
+			}
+			if (rowNumber == 0 && columnNames != null) {
+				columnFilter = resolveColumns(records);
+			}
+			if (rowNumber < firstRow) {
+				continue;
+			}
+			if (rowNumber - firstRow >= maxRows) {
+				// The rest of the records are not needed
+				break;
+			}
+			rawCallback.beginRow(rowNumber);
+			int size = records.size();
+			int columnLimit = columnFilter == null ? Math.max(size, minimumColumnsToProcess)
+					: columnFilter.getColumnLimit();
+			for (int columnNumber = nextColumn(columnFilter, 0); columnNumber < columnLimit;
+					columnNumber = nextColumn(columnFilter, columnNumber + 1)) {
+				if (columnNumber < size && !records.isBlank(columnNumber)) {
+					value.reset(rowNumber, columnNumber, records.getType(columnNumber), -1);
+					records.appendTo(columnNumber, chars);
+					cellCount++;
+				} else {
+					value.reset(rowNumber, columnNumber, RawType.BLANK, -1);
+				}
+				rawCallback.cellValue(rowNumber, columnNumber, value);
+			}
+			rawCallback.endRow(rowNumber);
+			rowCount++;
+		}
+		return new long[] { rowCount, cellCount };
+	}
+
+	protected ColumnFilter resolveColumns(Records records) throws SAXException {
+		StringBuilder header = new StringBuilder();
+		int[] columns = new int[columnNames.length];
+		for (int i = 0; i < columnNames.length; i++) {
+			String columnName = columnNames[i].trim();
+			columns[i] = -1;
+			for (int columnNumber = 0; columnNumber < records.size(); columnNumber++) {
+				header.setLength(0);
+				records.appendTo(columnNumber, header);
+				if (header.toString().trim().equalsIgnoreCase(columnName)) {
+					columns[i] = columnNumber;
+					break;
+				}
+			}
+			if (columns[i] < 0) {
+				throw new SAXException("No column named '" + columnName + "' in the first row");
+			}
+		}
+		return new ColumnFilter(columns);
+	}
+
+	protected InputStream decompress(InputStream stream) throws IOException {
+		CountingInputStream compressed = new CountingInputStream(stream);
+		BufferedInputStream buffered = new BufferedInputStream(compressed, StreamingXlsxWriter.BUFFER_SIZE);
+		buffered.mark(2);
+		boolean gzipped = buffered.read() == 0x1f && buffered.read() == 0x8b;
+		buffered.reset();
+		if (!gzipped) {
+			return buffered;
+		}
+		return guard("gzip", new GZIPInputStream(buffered, StreamingXlsxWriter.BUFFER_SIZE),
+				compressed::getByteCount);
+	}
+
+	/**
+	 * The records of a stream, read one after another. The values of the
+	 * current record are only valid until the next one is read.
+	 */
+	protected interface Records extends Closeable {
+		/**
+		 * Move on to the next record.
+		 *
+		 * @return false at the end of the stream
+		 */
+		boolean next() throws IOException;
+
+		/**
+		 * The number of values in the current record.
+		 */
+		int size();
+
+		boolean isBlank(int columnNumber);
+
+		RawType getType(int columnNumber);
+
+		void appendTo(int columnNumber, StringBuilder chars);
+	}
+}
@@ -0,0 +1,44 @@
+package io.github.learnapachepoixssf.service;
+
+import java.time.Duration;
+
+import io.github.learnapachepoixssf.service.PermitPool.Permit;
+
+/**
+ * Bounds the database connections and temporary disk that requests and jobs
+ * take at once, rather than the number of threads they run on. Work waits for
+ * what it needs in the order it asked, and is turned away with a
+ * RejectedExecutionException if that takes too long. Asking for more than
+ * there is waits for all there is.
+ */
+public class ResourceLimiter {
+
+	private final PermitPool connections;
+	private final PermitPool tempDisk;
+	private final Duration timeout;
+
+	public ResourceLimiter(int connections, long tempDiskBytes, Duration timeout) {
+		if (connections < 1 || tempDiskBytes < PermitPool.MEGABYTE) {
+			throw new IllegalArgumentException("At least one connection and a megabyte of disk are required");
+		}
+		this.connections = new PermitPool(connections, 1, true);
+		this.tempDisk = new PermitPool(tempDiskBytes, PermitPool.MEGABYTE, true);
+		this.timeout = timeout;
+	}
+
+	public Permit acquireConnections(int count) {
+		return connections.acquire(count, timeout, "database connections");
+	}
+
+	public Permit acquireTempDisk(long bytes) {
+		return tempDisk.acquire(bytes, timeout, "temporary disk");
+	}
+
+	public int getAvailableConnections() {
+		return (int) connections.getAvailable();
+	}
+
+	public long getAvailableTempDisk() {
+		return tempDisk.getAvailable();
+	}
+}
@@ -0,0 +1,33 @@
+package io.github.learnapachepoixssf.service;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Writes rows of cells into a download as they are added. Closing the writer
+ * finishes the download but leaves the underlying stream open. A download that
+ * fails partway is aborted instead, so that what was written cannot be taken
+ * for all of it.
+ */
+public interface RowWriter extends Closeable {
+
+	void startRow() throws IOException;
+
+	void numberCell(long value) throws IOException;
+
+	/**
+	 * A null value leaves the cell out.
+	 */
+	void stringCell(String value) throws IOException;
+
+	void endRow() throws IOException;
+
+	int getRowCount();
+
+	/**
+	 * Give up on the download without writing anything more, in particular not
+	 * the parts or end marker that would make it look complete. The underlying
+	 * stream is left open for the caller to close.
+	 */
+	void abort();
+}
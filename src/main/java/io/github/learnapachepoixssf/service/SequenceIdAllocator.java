@@ -0,0 +1,71 @@
+package io.github.learnapachepoixssf.service;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+import javax.sql.DataSource;
+
+import org.springframework.jdbc.core.JdbcTemplate;
+
+/**
+ * Hands out IDs from blocks of a sequence, the way Hibernate's pooled-lo
+ * optimizer does: the sequence increments by the block size, and each value
+ * taken from it is the first ID of a block nobody else is given. IDs are
+ * assigned in memory until the blocks run out, and several blocks are taken in
+ * one round trip, so saving a million rows asks the sequence a handful of
+ * times instead of a million. Shared by the writer threads of concurrent
+ * imports. IDs left in a block when the application stops are never used.
+ */
+public class SequenceIdAllocator {
+
+	private final JdbcTemplate jdbcTemplate;
+	private final BulkInsertDialect dialect;
+	private final String sequence;
+	private final int blockSize;
+	private final int blocksPerFetch;
+	private final Deque<Long> blocks = new ArrayDeque<>();
+	private long nextId = 0;
+	private long blockEnd = 0;
+
+	/**
+	 * @param blockSize      what the sequence increments by
+	 * @param blocksPerFetch how many blocks to take at least in one round trip
+	 */
+	public SequenceIdAllocator(DataSource dataSource, BulkInsertDialect dialect, String sequence, int blockSize,
+			int blocksPerFetch) {
+		if (blockSize < 1 || blocksPerFetch < 1) {
+			throw new IllegalArgumentException("Blocks need at least one ID and one block a fetch");
+		}
+		this.jdbcTemplate = new JdbcTemplate(dataSource);
+		this.dialect = dialect;
+		this.sequence = sequence;
+		this.blockSize = blockSize;
+		this.blocksPerFetch = blocksPerFetch;
+	}
+
+	public synchronized long[] nextIds(int count) {
+		long[] ids = new long[count];
+		for (int filled = 0; filled < count; filled++) {
+			if (nextId == blockEnd) {
+				nextBlock(count - filled);
+			}
+			ids[filled] = nextId++;
+		}
+		return ids;
+	}
+
+	protected void nextBlock(int idsWanted) {
+		if (blocks.isEmpty()) {
+			int blocksWanted = (int) Math.max(blocksPerFetch, ((long) idsWanted + blockSize - 1) / blockSize);
+			for (long value : dialect.nextValues(jdbcTemplate, sequence, blocksWanted)) {
+				blocks.add(value);
+			}
+		}
+		nextId = blocks.remove();
+		blockEnd = nextId + blockSize;
+	}
+
+	public int getBlockSize() {
+		return blockSize;
+	}
+}
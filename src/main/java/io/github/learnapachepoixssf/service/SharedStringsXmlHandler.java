@@ -0,0 +1,82 @@
+package io.github.learnapachepoixssf.service;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * Reads the sharedStrings.xml part and passes on the plain text of each string
+ * item, in order. Rich text runs are joined and phonetic runs are left out.
+ */
+public abstract class SharedStringsXmlHandler extends DefaultHandler {
+
+	private final StringBuilder text = new StringBuilder();
+	private boolean collecting = false;
+	private boolean inPhonetic = false;
+	private int count = 0;
+
+	protected abstract void sharedString(String value);
+
+	/**
+	 * @return how many references to the strings the part claims, or 0 if it
+	 *         does not give a count that can be read; only ever reported
+	 */
+	public int getCount() {
+		return count;
+	}
+
+	@Override
+	public void startElement(String uri, String localName, String qName, Attributes attributes) {
+		switch (localName) {
+		case "sst":
+			count = parseCount(attributes.getValue("count"));
+			break;
+		case "si":
+			text.setLength(0);
+			break;
+		case "t":
+			collecting = !inPhonetic;
+			break;
+		case "rPh":
+			inPhonetic = true;
+			break;
+		default:
+			break;
+		}
+	}
+
+	@Override
+	public void endElement(String uri, String localName, String qName) {
+		switch (localName) {
+		case "si":
+			sharedString(text.toString());
+			break;
+		case "t":
+			collecting = false;
+			break;
+		case "rPh":
+			inPhonetic = false;
+			break;
+		default:
+			break;
+		}
+	}
+
+	protected static int parseCount(String countValue) {
+		// Whatever the upload claims, a count it cannot back up is not an error
+		if (countValue == null) {
+			return 0;
+		}
+		try {
+			return Math.max(0, Integer.parseInt(countValue.trim()));
+		} catch (NumberFormatException e) {
+			return 0;
+		}
+	}
+
+	@Override
+	public void characters(char[] ch, int start, int length) {
+		if (collecting) {
+			text.append(ch, start, length);
+		}
+	}
+}
@@ -0,0 +1,334 @@
+package io.github.learnapachepoixssf.service;
+
+import java.lang.invoke.CallSite;
+import java.lang.invoke.LambdaMetafactory;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.util.Arrays;
+import java.util.function.BiConsumer;
+import java.util.function.ObjDoubleConsumer;
+import java.util.function.ObjIntConsumer;
+import java.util.function.ObjLongConsumer;
+import java.util.function.Supplier;
+
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.CellType;
+import org.apache.poi.ss.usermodel.DataFormatter;
+import org.apache.poi.ss.usermodel.Row;
+
+import io.github.learnapachepoixssf.model.SheetColumn;
+import io.github.learnapachepoixssf.service.SheetStreamParser.RawValue;
+
+/**
+ * Sets the fields of a public class annotated with SheetColumn from the cells
+ * of a row, through its public setters. The setters and the no argument
+ * constructor are bound once per class into lambdas, so there is no reflection
+ * per row, and numbers go from the raw cell value into the setter without being
+ * formatted to a string first. Long, Integer, Double, Boolean, their primitives
+ * and String fields are supported. An empty cell sets a boxed or String field
+ * to null and leaves a primitive field as it is. A whole number field refuses a
+ * fraction or a value it cannot hold, whether the row is streamed or not.
+ */
+public final class SheetRowMapper<T> {
+
+	private static final ClassValue<SheetRowMapper<?>> MAPPERS = new ClassValue<>() {
+		@Override
+		protected SheetRowMapper<?> computeValue(Class<?> type) {
+			return new SheetRowMapper<>(type);
+		}
+	};
+
+	private final Supplier<T> constructor;
+	private final ColumnSetter<T>[] columns;
+
+	@SuppressWarnings("unchecked")
+	public static <T> SheetRowMapper<T> forType(Class<T> type) {
+		return (SheetRowMapper<T>) MAPPERS.get(type);
+	}
+
+	@SuppressWarnings("unchecked")
+	private SheetRowMapper(Class<T> type) {
+		MethodHandles.Lookup lookup = MethodHandles.lookup();
+		int columnCount = 0;
+		for (Field field : type.getDeclaredFields()) {
+			SheetColumn column = field.getAnnotation(SheetColumn.class);
+			if (column != null) {
+				columnCount = Math.max(columnCount, column.value() + 1);
+			}
+		}
+		this.columns = new ColumnSetter[columnCount];
+		try {
+			this.constructor = (Supplier<T>) bind(lookup, Supplier.class, "get", MethodType.methodType(Object.class),
+					lookup.findConstructor(type, MethodType.methodType(void.class)), MethodType.methodType(type));
+			for (Field field : type.getDeclaredFields()) {
+				SheetColumn column = field.getAnnotation(SheetColumn.class);
+				if (column == null) {
+					continue;
+				}
+				if (columns[column.value()] != null) {
+					throw new IllegalArgumentException(
+							type.getName() + " maps more than one field to column " + column.value());
+				}
+				columns[column.value()] = columnSetter(lookup, type, field);
+			}
+		} catch (ReflectiveOperationException e) {
+			throw new IllegalArgumentException("Cannot map rows to " + type.getName(), e);
+		}
+	}
+
+	public T newRow() {
+		return constructor.get();
+	}
+
+	/**
+	 * How many columns a row needs to have every mapped field set.
+	 */
+	public int getColumnCount() {
+		return columns.length;
+	}
+
+	/**
+	 * The mapped columns, for the parser to skip the others.
+	 */
+	public int[] getColumns() {
+		int[] mapped = new int[columns.length];
+		int count = 0;
+		for (int columnNumber = 0; columnNumber < columns.length; columnNumber++) {
+			if (columns[columnNumber] != null) {
+				mapped[count++] = columnNumber;
+			}
+		}
+		return Arrays.copyOf(mapped, count);
+	}
+
+	public void setValue(T target, RawValue value) {
+		int columnNumber = value.getColumnNumber();
+		if (columnNumber < columns.length && columns[columnNumber] != null) {
+			columns[columnNumber].set(target, value);
+		}
+	}
+
+	public void setValues(T target, Row row) {
+		for (int columnNumber = 0; columnNumber < columns.length; columnNumber++) {
+			if (columns[columnNumber] != null) {
+				columns[columnNumber].set(target, row.getCell(columnNumber));
+			}
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <T> ColumnSetter<T> columnSetter(MethodHandles.Lookup lookup, Class<T> type, Field field)
+			throws ReflectiveOperationException {
+		Class<?> fieldType = field.getType();
+		String name = field.getName();
+		MethodHandle setter = lookup.findVirtual(type,
+				"set" + Character.toUpperCase(name.charAt(0)) + name.substring(1),
+				MethodType.methodType(void.class, fieldType));
+		BiConsumer<T, Object> nullSetter = fieldType.isPrimitive() ? (target, value) -> {
+		} : (BiConsumer<T, Object>) bind(lookup, BiConsumer.class, "accept",
+				MethodType.methodType(void.class, Object.class, Object.class), setter,
+				MethodType.methodType(void.class, type, fieldType));
+		if (fieldType == Long.class || fieldType == long.class) {
+			ObjLongConsumer<T> longSetter = (ObjLongConsumer<T>) bind(lookup, ObjLongConsumer.class, "accept",
+					MethodType.methodType(void.class, Object.class, long.class), setter,
+					MethodType.methodType(void.class, type, long.class));
+			return new ConvertingColumnSetter<>(nullSetter) {
+				@Override
+				void setRaw(T target, RawValue value) {
+					longSetter.accept(target, value.asLong());
+				}
+
+				@Override
+				void setNumber(T target, double value) {
+					longSetter.accept(target, wholeNumber(value));
+				}
+
+				@Override
+				void setText(T target, String value) {
+					longSetter.accept(target, Long.parseLong(value.trim()));
+				}
+			};
+		} else if (fieldType == Integer.class || fieldType == int.class) {
+			ObjIntConsumer<T> intSetter = (ObjIntConsumer<T>) bind(lookup, ObjIntConsumer.class, "accept",
+					MethodType.methodType(void.class, Object.class, int.class), setter,
+					MethodType.methodType(void.class, type, int.class));
+			return new ConvertingColumnSetter<>(nullSetter) {
+				@Override
+				void setRaw(T target, RawValue value) {
+					intSetter.accept(target, Math.toIntExact(value.asLong()));
+				}
+
+				@Override
+				void setNumber(T target, double value) {
+					intSetter.accept(target, Math.toIntExact(wholeNumber(value)));
+				}
+
+				@Override
+				void setText(T target, String value) {
+					intSetter.accept(target, Integer.parseInt(value.trim()));
+				}
+			};
+		} else if (fieldType == Double.class || fieldType == double.class) {
+			ObjDoubleConsumer<T> doubleSetter = (ObjDoubleConsumer<T>) bind(lookup, ObjDoubleConsumer.class,
+					"accept", MethodType.methodType(void.class, Object.class, double.class), setter,
+					MethodType.methodType(void.class, type, double.class));
+			return new ConvertingColumnSetter<>(nullSetter) {
+				@Override
+				void setRaw(T target, RawValue value) {
+					doubleSetter.accept(target, value.asDouble());
+				}
+
+				@Override
+				void setNumber(T target, double value) {
+					doubleSetter.accept(target, value);
+				}
+
+				@Override
+				void setText(T target, String value) {
+					doubleSetter.accept(target, Double.parseDouble(value.trim()));
+				}
+			};
+		} else if (fieldType == Boolean.class || fieldType == boolean.class || fieldType == String.class) {
+			BiConsumer<T, Object> objectSetter = (BiConsumer<T, Object>) bind(lookup, BiConsumer.class, "accept",
+					MethodType.methodType(void.class, Object.class, Object.class), setter,
+					MethodType.methodType(void.class, type, fieldType == String.class ? String.class : Boolean.class));
+			if (fieldType == String.class) {
+				return new StringColumnSetter<>(objectSetter);
+			}
+			return new ConvertingColumnSetter<>(nullSetter) {
+				@Override
+				void setRaw(T target, RawValue value) {
+					objectSetter.accept(target, value.asBoolean());
+				}
+
+				@Override
+				void setNumber(T target, double value) {
+					objectSetter.accept(target, value != 0);
+				}
+
+				@Override
+				void setText(T target, String value) {
+					objectSetter.accept(target, Boolean.parseBoolean(value.trim()));
+				}
+			};
+		}
+		throw new IllegalArgumentException("Cannot map a column to " + fieldType.getName() + " " + name);
+	}
+
+	/**
+	 * The same check RawValue.asLong makes of a streamed cell.
+	 *
+	 * @throws NumberFormatException if the value is not a whole number that
+	 *                               fits in a long
+	 */
+	static long wholeNumber(double value) {
+		// 2^63 is the first double past a long, while -2^63 still fits
+		if (value != Math.rint(value) || value < -0x1p63 || value >= 0x1p63) {
+			throw new NumberFormatException("Not a whole number that fits in a long: " + value);
+		}
+		return (long) value;
+	}
+
+	private static Object bind(MethodHandles.Lookup lookup, Class<?> functionalInterface, String methodName,
+			MethodType erasedType, MethodHandle implementation, MethodType instantiatedType)
+			throws ReflectiveOperationException {
+		try {
+			CallSite site = LambdaMetafactory.metafactory(lookup, methodName,
+					MethodType.methodType(functionalInterface), erasedType, implementation, instantiatedType);
+			return site.getTarget().invoke();
+		} catch (ReflectiveOperationException | RuntimeException | Error e) {
+			throw e;
+		} catch (Throwable t) {
+			throw new IllegalStateException("Cannot bind " + implementation, t);
+		}
+	}
+
+	private abstract static class ColumnSetter<T> {
+		abstract void set(T target, RawValue value);
+
+		abstract void set(T target, Cell cell);
+	}
+
+	/**
+	 * Converts the cells for a field that is not a string. Subclasses convert
+	 * non empty values.
+	 */
+	private abstract static class ConvertingColumnSetter<T> extends ColumnSetter<T> {
+		private final BiConsumer<T, Object> nullSetter;
+
+		ConvertingColumnSetter(BiConsumer<T, Object> nullSetter) {
+			this.nullSetter = nullSetter;
+		}
+
+		@Override
+		void set(T target, RawValue value) {
+			if (value.isEmpty()) {
+				nullSetter.accept(target, null);
+			} else {
+				setRaw(target, value);
+			}
+		}
+
+		@Override
+		void set(T target, Cell cell) {
+			CellType cellType = cell == null ? CellType.BLANK : cell.getCellType();
+			if (cellType == CellType.FORMULA) {
+				cellType = cell.getCachedFormulaResultType();
+			}
+			switch (cellType) {
+			case NUMERIC:
+				setNumber(target, cell.getNumericCellValue());
+				break;
+			case BOOLEAN:
+				setText(target, String.valueOf(cell.getBooleanCellValue()));
+				break;
+			case STRING:
+				String text = cell.getStringCellValue();
+				if (text.isEmpty()) {
+					nullSetter.accept(target, null);
+				} else {
+					setText(target, text);
+				}
+				break;
+			default:
+				nullSetter.accept(target, null);
+				break;
+			}
+		}
+
+		abstract void setRaw(T target, RawValue value);
+
+		abstract void setNumber(T target, double value);
+
+		abstract void setText(T target, String value);
+	}
+
+	private static final class StringColumnSetter<T> extends ColumnSetter<T> {
+		// Only needed for cells that are not strings
+		private static final ThreadLocal<DataFormatter> FORMATTER = ThreadLocal.withInitial(DataFormatter::new);
+
+		private final BiConsumer<T, Object> stringSetter;
+
+		StringColumnSetter(BiConsumer<T, Object> stringSetter) {
+			this.stringSetter = stringSetter;
+		}
+
+		@Override
+		void set(T target, RawValue value) {
+			stringSetter.accept(target, value.asString());
+		}
+
+		@Override
+		void set(T target, Cell cell) {
+			if (cell == null) {
+				stringSetter.accept(target, null);
+			} else if (cell.getCellType() == CellType.STRING) {
+				stringSetter.accept(target, cell.getStringCellValue());
+			} else {
+				stringSetter.accept(target, FORMATTER.get().formatCellValue(cell));
+			}
+		}
+	}
+}
@@ -0,0 +1,1097 @@
+package io.github.learnapachepoixssf.service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.function.LongSupplier;
+
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.apache.commons.io.input.CountingInputStream;
+import org.apache.poi.ooxml.util.SAXHelper;
+import org.apache.poi.openxml4j.exceptions.OpenXML4JException;
+import org.apache.poi.ss.usermodel.DataFormatter;
+import org.apache.poi.ss.util.CellAddress;
+import org.apache.poi.ss.util.CellReference;
+import org.apache.poi.xssf.eventusermodel.XSSFSheetXMLHandler;
+import org.apache.poi.xssf.eventusermodel.XSSFSheetXMLHandler.SheetContentsHandler;
+import org.apache.poi.xssf.model.SharedStrings;
+import org.apache.poi.xssf.model.Styles;
+import org.apache.poi.xssf.usermodel.XSSFComment;
+import org.xml.sax.Attributes;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+import org.xml.sax.helpers.AttributesImpl;
+import org.xml.sax.helpers.DefaultHandler;
+import org.xml.sax.helpers.XMLFilterImpl;
+
+/**
+ * What the parsers of sheets and of rows outside a workbook share: the
+ * callbacks, the columns and row range to hand to them, and the upload guard
+ * and listeners. Each parser reads its rows from a source of its own, see
+ * XlsxStreamParser for the package of a saved workbook.
+ */
+public abstract class SheetStreamParser {
+
+	protected final int minimumColumnsToProcess;
+	protected final Callback callback;
+	private ProgressListener progressListener = null;
+	private ParseListener parseListener = new ParseListener() {
+	};
+	protected int[] columns = null;
+	protected String[] columnNames = null;
+	protected int firstRow = 0;
+	protected int maxRows = Integer.MAX_VALUE;
+	protected UploadGuard uploadGuard = null;
+
+	protected SheetStreamParser(int minimumColumnsToProcess, Callback callback) {
+		this.minimumColumnsToProcess = minimumColumnsToProcess;
+		this.callback = callback;
+	}
+
+	/**
+	 * Told how much of each sheet has been read, when sheets are parsed one after
+	 * the other.
+	 */
+	public void setProgressListener(ProgressListener progressListener) {
+		this.progressListener = progressListener;
+	}
+
+	/**
+	 * Told how long the shared strings took to load and each sheet took to
+	 * parse, including the time spent in the callback.
+	 */
+	public void setParseListener(ParseListener parseListener) {
+		this.parseListener = parseListener;
+	}
+
+	/**
+	 * Stop parsing once a sheet inflates to more than the guard allows or has
+	 * more rows or cells than it allows, see UploadGuard. The shared strings of
+	 * a package are read by their table, so only the directory of the package
+	 * limits them.
+	 */
+	public void setUploadGuard(UploadGuard uploadGuard) {
+		this.uploadGuard = uploadGuard;
+	}
+
+	/**
+	 * Only hand these columns to the callback. The cells of other columns are
+	 * dropped as the sheet is read, before they are formatted or looked up in
+	 * the shared strings, and the rest of a row is skipped once it is past the
+	 * last of these columns. Every one of these columns is reported on each row,
+	 * blank if the row has no cell there, and minimumColumnsToProcess no longer
+	 * applies.
+	 */
+	public void setColumns(int... columns) {
+		this.columns = columns;
+		this.columnNames = null;
+	}
+
+	/**
+	 * Like setColumns(int...), with the columns found by their header in the
+	 * first row of each sheet. Headers are matched ignoring case and surrounding
+	 * spaces. The first row is still handed to the callback.
+	 */
+	public void setColumnNames(String... columnNames) {
+		this.columnNames = columnNames;
+		this.columns = null;
+	}
+
+	/**
+	 * Only hand maxRows rows of each sheet, starting at firstRow, to the
+	 * callback. Rows before the range are dropped as they are read, and a sheet
+	 * stops being read as soon as a row past the range starts, so reading the
+	 * first rows of a large sheet costs no more than those rows. Missing rows
+	 * are only filled in within the range.
+	 */
+	public void setRowRange(int firstRow, int maxRows) {
+		if (firstRow < 0 || maxRows < 0) {
+			throw new IllegalArgumentException("Row range cannot be negative");
+		}
+		this.firstRow = firstRow;
+		this.maxRows = maxRows;
+	}
+
+	public void parseFirstSheetOnly()
+			throws IOException, OpenXML4JException, SAXException, ParserConfigurationException {
+		parse(1);
+	}
+
+	public void parse() throws IOException, OpenXML4JException, SAXException, ParserConfigurationException {
+		parse(Integer.MAX_VALUE);
+	}
+
+	protected abstract void parse(int numberOfSheetsToProcess)
+			throws IOException, OpenXML4JException, SAXException, ParserConfigurationException;
+
+	public void parseFirstSheetOnly(RawCallback rawCallback)
+			throws IOException, OpenXML4JException, SAXException, ParserConfigurationException {
+		parse(1, rawCallback);
+	}
+
+	public void parse(RawCallback rawCallback)
+			throws IOException, OpenXML4JException, SAXException, ParserConfigurationException {
+		parse(Integer.MAX_VALUE, rawCallback);
+	}
+
+	/**
+	 * Parse using the low level callback. Cell values are not formatted, so the
+	 * styles table is never loaded.
+	 */
+	protected abstract void parse(int numberOfSheetsToProcess, RawCallback rawCallback)
+			throws IOException, OpenXML4JException, SAXException, ParserConfigurationException;
+
+	protected InputStream trackProgress(InputStream stream, long sheetSize) {
+		if (progressListener == null) {
+			return stream;
+		}
+		progressListener.sheetBytesRead(0, sheetSize);
+		return new CountingInputStream(stream) {
+			@Override
+			protected synchronized void afterRead(int n) {
+				super.afterRead(n);
+				progressListener.sheetBytesRead(getByteCount(), sheetSize);
+			}
+		};
+	}
+
+	protected InputStream guard(String entryName, InputStream stream, LongSupplier compressedBytes) {
+		return uploadGuard == null ? stream : uploadGuard.guard(entryName, stream, compressedBytes);
+	}
+
+	/**
+	 * A new filter for each sheet, or null when every column is wanted.
+	 */
+	protected ColumnFilter newColumnFilter(SharedStrings sharedStrings) {
+		if (columns != null) {
+			return new ColumnFilter(columns);
+		} else if (columnNames != null) {
+			return new ColumnFilter(columnNames, sharedStrings);
+		}
+		return null;
+	}
+
+	protected void sheetParsed(String sheetName, long startNanos, long rows, long cells) {
+		parseListener.sheetParsed(sheetName, System.nanoTime() - startNanos, rows, cells);
+	}
+
+	protected void sharedStringsLoaded(long startNanos) {
+		parseListener.sharedStringsLoaded(System.nanoTime() - startNanos);
+	}
+
+	protected void parseSheet(Styles styles, SharedStrings sharedStrings, SheetContentsHandler sheetHandler,
+			InputStream sheetInputStream) throws IOException, SAXException, ParserConfigurationException {
+		parseSheet(styles, sharedStrings, sheetHandler, null, sheetInputStream);
+	}
+
+	protected void parseSheet(Styles styles, SharedStrings sharedStrings, SheetContentsHandler sheetHandler,
+			ColumnFilter columnFilter, InputStream sheetInputStream)
+			throws IOException, SAXException, ParserConfigurationException {
+		DataFormatter formatter = new DataFormatter();
+		ContentHandler handler = new XSSFSheetXMLHandler(styles, null, sharedStrings, sheetHandler, formatter, false);
+		parseSheet(handler, columnFilter, sheetInputStream);
+	}
+
+	protected void parseSheet(ContentHandler handler, InputStream sheetInputStream)
+			throws IOException, SAXException, ParserConfigurationException {
+		parseSheet(handler, null, sheetInputStream);
+	}
+
+	protected void parseSheet(ContentHandler handler, ColumnFilter columnFilter, InputStream sheetInputStream)
+			throws IOException, SAXException, ParserConfigurationException {
+		XMLReader sheetParser = SAXHelper.newXMLReader();
+		if (firstRow > 0 || maxRows < Integer.MAX_VALUE) {
+			RowRangeFilter rowFilter = new RowRangeFilter(firstRow, maxRows);
+			rowFilter.setContentHandler(handler);
+			handler = rowFilter;
+		}
+		// Headers are found before rows are dropped
+		if (columnFilter != null) {
+			columnFilter.setContentHandler(handler);
+			handler = columnFilter;
+		}
+		// Every row counts towards the limits, wanted or not
+		if (uploadGuard != null) {
+			XMLFilterImpl limitFilter = uploadGuard.newSheetFilter(() -> columnLimit(columnFilter));
+			limitFilter.setContentHandler(handler);
+			handler = limitFilter;
+		}
+		sheetParser.setContentHandler(handler);
+		try {
+			sheetParser.parse(new InputSource(sheetInputStream));
+		} catch (EndOfRangeException e) {
+			// The rest of the sheet is not needed
+		} catch (SAXException e) {
+			if (e.getException() instanceof UploadLimitException) {
+				throw (UploadLimitException) e.getException();
+			}
+			throw e;
+		}
+	}
+
+	protected static int rowNumber(String reference) {
+		if (reference == null) {
+			return -1;
+		}
+		int rowNumber = 0;
+		for (int i = 0; i < reference.length(); i++) {
+			rowNumber = rowNumber * 10 + (reference.charAt(i) - '0');
+		}
+		return rowNumber - 1;
+	}
+
+	protected static int columnNumber(String reference) {
+		if (reference == null) {
+			return -1;
+		}
+		int columnNumber = 0;
+		for (int i = 0; i < reference.length(); i++) {
+			char c = reference.charAt(i);
+			if (c < 'A' || c > 'Z') {
+				break;
+			}
+			columnNumber = columnNumber * 26 + (c - 'A' + 1);
+		}
+		return columnNumber - 1;
+	}
+
+	/**
+	 * The next column at or after columnNumber to hand to the callback.
+	 */
+	protected static int nextColumn(ColumnFilter columnFilter, int columnNumber) {
+		return columnFilter == null ? columnNumber : columnFilter.nextWanted(columnNumber);
+	}
+
+	/**
+	 * Columns before this are reported on every row.
+	 */
+	protected int columnLimit(ColumnFilter columnFilter) {
+		return columnFilter == null ? minimumColumnsToProcess : columnFilter.getColumnLimit();
+	}
+
+	public class CallbackContentsHandler implements SheetContentsHandler {
+		private final Callback callback;
+		private final ColumnFilter columnFilter;
+		private int currentRowNumber = firstRow - 1;
+		private int currentColumnNumber = -1;
+		private long rowCount = 0;
+		private long cellCount = 0;
+
+		public CallbackContentsHandler() {
+			this(SheetStreamParser.this.callback);
+		}
+
+		public CallbackContentsHandler(Callback callback) {
+			this(callback, null);
+		}
+
+		public CallbackContentsHandler(Callback callback, ColumnFilter columnFilter) {
+			this.callback = callback;
+			this.columnFilter = columnFilter;
+		}
+
+		@Override
+		public void startRow(int rowNumber) {
+			// Handle missing rows
+			if (callback.supportEmptyRows()) {
+				handleMissingRows(currentRowNumber, rowNumber - currentRowNumber - 1);
+			}
+			// Then setup for new row
+			currentRowNumber = rowNumber;
+			currentColumnNumber = -1;
+			callback.beginRow(currentRowNumber);
+		}
+
+		protected void handleMissingRows(int currentRowNumber, int numberMissing) {
+			for (int i = 0; i < numberMissing; i++) {
+				int missingRowNumber = currentRowNumber + i + 1;
+				callback.beginRow(missingRowNumber);
+				int columnLimit = columnLimit(columnFilter);
+				for (int columnNumber = nextColumn(columnFilter, 0); columnNumber < columnLimit;
+						columnNumber = nextColumn(columnFilter, columnNumber + 1)) {
+					callback.cellValue(missingRowNumber, columnNumber, null,
+							new CellAddress(missingRowNumber, columnNumber).formatAsString(), null);
+				}
+				callback.endRow(missingRowNumber);
+			}
+		}
+
+		@Override
+		public void cell(String cellReference, String formattedValue, XSSFComment comment) {
+			if (cellReference == null) {
+				cellReference = new CellAddress(currentRowNumber, currentColumnNumber).formatAsString();
+			}
+
+			// Handle missing columns in the middle of the row
+			int newColumnNumber = (new CellReference(cellReference)).getCol();
+			fillMissingColumns(newColumnNumber);
+			currentColumnNumber = newColumnNumber;
+
+			cellCount++;
+			callback.cellValue(currentRowNumber, currentColumnNumber, formattedValue, cellReference, comment);
+		}
+
+		@Override
+		public void endRow(int rowNum) {
+			// Make sure we handle all columns if row is short
+			fillMissingColumns(columnLimit(columnFilter));
+			rowCount++;
+			callback.endRow(currentRowNumber);
+		}
+
+		protected void fillMissingColumns(int untilColumnNumber) {
+			for (int missing = nextColumn(columnFilter, currentColumnNumber + 1); missing < untilColumnNumber;
+					missing = nextColumn(columnFilter, missing + 1)) {
+				callback.cellValue(currentRowNumber, missing, null,
+						new CellAddress(currentRowNumber, missing).formatAsString(), null);
+			}
+		}
+
+		/**
+		 * Rows and cells found in the sheet, not counting the ones filled in.
+		 */
+		public long getRowCount() {
+			return rowCount;
+		}
+
+		public long getCellCount() {
+			return cellCount;
+		}
+	}
+
+	/**
+	 * Reads the sheet XML directly rather than through XSSFSheetXMLHandler. Row
+	 * and column numbers are computed from the r attributes without building
+	 * cell references, and each value is collected into one reused buffer, so
+	 * no objects are created per cell unless the callback asks for them.
+	 */
+	public class RawContentsHandler extends DefaultHandler {
+		private final RawCallback callback;
+		private final ColumnFilter columnFilter;
+		private final RawValue value;
+		private final RawValue blank;
+		private int currentRowNumber = firstRow - 1;
+		private int currentColumnNumber = -1;
+		private boolean hasValue = false;
+		private boolean collecting = false;
+		private boolean inInlineString = false;
+		private boolean inPhonetic = false;
+		private long rowCount = 0;
+		private long cellCount = 0;
+
+		public RawContentsHandler(RawCallback callback, SharedStrings sharedStrings) {
+			this(callback, sharedStrings, null);
+		}
+
+		public RawContentsHandler(RawCallback callback, SharedStrings sharedStrings, ColumnFilter columnFilter) {
+			this.callback = callback;
+			this.columnFilter = columnFilter;
+			this.value = new RawValue(sharedStrings, new StringBuilder(64));
+			this.blank = new RawValue(sharedStrings, new StringBuilder(0));
+		}
+
+		@Override
+		public void startElement(String uri, String localName, String qName, Attributes attributes) {
+			switch (localName) {
+			case "row":
+				startRow(rowNumber(attributes.getValue("r")));
+				break;
+			case "c":
+				startCell(attributes);
+				break;
+			case "v":
+				collecting = true;
+				hasValue = true;
+				break;
+			case "is":
+				inInlineString = true;
+				hasValue = true;
+				break;
+			case "t":
+				collecting = inInlineString && !inPhonetic;
+				break;
+			case "rPh":
+				inPhonetic = true;
+				break;
+			default:
+				break;
+			}
+		}
+
+		@Override
+		public void endElement(String uri, String localName, String qName) {
+			switch (localName) {
+			case "v":
+			case "t":
+				collecting = false;
+				break;
+			case "is":
+				inInlineString = false;
+				break;
+			case "rPh":
+				inPhonetic = false;
+				break;
+			case "c":
+				endCell();
+				break;
+			case "row":
+				endRow();
+				break;
+			default:
+				break;
+			}
+		}
+
+		@Override
+		public void characters(char[] ch, int start, int length) {
+			if (collecting) {
+				value.chars.append(ch, start, length);
+			}
+		}
+
+		protected void startRow(int rowNumber) {
+			if (rowNumber < 0) {
+				rowNumber = currentRowNumber + 1;
+			}
+			// Handle missing rows
+			if (callback.supportEmptyRows()) {
+				for (int missingRowNumber = currentRowNumber + 1; missingRowNumber < rowNumber; missingRowNumber++) {
+					callback.beginRow(missingRowNumber);
+					int columnLimit = columnLimit(columnFilter);
+					for (int columnNumber = nextColumn(columnFilter, 0); columnNumber < columnLimit;
+							columnNumber = nextColumn(columnFilter, columnNumber + 1)) {
+						blankCell(missingRowNumber, columnNumber);
+					}
+					callback.endRow(missingRowNumber);
+				}
+			}
+			// Then setup for new row
+			currentRowNumber = rowNumber;
+			currentColumnNumber = -1;
+			callback.beginRow(currentRowNumber);
+		}
+
+		protected void startCell(Attributes attributes) {
+			int columnNumber = columnNumber(attributes.getValue("r"));
+			if (columnNumber < 0) {
+				columnNumber = currentColumnNumber + 1;
+			}
+			value.reset(currentRowNumber, columnNumber, type(attributes.getValue("t")),
+					styleIndex(attributes.getValue("s")));
+			hasValue = false;
+		}
+
+		protected void endCell() {
+			// Handle missing columns in the middle of the row
+			int columnNumber = value.columnNumber;
+			fillMissingColumns(columnNumber);
+			currentColumnNumber = columnNumber;
+			if (!hasValue) {
+				value.type = RawType.BLANK;
+			}
+			cellCount++;
+			callback.cellValue(currentRowNumber, columnNumber, value);
+		}
+
+		protected void endRow() {
+			// Make sure we handle all columns if row is short
+			fillMissingColumns(columnLimit(columnFilter));
+			rowCount++;
+			callback.endRow(currentRowNumber);
+		}
+
+		protected void fillMissingColumns(int untilColumnNumber) {
+			for (int missing = nextColumn(columnFilter, currentColumnNumber + 1); missing < untilColumnNumber;
+					missing = nextColumn(columnFilter, missing + 1)) {
+				blankCell(currentRowNumber, missing);
+			}
+		}
+
+		/**
+		 * Rows and cells found in the sheet, not counting the ones filled in.
+		 */
+		public long getRowCount() {
+			return rowCount;
+		}
+
+		public long getCellCount() {
+			return cellCount;
+		}
+
+		protected void blankCell(int rowNumber, int columnNumber) {
+			blank.reset(rowNumber, columnNumber, RawType.BLANK, -1);
+			callback.cellValue(rowNumber, columnNumber, blank);
+		}
+
+		protected int styleIndex(String s) {
+			if (s == null) {
+				return -1;
+			}
+			int styleIndex = 0;
+			for (int i = 0; i < s.length(); i++) {
+				styleIndex = styleIndex * 10 + (s.charAt(i) - '0');
+			}
+			return styleIndex;
+		}
+
+		protected RawType type(String t) {
+			if (t == null || "n".equals(t)) {
+				return RawType.NUMBER;
+			}
+			switch (t) {
+			case "s":
+				return RawType.SHARED_STRING;
+			case "inlineStr":
+				return RawType.INLINE_STRING;
+			case "str":
+				return RawType.FORMULA_STRING;
+			case "b":
+				return RawType.BOOLEAN;
+			case "e":
+				return RawType.ERROR;
+			case "d":
+				return RawType.DATE;
+			default:
+				return RawType.NUMBER;
+			}
+		}
+	}
+
+	/**
+	 * Sits in front of a sheet handler and drops the cells of unwanted columns,
+	 * so the handler never formats them, looks them up in the shared strings or
+	 * hands them to a callback. SAX still reads the whole row, but once a row is
+	 * past the last wanted column the rest of its cells are ignored. When the
+	 * columns are given by header, the first row is held back until its headers
+	 * are known and is then passed on like any other row.
+	 */
+	public static class ColumnFilter extends XMLFilterImpl {
+		private final String[] columnNames;
+		private final SharedStrings sharedStrings;
+		private BitSet wanted = null;
+		private int columnLimit = 0;
+		private int currentRowNumber = -1;
+		private int currentColumnNumber = -1;
+		private int skippedDepth = 0;
+		// Only used while the header row is held back
+		private List<HeaderEvent> headerEvents = null;
+		private final List<String> headers = new ArrayList<>();
+		private final StringBuilder header = new StringBuilder();
+		private String headerType = null;
+		private boolean inHeaderValue = false;
+		private boolean inPhonetic = false;
+
+		public ColumnFilter(int... columns) {
+			this.columnNames = null;
+			this.sharedStrings = null;
+			setWanted(columns);
+		}
+
+		public ColumnFilter(String[] columnNames, SharedStrings sharedStrings) {
+			this.columnNames = columnNames;
+			this.sharedStrings = sharedStrings;
+		}
+
+		/**
+		 * Until the headers are known no column is wanted.
+		 */
+		public boolean isWanted(int columnNumber) {
+			return wanted != null && wanted.get(columnNumber);
+		}
+
+		public int nextWanted(int columnNumber) {
+			int next = wanted == null ? -1 : wanted.nextSetBit(columnNumber);
+			return next < 0 ? Integer.MAX_VALUE : next;
+		}
+
+		/**
+		 * One past the last wanted column.
+		 */
+		public int getColumnLimit() {
+			return columnLimit;
+		}
+
+		@Override
+		public void startElement(String uri, String localName, String qName, Attributes attributes)
+				throws SAXException {
+			if (skippedDepth > 0) {
+				skippedDepth++;
+				return;
+			}
+			if (headerEvents == null && wanted == null && "row".equals(localName)) {
+				headerEvents = new ArrayList<>();
+			}
+			if (headerEvents != null) {
+				AttributesImpl copy = new AttributesImpl(attributes);
+				headerEvents.add(() -> startElement(uri, localName, qName, copy));
+				readHeader(localName, attributes);
+				return;
+			}
+			filterStartElement(uri, localName, qName, attributes);
+		}
+
+		@Override
+		public void endElement(String uri, String localName, String qName) throws SAXException {
+			if (skippedDepth > 0) {
+				skippedDepth--;
+				return;
+			}
+			if (headerEvents != null) {
+				headerEvents.add(() -> endElement(uri, localName, qName));
+				endHeader(localName);
+				return;
+			}
+			super.endElement(uri, localName, qName);
+		}
+
+		@Override
+		public void characters(char[] ch, int start, int length) throws SAXException {
+			if (skippedDepth > 0) {
+				return;
+			}
+			if (headerEvents != null) {
+				char[] copy = Arrays.copyOfRange(ch, start, start + length);
+				headerEvents.add(() -> characters(copy, 0, copy.length));
+				if (inHeaderValue) {
+					header.append(ch, start, length);
+				}
+				return;
+			}
+			super.characters(ch, start, length);
+		}
+
+		protected void filterStartElement(String uri, String localName, String qName, Attributes attributes)
+				throws SAXException {
+			if ("row".equals(localName)) {
+				int rowNumber = rowNumber(attributes.getValue("r"));
+				currentRowNumber = rowNumber < 0 ? currentRowNumber + 1 : rowNumber;
+				currentColumnNumber = -1;
+			} else if ("c".equals(localName)) {
+				String reference = attributes.getValue("r");
+				int columnNumber = columnNumber(reference);
+				currentColumnNumber = columnNumber < 0 ? currentColumnNumber + 1 : columnNumber;
+				if (!isWanted(currentColumnNumber)) {
+					skippedDepth = 1;
+					return;
+				}
+				if (reference == null) {
+					// The handler could not tell which cells were dropped before this one
+					AttributesImpl withReference = new AttributesImpl(attributes);
+					withReference.addAttribute("", "r", "r", "CDATA",
+							new CellAddress(currentRowNumber, currentColumnNumber).formatAsString());
+					attributes = withReference;
+				}
+			}
+			super.startElement(uri, localName, qName, attributes);
+		}
+
+		protected void readHeader(String localName, Attributes attributes) {
+			switch (localName) {
+			case "c":
+				int columnNumber = columnNumber(attributes.getValue("r"));
+				currentColumnNumber = columnNumber < 0 ? currentColumnNumber + 1 : columnNumber;
+				headerType = attributes.getValue("t");
+				header.setLength(0);
+				break;
+			case "v":
+				inHeaderValue = true;
+				break;
+			case "t":
+				inHeaderValue = "inlineStr".equals(headerType) && !inPhonetic;
+				break;
+			case "rPh":
+				inPhonetic = true;
+				break;
+			default:
+				break;
+			}
+		}
+
+		protected void endHeader(String localName) throws SAXException {
+			switch (localName) {
+			case "v":
+			case "t":
+				inHeaderValue = false;
+				break;
+			case "rPh":
+				inPhonetic = false;
+				break;
+			case "c":
+				while (headers.size() <= currentColumnNumber) {
+					headers.add(null);
+				}
+				headers.set(currentColumnNumber, headerText());
+				break;
+			case "row":
+				resolveColumns();
+				break;
+			default:
+				break;
+			}
+		}
+
+		protected String headerText() {
+			if ("s".equals(headerType) && header.length() > 0) {
+				int index = Integer.parseInt(header.toString().trim());
+				if (sharedStrings instanceof PlainTextSharedStrings) {
+					return ((PlainTextSharedStrings) sharedStrings).getString(index);
+				}
+				return sharedStrings.getItemAt(index).getString();
+			}
+			return header.toString();
+		}
+
+		protected void resolveColumns() throws SAXException {
+			int[] columns = new int[columnNames.length];
+			for (int i = 0; i < columnNames.length; i++) {
+				String columnName = columnNames[i].trim();
+				columns[i] = -1;
+				for (int columnNumber = 0; columnNumber < headers.size(); columnNumber++) {
+					String header = headers.get(columnNumber);
+					if (header != null && header.trim().equalsIgnoreCase(columnName)) {
+						columns[i] = columnNumber;
+						break;
+					}
+				}
+				if (columns[i] < 0) {
+					throw new SAXException("No column named '" + columnName + "' in the first row");
+				}
+			}
+			setWanted(columns);
+			List<HeaderEvent> events = headerEvents;
+			headerEvents = null;
+			currentColumnNumber = -1;
+			for (HeaderEvent event : events) {
+				event.replay();
+			}
+		}
+
+		protected void setWanted(int[] columns) {
+			wanted = new BitSet();
+			for (int column : columns) {
+				if (column < 0) {
+					throw new IllegalArgumentException("Column numbers start at 0");
+				}
+				wanted.set(column);
+			}
+			columnLimit = wanted.length();
+		}
+
+		protected interface HeaderEvent {
+			void replay() throws SAXException;
+		}
+	}
+
+	/**
+	 * Drops the rows before the range and ends the parse when a row after it
+	 * starts. Rows without an r attribute are given one, since the handler
+	 * cannot count the rows it never sees.
+	 */
+	public static class RowRangeFilter extends XMLFilterImpl {
+		private final int firstRow;
+		private final long endRow;
+		private int currentRowNumber = -1;
+		private int skippedDepth = 0;
+
+		public RowRangeFilter(int firstRow, int maxRows) {
+			this.firstRow = firstRow;
+			this.endRow = (long) firstRow + maxRows;
+		}
+
+		@Override
+		public void startElement(String uri, String localName, String qName, Attributes attributes)
+				throws SAXException {
+			if (skippedDepth > 0) {
+				skippedDepth++;
+				return;
+			}
+			if ("row".equals(localName)) {
+				String reference = attributes.getValue("r");
+				int rowNumber = rowNumber(reference);
+				currentRowNumber = rowNumber < 0 ? currentRowNumber + 1 : rowNumber;
+				if (currentRowNumber >= endRow) {
+					throw new EndOfRangeException();
+				}
+				if (currentRowNumber < firstRow) {
+					skippedDepth = 1;
+					return;
+				}
+				if (reference == null) {
+					AttributesImpl withReference = new AttributesImpl(attributes);
+					withReference.addAttribute("", "r", "r", "CDATA", Integer.toString(currentRowNumber + 1));
+					attributes = withReference;
+				}
+			}
+			super.startElement(uri, localName, qName, attributes);
+		}
+
+		@Override
+		public void endElement(String uri, String localName, String qName) throws SAXException {
+			if (skippedDepth > 0) {
+				skippedDepth--;
+				return;
+			}
+			super.endElement(uri, localName, qName);
+		}
+
+		@Override
+		public void characters(char[] ch, int start, int length) throws SAXException {
+			if (skippedDepth == 0) {
+				super.characters(ch, start, length);
+			}
+		}
+	}
+
+	/**
+	 * Thrown by a handler to stop reading a sheet once nothing more is needed
+	 * from it.
+	 */
+	protected static class EndOfRangeException extends SAXException {
+		private static final long serialVersionUID = 1L;
+
+		public EndOfRangeException() {
+			super("End of range");
+		}
+	}
+
+	public enum RawType {
+		BLANK, NUMBER, SHARED_STRING, INLINE_STRING, FORMULA_STRING, BOOLEAN, ERROR, DATE
+	}
+
+	/**
+	 * The value of the current cell. The same instance is handed to every
+	 * cellValue call, so it must not be kept after the call returns. Only
+	 * asString() and getCellReference() create objects.
+	 */
+	public static final class RawValue {
+		private final SharedStrings sharedStrings;
+		private final StringBuilder chars;
+		private int rowNumber;
+		private int columnNumber;
+		private int styleIndex;
+		private RawType type;
+
+		RawValue(SharedStrings sharedStrings, StringBuilder chars) {
+			this.sharedStrings = sharedStrings;
+			this.chars = chars;
+		}
+
+		void reset(int rowNumber, int columnNumber, RawType type, int styleIndex) {
+			this.rowNumber = rowNumber;
+			this.columnNumber = columnNumber;
+			this.type = type;
+			this.styleIndex = styleIndex;
+			this.chars.setLength(0);
+		}
+
+		public int getRowNumber() {
+			return rowNumber;
+		}
+
+		public int getColumnNumber() {
+			return columnNumber;
+		}
+
+		public int getStyleIndex() {
+			return styleIndex;
+		}
+
+		public RawType getType() {
+			return type;
+		}
+
+		public boolean isBlank() {
+			return type == RawType.BLANK;
+		}
+
+		/**
+		 * Blank, or text with no characters.
+		 */
+		public boolean isEmpty() {
+			switch (type) {
+			case BLANK:
+				return true;
+			case SHARED_STRING:
+				return asString().isEmpty();
+			default:
+				return chars.length() == 0;
+			}
+		}
+
+		/**
+		 * The raw XML value, which is the index for shared strings.
+		 */
+		public CharSequence getChars() {
+			return chars;
+		}
+
+		public int getSharedStringIndex() {
+			return type == RawType.SHARED_STRING ? (int) parseLong(chars) : -1;
+		}
+
+		/**
+		 * @throws NumberFormatException if the value is not a whole number that
+		 *                               fits in a long
+		 */
+		public long asLong() {
+			if (type == RawType.SHARED_STRING) {
+				return parseLong(asString().trim());
+			}
+			return parseLong(chars);
+		}
+
+		public double asDouble() {
+			if (type == RawType.SHARED_STRING) {
+				return Double.parseDouble(asString().trim());
+			}
+			// Whole numbers are parsed without creating a string
+			if (isWholeNumber(chars)) {
+				return parseLong(chars);
+			}
+			return Double.parseDouble(chars.toString());
+		}
+
+		public boolean asBoolean() {
+			if (type == RawType.SHARED_STRING) {
+				return Boolean.parseBoolean(asString().trim());
+			}
+			return chars.length() == 1 ? chars.charAt(0) == '1' : "true".contentEquals(chars);
+		}
+
+		public String asString() {
+			switch (type) {
+			case BLANK:
+				return null;
+			case SHARED_STRING:
+				if (sharedStrings instanceof PlainTextSharedStrings) {
+					return ((PlainTextSharedStrings) sharedStrings).getString(getSharedStringIndex());
+				}
+				return sharedStrings.getItemAt(getSharedStringIndex()).getString();
+			case BOOLEAN:
+				return asBoolean() ? "TRUE" : "FALSE";
+			default:
+				return chars.toString();
+			}
+		}
+
+		public String getCellReference() {
+			return new CellAddress(rowNumber, columnNumber).formatAsString();
+		}
+
+		@Override
+		public String toString() {
+			return getCellReference() + "=" + asString();
+		}
+
+		private static boolean isWholeNumber(CharSequence chars) {
+			int length = chars.length();
+			int start = (length > 0 && chars.charAt(0) == '-') ? 1 : 0;
+			// Longer values may not fit in a long
+			if (length == start || length - start > 18) {
+				return false;
+			}
+			for (int i = start; i < length; i++) {
+				char c = chars.charAt(i);
+				if (c < '0' || c > '9') {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		private static long parseLong(CharSequence chars) {
+			if (!isWholeNumber(chars)) {
+				if (chars.length() == 0) {
+					throw new NumberFormatException("Cell has no value");
+				}
+				// For example 1.0 or 1E3, while 1.5 or a value past a long is refused
+				try {
+					return new BigDecimal(chars.toString()).longValueExact();
+				} catch (ArithmeticException e) {
+					throw new NumberFormatException("Not a whole number that fits in a long: " + chars);
+				}
+			}
+			int length = chars.length();
+			boolean negative = chars.charAt(0) == '-';
+			long value = 0;
+			for (int i = negative ? 1 : 0; i < length; i++) {
+				value = value * 10 + (chars.charAt(i) - '0');
+			}
+			return negative ? -value : value;
+		}
+	}
+
+	public interface Callback {
+		default void beginSheet(String sheetName, int index) {
+		}
+
+		default boolean supportEmptyRows() {
+			return true;
+		}
+
+		default void beginRow(int rowNumber) {
+		}
+
+		default void cellValue(int rowNumber, int columnNumber, String formattedValue, String cellReference,
+				XSSFComment comment) {
+		}
+
+		default void endRow(int rowNumber) {
+		}
+
+		default void endSheet(String sheetName, int index) {
+		}
+
+		default void endSpreadsheet() {
+		}
+	}
+
+	/**
+	 * A lower level callback than Callback. See RawContentsHandler and RawValue.
+	 */
+	public interface RawCallback {
+		default void beginSheet(String sheetName, int index) {
+		}
+
+		default boolean supportEmptyRows() {
+			return true;
+		}
+
+		default void beginRow(int rowNumber) {
+		}
+
+		default void cellValue(int rowNumber, int columnNumber, RawValue value) {
+		}
+
+		default void endRow(int rowNumber) {
+		}
+
+		default void endSheet(String sheetName, int index) {
+		}
+
+		default void endSpreadsheet() {
+		}
+	}
+
+	public interface ProgressListener {
+		/**
+		 * @param sheetSize the uncompressed size of the sheet, or -1 if unknown
+		 */
+		void sheetBytesRead(long bytesRead, long sheetSize);
+	}
+
+	public interface ParseListener {
+		default void sharedStringsLoaded(long nanos) {
+		}
+
+		default void sheetParsed(String sheetName, long nanos, long rows, long cells) {
+		}
+	}
+}
@@ -0,0 +1,156 @@
+package io.github.learnapachepoixssf.service;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.apache.commons.io.output.CloseShieldOutputStream;
+import org.apache.poi.ss.util.CellReference;
+
+/**
+ * Writes a workbook straight into a zip stream as rows are added, without the
+ * temporary files SXSSF uses. Strings are written inline, so nothing but the
+ * current row is kept in memory. The sheets come first and the parts that
+ * list them last, once it is known how many there are. Closing the writer
+ * finishes the workbook but leaves the underlying stream open.
+ */
+public class StreamingXlsxWriter implements RowWriter {
+
+	static final int BUFFER_SIZE = 64 * 1024;
+
+	static final String[] COLUMNS = new String[26];
+
+	static {
+		for (int i = 0; i < COLUMNS.length; i++) {
+			COLUMNS[i] = CellReference.convertNumToColString(i);
+		}
+	}
+
+	private final ZipOutputStream zip;
+	private final Writer xml;
+	private final int rowsPerSheet;
+	private int sheetCount = 0;
+	private int rowIndex = -1;
+	private int columnIndex = 0;
+	private String rowNumber;
+	private boolean inRow = false;
+	private boolean closed = false;
+
+	public StreamingXlsxWriter(OutputStream out) {
+		this(out, ParallelWidgetExporter.MAX_ROWS_PER_SHEET);
+	}
+
+	/**
+	 * @param rowsPerSheet rows after which the next sheet is started
+	 */
+	public StreamingXlsxWriter(OutputStream out, int rowsPerSheet) {
+		if (rowsPerSheet < 1 || rowsPerSheet > ParallelWidgetExporter.MAX_ROWS_PER_SHEET) {
+			throw new IllegalArgumentException("Invalid rows per sheet " + rowsPerSheet);
+		}
+		this.zip = new ZipOutputStream(CloseShieldOutputStream.wrap(out), StandardCharsets.UTF_8);
+		this.xml = new BufferedWriter(new OutputStreamWriter(zip, StandardCharsets.UTF_8), BUFFER_SIZE);
+		this.rowsPerSheet = rowsPerSheet;
+	}
+
+	@Override
+	public void startRow() throws IOException {
+		if (inRow) {
+			endRow();
+		}
+		if (sheetCount == 0 || rowIndex + 1 == rowsPerSheet) {
+			startSheet();
+		}
+		rowIndex++;
+		columnIndex = 0;
+		rowNumber = Integer.toString(rowIndex + 1);
+		XlsxParts.startRow(xml, rowNumber);
+		inRow = true;
+	}
+
+	@Override
+	public void numberCell(long value) throws IOException {
+		XlsxParts.numberCell(xml, column(), rowNumber, value);
+		columnIndex++;
+	}
+
+	@Override
+	public void stringCell(String value) throws IOException {
+		if (value != null) {
+			XlsxParts.inlineStringCell(xml, column(), rowNumber, value);
+		}
+		columnIndex++;
+	}
+
+	@Override
+	public void endRow() throws IOException {
+		XlsxParts.endRow(xml);
+		inRow = false;
+	}
+
+	@Override
+	public int getRowCount() {
+		return sheetCount == 0 ? 0 : (sheetCount - 1) * rowsPerSheet + rowIndex + 1;
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		if (inRow) {
+			endRow();
+		}
+		if (sheetCount == 0) {
+			// A workbook needs at least one sheet
+			startSheet();
+		}
+		endSheet();
+		writePart(XlsxParts.WORKBOOK, XlsxParts.workbook(sheetCount));
+		writePart(XlsxParts.WORKBOOK_RELATIONSHIPS, XlsxParts.workbookRelationships(sheetCount));
+		writePart(XlsxParts.STYLES, XlsxParts.styles());
+		writePart(XlsxParts.ROOT_RELATIONSHIPS, XlsxParts.rootRelationships());
+		writePart(XlsxParts.CONTENT_TYPES, XlsxParts.contentTypes(sheetCount));
+		zip.close();
+	}
+
+	/**
+	 * The workbook is left without the parts that list its sheets. The zip
+	 * stream is not closed, since that would write its directory.
+	 */
+	@Override
+	public void abort() {
+		closed = true;
+	}
+
+	protected void startSheet() throws IOException {
+		if (sheetCount > 0) {
+			endSheet();
+		}
+		zip.putNextEntry(new ZipEntry(XlsxParts.sheetPartName(sheetCount++)));
+		xml.write(XlsxParts.sheetStart());
+		rowIndex = -1;
+	}
+
+	protected void endSheet() throws IOException {
+		xml.write(XlsxParts.sheetEnd());
+		xml.flush();
+		zip.closeEntry();
+	}
+
+	protected void writePart(String name, String content) throws IOException {
+		zip.putNextEntry(new ZipEntry(name));
+		xml.write(content);
+		xml.flush();
+		zip.closeEntry();
+	}
+
+	protected String column() {
+		return columnIndex < COLUMNS.length ? COLUMNS[columnIndex] : CellReference.convertNumToColString(columnIndex);
+	}
+}
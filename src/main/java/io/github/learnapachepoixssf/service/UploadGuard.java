@@ -0,0 +1,293 @@
+package io.github.learnapachepoixssf.service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.util.Enumeration;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.IntSupplier;
+import java.util.function.LongSupplier;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import org.apache.commons.io.input.ProxyInputStream;
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.XMLFilterImpl;
+
+/**
+ * Limits what one upload may expand to while it is read, so that a small,
+ * highly compressed upload cannot take minutes of CPU or gigabytes of temporary
+ * disk before it fails. Each entry may inflate to a number of bytes, and to a
+ * multiple of its compressed size, and all entries together to a total. Each
+ * sheet may have a number of rows and cells. Reading stops with an
+ * UploadLimitException as soon as a limit is crossed.
+ * <p>
+ * A guard counts the bytes of one upload, so a new one is needed for each.
+ */
+public class UploadGuard {
+
+	// Entries smaller than this are not checked for their expansion ratio
+	static final long RATIO_GRACE_BYTES = 1024 * 1024;
+
+	private final long maxEntryBytes;
+	private final long maxTotalBytes;
+	private final int maxExpansionRatio;
+	private final long maxRows;
+	private final long maxCells;
+	private final Consumer<String> rejectionListener;
+	private final AtomicLong totalBytes = new AtomicLong();
+
+	/**
+	 * @param rejectionListener told the name of the limit when an upload is
+	 *                          turned away
+	 */
+	public UploadGuard(long maxEntryBytes, long maxTotalBytes, int maxExpansionRatio, long maxRows, long maxCells,
+			Consumer<String> rejectionListener) {
+		if (maxExpansionRatio < 1) {
+			throw new IllegalArgumentException("An entry expands to at least its compressed size");
+		}
+		this.maxEntryBytes = maxEntryBytes;
+		this.maxTotalBytes = maxTotalBytes;
+		this.maxExpansionRatio = maxExpansionRatio;
+		this.maxRows = maxRows;
+		this.maxCells = maxCells;
+		this.rejectionListener = rejectionListener;
+	}
+
+	/**
+	 * Check the sizes the zip directory gives before anything is inflated. They
+	 * are only what the upload claims, so the entries are still counted as they
+	 * are read. Files that are not zips are left to their parser.
+	 */
+	public void checkDirectory(Path zipFile) throws UploadLimitException {
+		long total = 0;
+		try (ZipFile zip = new ZipFile(zipFile.toFile())) {
+			Enumeration<? extends ZipEntry> entries = zip.entries();
+			while (entries.hasMoreElements()) {
+				ZipEntry entry = entries.nextElement();
+				if (entry.getSize() < 0) {
+					continue;
+				}
+				checkEntry(entry.getName(), entry.getSize(), entry.getCompressedSize());
+				total += entry.getSize();
+				if (total > maxTotalBytes) {
+					throw reject("total-size", "Upload expands to more than " + maxTotalBytes + " bytes");
+				}
+			}
+		} catch (UploadLimitException e) {
+			throw e;
+		} catch (IOException e) {
+			// Not a zip, or not one that can be read
+		}
+	}
+
+	/**
+	 * Count the bytes inflated from an entry as they are read. A stream this
+	 * guard already counts is returned as it is, so entries of a zip source that
+	 * guards them are not counted twice by their parser.
+	 *
+	 * @param compressedBytes how many compressed bytes the entry has, or has had
+	 *                        read so far when that is not known up front
+	 */
+	public InputStream guard(String entryName, InputStream inflated, LongSupplier compressedBytes) {
+		if (inflated instanceof GuardedInputStream && ((GuardedInputStream) inflated).getGuard() == this) {
+			return inflated;
+		}
+		return new GuardedInputStream(entryName, inflated, compressedBytes);
+	}
+
+	/**
+	 * Count the bytes of an upload as it is sent, before anything is inflated,
+	 * for uploads that are parsed as they arrive instead of being saved first.
+	 */
+	public InputStream limitUpload(InputStream upload, long maxUploadBytes) {
+		return new ProxyInputStream(upload) {
+
+			long bytes = 0;
+
+			@Override
+			protected void afterRead(int n) throws IOException {
+				if (n > 0 && (bytes += n) > maxUploadBytes) {
+					throw reject("upload-size", "Upload is larger than " + maxUploadBytes + " bytes");
+				}
+			}
+		};
+	}
+
+	protected void checkEntry(String entryName, long bytes, long compressedBytes) throws UploadLimitException {
+		if (bytes > maxEntryBytes) {
+			throw reject("entry-size", entryName + " expands to more than " + maxEntryBytes + " bytes");
+		}
+		if (bytes > RATIO_GRACE_BYTES && compressedBytes >= 0 && bytes / maxExpansionRatio > compressedBytes) {
+			throw reject("ratio", entryName + " expands to more than " + maxExpansionRatio
+					+ " times its compressed size");
+		}
+	}
+
+	public SheetCounter newSheetCounter() {
+		return new SheetCounter();
+	}
+
+	/**
+	 * Counts the rows and cells of a sheet while it is parsed.
+	 *
+	 * @param filledColumns how many columns of each row the parser reports,
+	 *                      filling in blank cells where the row has none
+	 */
+	public XMLFilterImpl newSheetFilter(IntSupplier filledColumns) {
+		return new SheetFilter(newSheetCounter(), filledColumns);
+	}
+
+	protected UploadLimitException reject(String limit, String message) {
+		rejectionListener.accept(limit);
+		return new UploadLimitException(limit, message);
+	}
+
+	protected class GuardedInputStream extends ProxyInputStream {
+		private final String entryName;
+		private final LongSupplier compressedBytes;
+		private long bytes = 0;
+
+		public GuardedInputStream(String entryName, InputStream inflated, LongSupplier compressedBytes) {
+			super(inflated);
+			this.entryName = entryName;
+			this.compressedBytes = compressedBytes;
+		}
+
+		@Override
+		protected void afterRead(int n) throws IOException {
+			if (n > 0) {
+				bytes += n;
+				checkEntry(entryName, bytes, compressedBytes.getAsLong());
+				if (totalBytes.addAndGet(n) > maxTotalBytes) {
+					throw reject("total-size", "Upload expands to more than " + maxTotalBytes + " bytes");
+				}
+			}
+		}
+
+		public UploadGuard getGuard() {
+			return UploadGuard.this;
+		}
+	}
+
+	public class SheetCounter {
+		private long rows = 0;
+		private long cells = 0;
+
+		public void row() throws UploadLimitException {
+			if (++rows > maxRows) {
+				throw reject("rows", "Sheet has more than " + maxRows + " rows");
+			}
+		}
+
+		/**
+		 * A row at a 0 based index. The rows skipped to reach it are filled in
+		 * blank by the parsers, so they count as rows of filledColumns cells.
+		 */
+		public void row(long rowIndex, int filledColumns) throws UploadLimitException {
+			long skipped = Math.max(0, rowIndex - rows);
+			rows += skipped;
+			row();
+			cells(skipped * filledColumns);
+		}
+
+		public void cells(long count) throws UploadLimitException {
+			cells += count;
+			if (cells > maxCells) {
+				throw reject("cells", "Sheet has more than " + maxCells + " cells");
+			}
+		}
+	}
+
+	/**
+	 * Counts the row and c elements before any other filter drops them, along
+	 * with the blank rows and cells the parsers fill in before them by their r
+	 * attributes, so one row far down a sheet counts as all the rows above it.
+	 * The limit is thrown inside a SAXException, which the parser unwraps.
+	 */
+	protected static class SheetFilter extends XMLFilterImpl {
+		private final SheetCounter counter;
+		private final IntSupplier filledColumns;
+		private long currentRow = -1;
+		private long currentColumn = -1;
+
+		public SheetFilter(SheetCounter counter, IntSupplier filledColumns) {
+			this.counter = counter;
+			this.filledColumns = filledColumns;
+		}
+
+		@Override
+		public void startElement(String uri, String localName, String qName, Attributes attributes)
+				throws SAXException {
+			try {
+				if ("row".equals(localName)) {
+					long rowIndex = rowIndex(attributes.getValue("r"));
+					currentRow = rowIndex < 0 ? currentRow + 1 : rowIndex;
+					currentColumn = -1;
+					counter.row(currentRow, filledColumns.getAsInt());
+				} else if ("c".equals(localName)) {
+					long columnIndex = columnIndex(attributes.getValue("r"));
+					if (columnIndex < 0) {
+						columnIndex = currentColumn + 1;
+					}
+					counter.cells(Math.max(1, columnIndex - currentColumn));
+					currentColumn = Math.max(currentColumn, columnIndex);
+				}
+			} catch (UploadLimitException e) {
+				throw new SAXException(e);
+			}
+			super.startElement(uri, localName, qName, attributes);
+		}
+
+		@Override
+		public void endElement(String uri, String localName, String qName) throws SAXException {
+			if ("row".equals(localName)) {
+				try {
+					// Short rows are filled in up to the columns reported
+					counter.cells(Math.max(0, filledColumns.getAsInt() - currentColumn - 1));
+				} catch (UploadLimitException e) {
+					throw new SAXException(e);
+				}
+			}
+			super.endElement(uri, localName, qName);
+		}
+
+		/**
+		 * @return the 0 based row of a reference like 12, or -1 without one
+		 */
+		protected static long rowIndex(String reference) {
+			if (reference == null || reference.isEmpty()) {
+				return -1;
+			}
+			long rowNumber = 0;
+			for (int i = 0; i < reference.length() && rowNumber < Integer.MAX_VALUE; i++) {
+				int digit = Character.digit(reference.charAt(i), 10);
+				if (digit < 0) {
+					break;
+				}
+				rowNumber = rowNumber * 10 + digit;
+			}
+			return Math.max(0, rowNumber - 1);
+		}
+
+		/**
+		 * @return the 0 based column of a reference like AB12, or -1 without one
+		 */
+		protected static long columnIndex(String reference) {
+			if (reference == null) {
+				return -1;
+			}
+			long columnNumber = 0;
+			for (int i = 0; i < reference.length() && columnNumber < Integer.MAX_VALUE; i++) {
+				char c = reference.charAt(i);
+				if (c < 'A' || c > 'Z') {
+					break;
+				}
+				columnNumber = columnNumber * 26 + (c - 'A' + 1);
+			}
+			return columnNumber - 1;
+		}
+	}
+}
@@ -0,0 +1,22 @@
+package io.github.learnapachepoixssf.service;
+
+import java.io.IOException;
+
+import lombok.Getter;
+
+/**
+ * An upload was turned away for crossing one of its limits, see UploadGuard.
+ * The limit is named the way the rejection metric is tagged.
+ */
+@Getter
+public class UploadLimitException extends IOException {
+
+	private static final long serialVersionUID = 1L;
+
+	private final String limit;
+
+	public UploadLimitException(String limit, String message) {
+		super(message);
+		this.limit = limit;
+	}
+}
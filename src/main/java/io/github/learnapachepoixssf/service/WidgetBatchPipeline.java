@@ -0,0 +1,207 @@
+package io.github.learnapachepoixssf.service;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+import io.github.learnapachepoixssf.model.Widget;
+
+/**
+ * Hands batches of parsed widgets to writer threads through a bounded queue so
+ * that parsing and persisting overlap. When the queue is full the parsing
+ * thread blocks until a writer catches up.
+ * <p>
+ * Batches are numbered from 0 in the order they are parsed, and a batch counts
+ * as committed once the batch writer returns. After the first failure the
+ * batches still queued are skipped, while the batches other writers have
+ * already started are finished. The parsing thread then gets a
+ * BatchImportException naming the failed batch and the committed ones.
+ * When parsing fails instead, discard skips the batches still queued, since
+ * committing them would leave rows saved past where a resumed import starts.
+ * Batches an earlier import already committed are counted as committed
+ * without being written again.
+ */
+public class WidgetBatchPipeline implements Consumer<List<Widget>>, AutoCloseable {
+
+	private static final long OFFER_TIMEOUT_MILLIS = 100;
+
+	// Compared by identity, so it can never be mistaken for a real batch
+	private final Batch endOfBatches = new Batch(-1, List.of());
+
+	private final BlockingQueue<Batch> queue;
+	private final ExecutorService executor;
+	private final List<Future<?>> writers = new ArrayList<>();
+	private final AtomicReference<Throwable> failure = new AtomicReference<>();
+	private final Set<Integer> committedBatches = new ConcurrentSkipListSet<>();
+	private final Collection<Integer> alreadyCommitted;
+	private final AtomicInteger committedRows = new AtomicInteger();
+	private volatile int failedBatch = -1;
+	private volatile boolean failureReported = false;
+	private volatile boolean discarded = false;
+	private int nextBatchNumber = 0;
+	private boolean writersStopped = false;
+
+	public WidgetBatchPipeline(int writerThreads, int queueCapacity, Consumer<List<Widget>> batchWriter) {
+		this(writerThreads, queueCapacity, List.of(), batchWriter);
+	}
+
+	public WidgetBatchPipeline(int writerThreads, int queueCapacity, Collection<Integer> alreadyCommitted,
+			Consumer<List<Widget>> batchWriter) {
+		this(writerThreads, queueCapacity, alreadyCommitted, Executors.defaultThreadFactory(), batchWriter);
+	}
+
+	public WidgetBatchPipeline(int writerThreads, int queueCapacity, Collection<Integer> alreadyCommitted,
+			ThreadFactory threadFactory, Consumer<List<Widget>> batchWriter) {
+		if (writerThreads < 1) {
+			throw new IllegalArgumentException("At least one writer thread is required");
+		}
+		this.alreadyCommitted = alreadyCommitted;
+		this.committedBatches.addAll(alreadyCommitted);
+		this.queue = new ArrayBlockingQueue<>(Math.max(1, queueCapacity));
+		this.executor = Executors.newFixedThreadPool(writerThreads, threadFactory);
+		for (int i = 0; i < writerThreads; i++) {
+			writers.add(executor.submit(() -> {
+				write(batchWriter);
+				return null;
+			}));
+		}
+	}
+
+	@Override
+	public void accept(List<Widget> batch) {
+		if (batch.isEmpty()) {
+			return;
+		}
+		checkFailure();
+		int batchNumber = nextBatchNumber++;
+		if (alreadyCommitted.contains(batchNumber)) {
+			return;
+		}
+		put(new Batch(batchNumber, batch));
+	}
+
+	@Override
+	public void close() {
+		stopWriters();
+		// Do not throw a failure the parsing thread has already seen
+		if (!failureReported) {
+			checkFailure();
+		}
+	}
+
+	/**
+	 * Stop without writing the batches still queued, for when parsing has
+	 * failed. The batches writers have already started are finished.
+	 */
+	public void discard() {
+		discarded = true;
+		queue.clear();
+		stopWriters();
+	}
+
+	/**
+	 * Includes the batches an earlier import already committed.
+	 */
+	public List<Integer> getCommittedBatches() {
+		return new ArrayList<>(committedBatches);
+	}
+
+	public int getCommittedRows() {
+		return committedRows.get();
+	}
+
+	protected void write(Consumer<List<Widget>> batchWriter) throws InterruptedException {
+		while (true) {
+			Batch batch = queue.take();
+			if (batch == endOfBatches) {
+				return;
+			}
+			// Keep draining after a failure so the parsing thread never blocks
+			if (failure.get() == null && !discarded) {
+				try {
+					batchWriter.accept(batch.widgets);
+					committedBatches.add(batch.number);
+					committedRows.addAndGet(batch.widgets.size());
+				} catch (Throwable t) {
+					if (failure.compareAndSet(null, t)) {
+						failedBatch = batch.number;
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Wait for the writers to finish the batches they have started.
+	 */
+	protected void stopWriters() {
+		if (writersStopped) {
+			return;
+		}
+		writersStopped = true;
+		try {
+			for (int i = 0; i < writers.size(); i++) {
+				put(endOfBatches);
+			}
+			for (Future<?> writer : writers) {
+				writer.get();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while waiting for widget writers", e);
+		} catch (ExecutionException e) {
+			failure.compareAndSet(null, e.getCause());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	protected void put(Batch batch) {
+		try {
+			while (!queue.offer(batch, OFFER_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+				if (batch != endOfBatches) {
+					checkFailure();
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while queueing widgets", e);
+		}
+	}
+
+	protected void checkFailure() {
+		if (failure.get() != null) {
+			failureReported = true;
+			// Only now is it known which batches were committed
+			stopWriters();
+			Throwable t = failure.get();
+			if (t instanceof Error) {
+				throw (Error) t;
+			}
+			throw new BatchImportException(failedBatch, getCommittedBatches(), getCommittedRows(), t);
+		}
+	}
+
+	protected static class Batch {
+		final int number;
+		final List<Widget> widgets;
+
+		Batch(int number, List<Widget> widgets) {
+			this.number = number;
+			this.widgets = widgets;
+		}
+	}
+}
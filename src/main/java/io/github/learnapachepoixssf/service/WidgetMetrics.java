@@ -0,0 +1,133 @@
+package io.github.learnapachepoixssf.service;
+
+import java.util.concurrent.TimeUnit;
+
+import org.springframework.stereotype.Component;
+
+import io.github.learnapachepoixssf.service.SheetStreamParser.ParseListener;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+/**
+ * Meters for parsing uploads, saving widgets and writing downloads, tagged by
+ * parseType, persistenceType and exportType. Rows, cells and bytes are
+ * counters, so dashboards get rates per second from them.
+ */
+@Component
+public class WidgetMetrics {
+
+	private final MeterRegistry registry;
+
+	public WidgetMetrics(MeterRegistry registry) {
+		this.registry = registry;
+	}
+
+	public ParseListener parseListener(String parseType, String sharedStringsType) {
+		return new ParseListener() {
+			@Override
+			public void sharedStringsLoaded(long nanos) {
+				Timer.builder("xlsx.parse.shared.strings")
+						.description("Time to load the shared strings table of a workbook")
+						.tags("parseType", parseType, "sharedStrings", sharedStringsType)
+						.register(registry).record(nanos, TimeUnit.NANOSECONDS);
+			}
+
+			@Override
+			public void sheetParsed(String sheetName, long nanos, long rows, long cells) {
+				WidgetMetrics.this.sheetParsed(parseType, nanos, rows, cells);
+			}
+		};
+	}
+
+	public void sheetParsed(String parseType, long nanos, long rows, long cells) {
+		Timer.builder("xlsx.parse.sheet")
+				.description("Time to parse a sheet, including handling its rows")
+				.tag("parseType", parseType)
+				.register(registry).record(nanos, TimeUnit.NANOSECONDS);
+		Counter.builder("xlsx.parse.rows").baseUnit("rows").tag("parseType", parseType)
+				.register(registry).increment(rows);
+		Counter.builder("xlsx.parse.cells").baseUnit("cells").tag("parseType", parseType)
+				.register(registry).increment(cells);
+	}
+
+	/**
+	 * Whether an upload asked to be parsed with dom was, or was streamed
+	 * because it would take too much of the heap.
+	 */
+	public void domParse(String result) {
+		Counter.builder("xlsx.parse.dom")
+				.description("Uploads asked to be parsed with dom, by whether they were admitted")
+				.tag("result", result)
+				.register(registry).increment();
+	}
+
+	/**
+	 * An upload turned away for crossing a limit, see UploadGuard.
+	 */
+	public void uploadRejected(String limit) {
+		Counter.builder("widgets.upload.rejected")
+				.description("Uploads turned away for expanding too far or having too many rows or cells")
+				.tag("limit", limit)
+				.register(registry).increment();
+	}
+
+	public void batchSaved(String persistenceType, int rows, long nanos) {
+		Timer.builder("widgets.persist.batch")
+				.description("Time to save a batch of widgets")
+				.tag("persistenceType", persistenceType)
+				.publishPercentileHistogram()
+				.register(registry).record(nanos, TimeUnit.NANOSECONDS);
+		DistributionSummary.builder("widgets.persist.batch.rows").baseUnit("rows")
+				.tag("persistenceType", persistenceType)
+				.register(registry).record(rows);
+		Counter.builder("widgets.persist.rows").baseUnit("rows").tag("persistenceType", persistenceType)
+				.register(registry).increment(rows);
+	}
+
+	/**
+	 * How an upload was saved given the earlier ones: hit when it had been
+	 * imported before, incremental when only its changed batches were saved and
+	 * miss otherwise.
+	 */
+	public void ingested(String result) {
+		Counter.builder("widgets.ingest.uploads")
+				.description("Uploads saved, by whether an earlier import of them was found")
+				.tag("result", result)
+				.register(registry).increment();
+	}
+
+	public void exported(String exportType, int rows, long bytes, long nanos) {
+		Timer.builder("widgets.export")
+				.description("Time to write a download")
+				.tag("exportType", exportType)
+				.register(registry).record(nanos, TimeUnit.NANOSECONDS);
+		Counter.builder("widgets.export.rows").baseUnit("rows").tag("exportType", exportType)
+				.register(registry).increment(rows);
+		Counter.builder("widgets.export.bytes").baseUnit("bytes").tag("exportType", exportType)
+				.register(registry).increment(bytes);
+	}
+
+	/**
+	 * How a download was served: from a snapshot already rendered (hit), from
+	 * one another download was rendering (joined) or by rendering it.
+	 */
+	public void exportSnapshot(String exportType, String result) {
+		Counter.builder("widgets.export.snapshot")
+				.description("Downloads served from the export snapshot cache")
+				.tags("exportType", exportType, "result", result)
+				.register(registry).increment();
+	}
+
+	/**
+	 * Time for SXSSF to turn the rows flushed to temporary files into the
+	 * workbook.
+	 */
+	public void workbookWritten(String exportType, long nanos) {
+		Timer.builder("widgets.export.flush")
+				.description("Time to write out a streamed workbook")
+				.tag("exportType", exportType)
+				.register(registry).record(nanos, TimeUnit.NANOSECONDS);
+	}
+}
@@ -0,0 +1,22 @@
+package io.github.learnapachepoixssf.service;
+
+import java.util.concurrent.ThreadFactory;
+
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+
+/**
+ * Makes the threads that imports and exports start for their work: writer
+ * threads, parallel export threads and import job threads. They are platform
+ * threads unless a bean of this type says otherwise, as the java21 build does
+ * for virtual threads.
+ */
+public interface WorkerThreads {
+
+	WorkerThreads PLATFORM = CustomizableThreadFactory::new;
+
+	ThreadFactory newThreadFactory(String namePrefix);
+
+	default boolean isVirtual() {
+		return false;
+	}
+}
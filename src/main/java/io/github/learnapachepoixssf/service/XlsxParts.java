@@ -0,0 +1,179 @@
+package io.github.learnapachepoixssf.service;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * The XML of the parts of a minimal workbook, for exports that write the
+ * package themselves instead of going through SXSSF. Cells are numbers or
+ * inline strings, so there is no shared strings part.
+ */
+public final class XlsxParts {
+
+	public static final String CONTENT_TYPES = "[Content_Types].xml";
+	public static final String ROOT_RELATIONSHIPS = "_rels/.rels";
+	public static final String WORKBOOK = "xl/workbook.xml";
+	public static final String WORKBOOK_RELATIONSHIPS = "xl/_rels/workbook.xml.rels";
+	public static final String STYLES = "xl/styles.xml";
+
+	static final String XML_DECLARATION = "<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"yes\"?>\n";
+	static final String MAIN_NAMESPACE = "http://schemas.openxmlformats.org/spreadsheetml/2006/main";
+	static final String RELATIONSHIPS_NAMESPACE = "http://schemas.openxmlformats.org/officeDocument/2006/relationships";
+	static final String PACKAGE_RELATIONSHIPS_NAMESPACE = "http://schemas.openxmlformats.org/package/2006/relationships";
+
+	private XlsxParts() {
+	}
+
+	public static String sheetPartName(int sheetIndex) {
+		return "xl/worksheets/sheet" + (sheetIndex + 1) + ".xml";
+	}
+
+	public static String sheetName(int sheetIndex) {
+		return "Sheet" + (sheetIndex + 1);
+	}
+
+	public static String contentTypes(int sheetCount) {
+		StringBuilder xml = new StringBuilder(XML_DECLARATION);
+		xml.append("<Types xmlns=\"http://schemas.openxmlformats.org/package/2006/content-types\">");
+		xml.append("<Default Extension=\"rels\" ContentType=\"application/vnd.openxmlformats-package.relationships+xml\"/>");
+		xml.append("<Default Extension=\"xml\" ContentType=\"application/xml\"/>");
+		xml.append("<Override PartName=\"/").append(WORKBOOK).append(
+				"\" ContentType=\"application/vnd.openxmlformats-officedocument.spreadsheetml.sheet.main+xml\"/>");
+		xml.append("<Override PartName=\"/").append(STYLES)
+				.append("\" ContentType=\"application/vnd.openxmlformats-officedocument.spreadsheetml.styles+xml\"/>");
+		for (int i = 0; i < sheetCount; i++) {
+			xml.append("<Override PartName=\"/").append(sheetPartName(i)).append(
+					"\" ContentType=\"application/vnd.openxmlformats-officedocument.spreadsheetml.worksheet+xml\"/>");
+		}
+		return xml.append("</Types>").toString();
+	}
+
+	public static String rootRelationships() {
+		return XML_DECLARATION + "<Relationships xmlns=\"" + PACKAGE_RELATIONSHIPS_NAMESPACE + "\">"
+				+ "<Relationship Id=\"rId1\" Type=\"" + RELATIONSHIPS_NAMESPACE + "/officeDocument\" Target=\""
+				+ WORKBOOK + "\"/></Relationships>";
+	}
+
+	public static String workbook(int sheetCount) {
+		StringBuilder xml = new StringBuilder(XML_DECLARATION);
+		xml.append("<workbook xmlns=\"").append(MAIN_NAMESPACE).append("\" xmlns:r=\"")
+				.append(RELATIONSHIPS_NAMESPACE).append("\"><sheets>");
+		for (int i = 0; i < sheetCount; i++) {
+			xml.append("<sheet name=\"").append(sheetName(i)).append("\" sheetId=\"").append(i + 1)
+					.append("\" r:id=\"rId").append(i + 1).append("\"/>");
+		}
+		return xml.append("</sheets></workbook>").toString();
+	}
+
+	public static String workbookRelationships(int sheetCount) {
+		StringBuilder xml = new StringBuilder(XML_DECLARATION);
+		xml.append("<Relationships xmlns=\"").append(PACKAGE_RELATIONSHIPS_NAMESPACE).append("\">");
+		for (int i = 0; i < sheetCount; i++) {
+			xml.append("<Relationship Id=\"rId").append(i + 1).append("\" Type=\"").append(RELATIONSHIPS_NAMESPACE)
+					.append("/worksheet\" Target=\"worksheets/sheet").append(i + 1).append(".xml\"/>");
+		}
+		// After the sheets, so sheet n is always rId n
+		xml.append("<Relationship Id=\"rId").append(sheetCount + 1).append("\" Type=\"")
+				.append(RELATIONSHIPS_NAMESPACE).append("/styles\" Target=\"styles.xml\"/>");
+		return xml.append("</Relationships>").toString();
+	}
+
+	public static String styles() {
+		return XML_DECLARATION + "<styleSheet xmlns=\"" + MAIN_NAMESPACE + "\">"
+				+ "<fonts count=\"1\"><font><sz val=\"11\"/><name val=\"Calibri\"/></font></fonts>"
+				+ "<fills count=\"2\"><fill><patternFill patternType=\"none\"/></fill>"
+				+ "<fill><patternFill patternType=\"gray125\"/></fill></fills>"
+				+ "<borders count=\"1\"><border><left/><right/><top/><bottom/><diagonal/></border></borders>"
+				+ "<cellStyleXfs count=\"1\"><xf numFmtId=\"0\" fontId=\"0\" fillId=\"0\" borderId=\"0\"/></cellStyleXfs>"
+				+ "<cellXfs count=\"1\"><xf numFmtId=\"0\" fontId=\"0\" fillId=\"0\" borderId=\"0\" xfId=\"0\"/></cellXfs>"
+				+ "</styleSheet>";
+	}
+
+	public static String sheetStart() {
+		return XML_DECLARATION + "<worksheet xmlns=\"" + MAIN_NAMESPACE + "\"><sheetData>";
+	}
+
+	public static String sheetEnd() {
+		return "</sheetData></worksheet>";
+	}
+
+	/**
+	 * One row of a widget.
+	 * 
+	 * @param rowIndex zero based, within the sheet
+	 */
+	public static void widgetRow(Writer xml, int rowIndex, long id, String name) throws IOException {
+		String rowNumber = Integer.toString(rowIndex + 1);
+		startRow(xml, rowNumber);
+		numberCell(xml, "A", rowNumber, id);
+		if (name != null) {
+			inlineStringCell(xml, "B", rowNumber, name);
+		}
+		endRow(xml);
+	}
+
+	public static void startRow(Writer xml, String rowNumber) throws IOException {
+		xml.write("<row r=\"");
+		xml.write(rowNumber);
+		xml.write("\">");
+	}
+
+	public static void endRow(Writer xml) throws IOException {
+		xml.write("</row>");
+	}
+
+	public static void numberCell(Writer xml, String column, String rowNumber, long value) throws IOException {
+		xml.write("<c r=\"");
+		xml.write(column);
+		xml.write(rowNumber);
+		xml.write("\"><v>");
+		xml.write(Long.toString(value));
+		xml.write("</v></c>");
+	}
+
+	public static void inlineStringCell(Writer xml, String column, String rowNumber, String value)
+			throws IOException {
+		xml.write("<c r=\"");
+		xml.write(column);
+		xml.write(rowNumber);
+		// Otherwise leading and trailing spaces are dropped when read
+		boolean preserve = !value.isEmpty()
+				&& (Character.isWhitespace(value.charAt(0)) || Character.isWhitespace(value.charAt(value.length() - 1)));
+		xml.write(preserve ? "\" t=\"inlineStr\"><is><t xml:space=\"preserve\">" : "\" t=\"inlineStr\"><is><t>");
+		escape(xml, value);
+		xml.write("</t></is></c>");
+	}
+
+	/**
+	 * Escape text for element content. Characters XML 1.0 does not allow are
+	 * dropped.
+	 */
+	public static void escape(Writer xml, String text) throws IOException {
+		int start = 0;
+		int length = text.length();
+		for (int i = 0; i < length; i++) {
+			char c = text.charAt(i);
+			String replacement;
+			switch (c) {
+			case '<':
+				replacement = "&lt;";
+				break;
+			case '>':
+				replacement = "&gt;";
+				break;
+			case '&':
+				replacement = "&amp;";
+				break;
+			default:
+				replacement = c < 0x20 && c != '\t' && c != '\n' && c != '\r' || c == 0xFFFE || c == 0xFFFF ? "" : null;
+				break;
+			}
+			if (replacement != null) {
+				xml.write(text, start, i - start);
+				xml.write(replacement);
+				start = i + 1;
+			}
+		}
+		xml.write(text, start, length - start);
+	}
+}
@@ -1,49 +1,65 @@
 package io.github.learnapachepoixssf.service;
 
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.sql.PreparedStatement;
 import java.sql.SQLException;
-import java.util.LinkedList;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Locale;
+import java.util.Optional;
 import java.util.UUID;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
+import java.util.zip.GZIPOutputStream;
 
 import javax.persistence.EntityManager;
 import javax.persistence.PersistenceContext;
 import javax.sql.DataSource;
 
+import org.apache.commons.io.output.CloseShieldOutputStream;
+import org.apache.commons.io.output.CountingOutputStream;
 import org.apache.poi.EncryptedDocumentException;
+import org.apache.poi.openxml4j.exceptions.InvalidFormatException;
 import org.apache.poi.openxml4j.opc.OPCPackage;
 import org.apache.poi.openxml4j.opc.PackageAccess;
 import org.apache.poi.ss.usermodel.Cell;
-import org.apache.poi.ss.usermodel.CellType;
 import org.apache.poi.ss.usermodel.Row;
 import org.apache.poi.ss.usermodel.Sheet;
 import org.apache.poi.ss.usermodel.Workbook;
 import org.apache.poi.ss.usermodel.WorkbookFactory;
+import org.apache.poi.ss.util.CellRangeAddress;
 import org.apache.poi.xssf.streaming.SXSSFWorkbook;
-import org.apache.poi.xssf.usermodel.XSSFComment;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.jdbc.core.ParameterizedPreparedStatementSetter;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
 
+import io.github.learnapachepoixssf.config.WidgetProperties;
 import io.github.learnapachepoixssf.model.Widget;
 import io.github.learnapachepoixssf.repository.WidgetRepository;
 
 @Service
 public class XlsxService {
 
-	static final int TOTAL_COLUMNS = 2;
-	static final int ID_COLUMN = 0;
-	static final int NAME_COLUMN = 1;
+	static final SheetRowMapper<Widget> WIDGET_MAPPER = SheetRowMapper.forType(Widget.class);
 
 	@Autowired
 	protected DataSource dataSource;
@@ -54,6 +70,61 @@ public class XlsxService {
 	@Autowired
 	protected WidgetRepository widgetRepository;
 
+	@Autowired
+	protected PlatformTransactionManager transactionManager;
+
+	@Autowired
+	protected WidgetProperties properties;
+
+	@Autowired
+	protected WidgetMetrics metrics;
+
+	@Autowired
+	protected IngestCache ingestCache;
+
+	@Autowired
+	protected ExportSnapshotCache exportSnapshots;
+
+	@Autowired
+	protected BulkWidgetWriter bulkWidgetWriter;
+
+	@Autowired
+	protected MergeWidgetWriter mergeWidgetWriter;
+
+	@Autowired
+	protected SequenceIdAllocator idAllocator;
+
+	@Autowired
+	protected ResourceLimiter resourceLimiter;
+
+	@Autowired
+	protected DomAdmission domAdmission;
+
+	@Autowired(required = false)
+	protected WorkerThreads workerThreads = WorkerThreads.PLATFORM;
+
+	public void writeOutTestWidgets(OutputStream out, int rows, String exportType) throws IOException {
+		if ("direct".equalsIgnoreCase(exportType)) {
+			writeOutTestWidgetsDirectly(out, rows);
+		} else {
+			writeOutTestWidgets(out, rows);
+		}
+	}
+
+	/**
+	 * Stream the workbook as it is written, without temporary files.
+	 */
+	public void writeOutTestWidgetsDirectly(OutputStream out, int rows) throws IOException {
+		try (StreamingXlsxWriter writer = new StreamingXlsxWriter(out)) {
+			for (int i = 0; i < rows; i++) {
+				writer.startRow();
+				writer.stringCell("");
+				writer.stringCell(UUID.randomUUID().toString());
+				writer.endRow();
+			}
+		}
+	}
+
 	public void writeOutTestWidgets(OutputStream out, int rows) throws IOException {
 		SXSSFWorkbook workbook = null;
 		try {
@@ -77,13 +148,222 @@ public class XlsxService {
 		}
 	}
 
+	/**
+	 * Waits for the connections the export reads with, see ResourceLimiter.
+	 * 
+	 * @param exportType sxssf (the default), direct or parallel
+	 */
+	public int writeOutSavedWidgets(OutputStream out, String exportType) throws IOException {
+		return writeOutSavedWidgets(out, exportType, FileFormat.XLSX, false);
+	}
+
+	/**
+	 * Formats other than XLSX are written as rows are read, whatever the export
+	 * type. Metered under an export type named after the format, such as csv or
+	 * csv-gzip.
+	 *
+	 * @param gzip whether to compress the download
+	 */
+	public int writeOutSavedWidgets(OutputStream out, String exportType, FileFormat format, boolean gzip)
+			throws IOException {
+		String workbookType = exportType(exportType);
+		int connections = format == FileFormat.XLSX ? exportConnections(workbookType) : 1;
+		try (PermitPool.Permit permit = resourceLimiter.acquireConnections(connections)) {
+			long start = System.nanoTime();
+			CountingOutputStream countingOut = new CountingOutputStream(out);
+			int rowCount;
+			if (gzip) {
+				GZIPOutputStream gzipOut = new GZIPOutputStream(CloseShieldOutputStream.wrap(countingOut),
+						StreamingXlsxWriter.BUFFER_SIZE);
+				rowCount = writeOutSavedWidgets(gzipOut, workbookType, format);
+				// Only a complete download gets the gzip trailer
+				gzipOut.close();
+			} else {
+				rowCount = writeOutSavedWidgets(countingOut, workbookType, format);
+			}
+			metrics.exported(exportType(exportType, format, gzip), rowCount, countingOut.getByteCount(),
+					System.nanoTime() - start);
+			return rowCount;
+		}
+	}
+
+	protected int writeOutSavedWidgets(OutputStream out, String exportType, FileFormat format) throws IOException {
+		switch (format) {
+		case CSV:
+		case TSV:
+			return writeOutSavedWidgets(new DelimitedRowWriter(out, format.getCsvFormat()));
+		case COLUMNAR:
+			return writeOutSavedWidgets(new ColumnarRowWriter(out, ColumnarRowWriter.ColumnType.NUMBER,
+					ColumnarRowWriter.ColumnType.STRING));
+		default:
+			if ("parallel".equals(exportType)) {
+				return writeOutSavedWidgetsInParallel(out);
+			} else if ("direct".equals(exportType)) {
+				return writeOutSavedWidgetsDirectly(out);
+			} else {
+				return writeOutSavedWidgets(out);
+			}
+		}
+	}
+
+	/**
+	 * Whether downloads of this export type are sent from a snapshot. The
+	 * direct export is not, as it sends the first rows while the rest are read,
+	 * which a snapshot would hold back until it was rendered.
+	 */
+	public boolean isSnapshotted(String exportType, FileFormat format) {
+		return properties.getExport().isCached() && !"direct".equals(exportType(exportType, format, false));
+	}
+
+	/**
+	 * The download of this export type as last rendered, or rendered now if
+	 * widgets have changed since. See ExportSnapshotCache.
+	 */
+	public ExportSnapshotCache.Download openSavedWidgetsSnapshot(String exportType) throws IOException {
+		return openSavedWidgetsSnapshot(exportType, FileFormat.XLSX, false);
+	}
+
+	/**
+	 * Each format, and its gzipped form, has a snapshot of its own.
+	 */
+	public ExportSnapshotCache.Download openSavedWidgetsSnapshot(String exportType, FileFormat format, boolean gzip)
+			throws IOException {
+		return exportSnapshots.open(exportType(exportType, format, gzip),
+				out -> writeOutSavedWidgets(out, exportType, format, gzip));
+	}
+
+	public String getSavedWidgetsETag(String exportType) {
+		return getSavedWidgetsETag(exportType, FileFormat.XLSX, false);
+	}
+
+	public String getSavedWidgetsETag(String exportType, FileFormat format, boolean gzip) {
+		return exportSnapshots.getETag(exportType(exportType, format, gzip));
+	}
+
+	protected int exportConnections(String exportType) {
+		int parallelism = properties.getExport().getParallelism();
+		if ("parallel".equals(exportType)) {
+			return parallelism > 0 ? parallelism : Runtime.getRuntime().availableProcessors();
+		}
+		return 1;
+	}
+
+	protected String exportType(String exportType, FileFormat format, boolean gzip) {
+		String type = format == FileFormat.XLSX ? exportType(exportType) : format.name().toLowerCase(Locale.ROOT);
+		return gzip ? type + "-gzip" : type;
+	}
+
+	protected String exportType(String exportType) {
+		if ("parallel".equalsIgnoreCase(exportType)) {
+			return "parallel";
+		} else if ("direct".equalsIgnoreCase(exportType)) {
+			return "direct";
+		} else {
+			return "sxssf";
+		}
+	}
+
 	@Transactional(readOnly = true)
 	public int writeOutSavedWidgets(OutputStream out) throws IOException {
+		// keep 100 rows in memory, exceeding rows will be flushed to disk
+		return writeOutSavedWidgets(out, 100);
+	}
+
+	/**
+	 * Rows are read a page at a time in order of ID and written straight to the
+	 * sheet, without loading entities, so memory use does not depend on how many
+	 * widgets there are. A new sheet is started every configured rows per sheet,
+	 * like the other exports do.
+	 */
+	@Transactional(readOnly = true)
+	public int writeOutSavedWidgets(OutputStream out, int rowAccessWindowSize) throws IOException {
 		AtomicInteger rowNumber = new AtomicInteger(0);
+		int rowsPerSheet = properties.getExport().getRowsPerSheet();
 		SXSSFWorkbook workbook = null;
 		try {
-			// keep 100 rows in memory, exceeding rows will be flushed to disk
-			workbook = new SXSSFWorkbook(100);
+			SXSSFWorkbook sheets = new SXSSFWorkbook(rowAccessWindowSize);
+			workbook = sheets;
+			forEachSavedWidget(properties.getExport().getPageSize(), (id, name) -> {
+				int rowIndex = rowNumber.getAndIncrement() % rowsPerSheet;
+				// Carry on in a new sheet once one is full
+				Sheet sheet = rowIndex == 0 ? sheets.createSheet() : sheets.getSheetAt(sheets.getNumberOfSheets() - 1);
+				Row row = sheet.createRow(rowIndex);
+				row.createCell(0).setCellValue(id);
+				row.createCell(1).setCellValue(name);
+			});
+			if (sheets.getNumberOfSheets() == 0) {
+				sheets.createSheet();
+			}
+			long start = System.nanoTime();
+			workbook.write(out);
+			metrics.workbookWritten("sxssf", System.nanoTime() - start);
+		} finally {
+			// dispose of temporary files backing this workbook on disk
+			if (workbook != null) {
+				workbook.dispose();
+				workbook.close();
+			}
+		}
+		return rowNumber.get();
+	}
+
+	/**
+	 * Stream the workbook as rows are read, without temporary files, so the
+	 * download starts at once.
+	 */
+	public int writeOutSavedWidgetsDirectly(OutputStream out) throws IOException {
+		return writeOutSavedWidgets(new StreamingXlsxWriter(out, properties.getExport().getRowsPerSheet()));
+	}
+
+	/**
+	 * Write each saved widget as a row as it is read, and close the writer. If
+	 * reading or writing fails the writer is aborted instead, so the download
+	 * does not end like a complete one.
+	 */
+	public int writeOutSavedWidgets(RowWriter writer) throws IOException {
+		try {
+			forEachSavedWidget(properties.getExport().getPageSize(), (id, name) -> {
+				try {
+					writer.startRow();
+					writer.numberCell(id);
+					writer.stringCell(name);
+					writer.endRow();
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			});
+		} catch (UncheckedIOException e) {
+			writer.abort();
+			throw e.getCause();
+		} catch (RuntimeException | Error e) {
+			writer.abort();
+			throw e;
+		}
+		writer.close();
+		return writer.getRowCount();
+	}
+
+	/**
+	 * Export with the table split into chunks by ID, each rendered on its own
+	 * thread. See ParallelWidgetExporter.
+	 */
+	public int writeOutSavedWidgetsInParallel(OutputStream out) throws IOException {
+		WidgetProperties.Export export = properties.getExport();
+		return new ParallelWidgetExporter(this, dataSource, export.getParallelism(), export.getChunkRows(),
+				export.getRowsPerSheet(), export.getPageSize(), workerThreads.newThreadFactory("widget-export-"))
+				.export(out);
+	}
+
+	/**
+	 * Export through a JPA stream of managed entities, kept for comparison.
+	 */
+	@Transactional(readOnly = true)
+	public int writeOutSavedWidgetsUsingJpa(OutputStream out, int rowAccessWindowSize) throws IOException {
+		AtomicInteger rowNumber = new AtomicInteger(0);
+		int rowsPerSheet = properties.getExport().getRowsPerSheet();
+		SXSSFWorkbook workbook = null;
+		try {
+			workbook = new SXSSFWorkbook(rowAccessWindowSize);
 			Sheet sheet = workbook.createSheet();
 			Stream<Widget> widgets = widgetRepository.findAll((widget, cq, cb) -> cb.conjunction());
 			widgets.forEach(widget -> {
@@ -105,115 +385,548 @@ public class XlsxService {
 		return rowNumber.get();
 	}
 
+	/**
+	 * Read every saved widget in order of ID using keyset pagination. Each page
+	 * is a new query starting after the last ID seen, so no cursor is held open
+	 * and no page gets slower the further along it is.
+	 */
+	public long forEachSavedWidget(int pageSize, WidgetRowHandler rowHandler) {
+		return forEachSavedWidget(Long.MIN_VALUE, Long.MAX_VALUE, pageSize, rowHandler);
+	}
+
+	/**
+	 * @param afterId only widgets with a greater ID
+	 * @param lastId  only widgets up to and including this ID
+	 */
+	public long forEachSavedWidget(long afterId, long lastId, int pageSize, WidgetRowHandler rowHandler) {
+		JdbcTemplate jdbcTemplate = new JdbcTemplate(dataSource);
+		jdbcTemplate.setFetchSize(pageSize);
+		long[] lastSeenId = { afterId };
+		long rowCount = 0;
+		int pageRowCount;
+		do {
+			int[] pageRows = { 0 };
+			jdbcTemplate.query("select id, name from widget where id > ? and id <= ? order by id limit ?", rs -> {
+				long id = rs.getLong(1);
+				rowHandler.row(id, rs.getString(2));
+				lastSeenId[0] = id;
+				pageRows[0]++;
+			}, lastSeenId[0], lastId, pageSize);
+			pageRowCount = pageRows[0];
+			rowCount += pageRowCount;
+		} while (pageRowCount == pageSize);
+		return rowCount;
+	}
+
 	@Transactional
 	public void truncateWidgets() {
 		widgetRepository.truncateWidgets();
+		widgetsChanged();
+		// Uploads imported before are no longer saved
+		ingestCache.clear();
 	}
 
 	@Transactional
 	public int saveWidgets(Path savedFile, int batchSize, String parseType, String persistenceType) throws Exception {
-		if ("dom".equalsIgnoreCase(parseType)) {
-			return saveWidgetsUsingDom(savedFile, batchSize, persistenceType);
+		return saveWidgets(savedFile, ImportOptions.of(batchSize, parseType, persistenceType));
+	}
+
+	/**
+	 * Save from the checkpoint of the options, for example the one a failed
+	 * import job left. Rows before its resume row are not read and its
+	 * committed batches are skipped, so no row is saved twice. Returns the rows
+	 * read, including the skipped ones.
+	 * <p>
+	 * With writer threads, parsed batches are queued and written by those threads
+	 * while parsing continues. The writers do not take part in this transaction.
+	 * Each batch is written in a transaction of its own, on a connection of its
+	 * own, and a batch that fails leaves the committed ones in place, see
+	 * BatchImportException. A cancelled import throws a CancellationException,
+	 * rolling back what this transaction has written.
+	 */
+	@Transactional
+	public int saveWidgets(Path savedFile, ImportOptions options) throws Exception {
+		return saveWidgets(options, batchWriter -> saveWidgets(savedFile, options, batchWriter));
+	}
+
+	/**
+	 * Save an upload unless the same content has been imported from the same
+	 * row with the same persistence type before, see IngestCache, in which case
+	 * the row count of that import is returned. A merge of an upload named like one imported before skips the
+	 * batches that are the same as they were then. Without a content hash, or
+	 * when resuming, the upload is saved like any other.
+	 */
+	@Transactional
+	public int saveUpload(Path savedFile, String filename, String contentHash, ImportOptions options)
+			throws Exception {
+		ImportCheckpoint checkpoint = options.getCheckpoint();
+		if (contentHash == null || !properties.getIngest().isEnabled()
+				|| !checkpoint.getCommittedBatches().isEmpty()) {
+			return saveWidgets(savedFile, options);
+		}
+		int firstRow = checkpoint.getResumeRow();
+		String persistenceType = persistenceType(options.getPersistenceType());
+		Optional<IngestCache.Entry> imported = ingestCache.find(contentHash, persistenceType, firstRow);
+		if (imported.isPresent()) {
+			metrics.ingested("hit");
+			return imported.get().getRowCount();
+		}
+		List<Long> previousChecksums = "merge".equals(persistenceType)
+				? ingestCache.findLatest(filename, persistenceType, firstRow, checkpoint.getBatchSize())
+						.map(IngestCache.Entry::getBatchChecksums).orElse(List.of())
+				: List.of();
+		List<Long> checksums = new ArrayList<>();
+		boolean[] insertsOnly = { true };
+		int[] updatingBatches = { 0 };
+		long updatesBefore = ingestCache.getUpdates();
+		int rowCount = saveWidgets(options, batchWriter -> saveWidgets(savedFile, options, batch -> {
+			if (batch.isEmpty()) {
+				return;
+			}
+			int batchNumber = checksums.size();
+			long checksum = checksum(batch);
+			checksums.add(checksum);
+			boolean updating = batch.stream().anyMatch(widget -> !widget.isNew());
+			insertsOnly[0] &= !updating;
+			if (batchNumber < previousChecksums.size() && previousChecksums.get(batchNumber) == checksum) {
+				return;
+			}
+			if (updating) {
+				updatingBatches[0]++;
+			}
+			batchWriter.accept(batch);
+		}));
+		// The widgets are only known to be as this import left them if no other
+		// batch updated any while it ran
+		long updatesAfter = ingestCache.getUpdates();
+		IngestCache.Entry entry = new IngestCache.Entry(contentHash, filename, persistenceType, firstRow,
+				checkpoint.getBatchSize(), rowCount, checksums, insertsOnly[0],
+				updatesAfter == updatesBefore + updatingBatches[0] ? updatesAfter : -1);
+		if (TransactionSynchronizationManager.isSynchronizationActive()) {
+			TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+				@Override
+				public void afterCommit() {
+					ingestCache.record(entry);
+				}
+			});
 		} else {
-			return saveWidgetsUsingSax(savedFile, batchSize, persistenceType);
+			ingestCache.record(entry);
 		}
+		metrics.ingested(previousChecksums.isEmpty() ? "miss" : "incremental");
+		return rowCount;
 	}
 
-	protected int saveWidgetsUsingSax(Path savedFile, final int batchSize, final String persistenceType)
-			throws Exception {
-		final AtomicInteger rowCount = new AtomicInteger(0);
-		try (OPCPackage p = OPCPackage.open(savedFile.toString(), PackageAccess.READ)) {
-			XlsxStreamParser xlsxStreamParser = new XlsxStreamParser(p, TOTAL_COLUMNS, new XlsxStreamParser.Callback() {
+	/**
+	 * The first 8 bytes of a SHA-256 digest of the IDs and names in a batch.
+	 */
+	protected long checksum(List<Widget> batch) {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+		ByteBuffer buffer = ByteBuffer.allocate(Long.BYTES + Integer.BYTES);
+		for (Widget widget : batch) {
+			byte[] name = widget.getName() != null ? widget.getName().getBytes(StandardCharsets.UTF_8) : new byte[0];
+			buffer.clear();
+			buffer.putLong(widget.isNew() ? -1 : widget.getId()).putInt(widget.getName() != null ? name.length : -1);
+			digest.update(buffer.array());
+			digest.update(name);
+		}
+		return ByteBuffer.wrap(digest.digest()).getLong();
+	}
 
-				Widget currentWidget = null;
-				List<Widget> batchedWidgets = new LinkedList<>();
+	/**
+	 * Read some rows without saving them, for example to show what an upload
+	 * holds. The sheet is only read up to the last row wanted.
+	 */
+	public List<Widget> previewWidgets(Path savedFile, int firstRow, int rows) throws Exception {
+		List<Widget> widgets = new ArrayList<>(rows);
+		if (rows > 0) {
+			FileFormat format = FileFormat.forFilename(savedFile.getFileName().toString());
+			if (format != FileFormat.XLSX) {
+				saveWidgetsFromRecords(savedFile, format, rows, firstRow, rows, widgets::addAll, ImportProgress.NONE);
+			} else {
+				saveWidgetsUsingSax(savedFile, rows, firstRow, rows, widgets::addAll, ImportProgress.NONE);
+			}
+		}
+		return widgets;
+	}
 
-				@Override
-				public void beginRow(int rowNumber) {
-					currentWidget = new Widget();
-				}
+	/**
+	 * The used range of the first sheet, without reading its rows. See
+	 * XlsxStreamParser.readDimension(). Uploads that are not workbooks have
+	 * none.
+	 */
+	public CellRangeAddress readDimension(Path savedFile) throws Exception {
+		if (FileFormat.forFilename(savedFile.getFileName().toString()) != FileFormat.XLSX) {
+			return null;
+		}
+		try (OPCPackage p = openPackage(savedFile, newUploadGuard())) {
+			return new XlsxStreamParser(p, 0).readDimension();
+		}
+	}
 
-				@Override
-				public void cellValue(int rowNumber, int columnNumber, String formattedValue, String cellReference,
-						XSSFComment comment) {
-					switch (columnNumber) {
-					case ID_COLUMN:
-						currentWidget.setId(
-								(formattedValue != null && !formattedValue.isEmpty()) ? Long.valueOf(formattedValue)
-										: null);
-						break;
-					case NAME_COLUMN:
-						currentWidget.setName(formattedValue);
-						break;
-					default:
-						break;
-					}
+	/**
+	 * Parse the upload while it is being read, in the format given. Workbooks
+	 * are always parsed with SAX.
+	 */
+	@Transactional
+	public int saveWidgets(InputStream stream, FileFormat format, ImportOptions options) throws Exception {
+		int batchSize = options.getBatchSize();
+		int firstRow = options.getFirstRow();
+		ImportProgress progress = options.getProgress();
+		return saveWidgets(options,
+				batchWriter -> format == FileFormat.XLSX
+						? saveWidgetsUsingSax(stream, batchSize, firstRow, batchWriter, progress)
+						: saveWidgetsFromRecords(stream, -1, format, batchSize, firstRow, Integer.MAX_VALUE,
+								batchWriter, progress));
+	}
+
+	protected int saveWidgets(ImportOptions options, WidgetImport widgetImport) throws Exception {
+		ImportCheckpoint checkpoint = options.getCheckpoint();
+		String persistenceType = options.getPersistenceType();
+		ImportProgress progress = options.getProgress();
+		int writerThreads = options.getWriterThreads();
+		int batchSize = checkpoint.getBatchSize();
+		if (writerThreads > 0) {
+			TransactionTemplate batchTransaction = new TransactionTemplate(transactionManager);
+			batchTransaction.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+			WidgetBatchPipeline pipeline = new WidgetBatchPipeline(writerThreads, writerThreads * 2,
+					checkpoint.getCommittedBatches(), workerThreads.newThreadFactory("widget-writer-"), batch -> {
+						batchTransaction.executeWithoutResult(status -> saveWidgets(batch, batchSize, persistenceType));
+						progress.rowsPersisted(batch.size());
+					});
+			try {
+				int rowCount;
+				try {
+					rowCount = widgetImport.saveWidgets(pipeline);
+				} catch (Throwable t) {
+					pipeline.discard();
+					throw t;
 				}
+				pipeline.close();
+				return rowCount;
+			} finally {
+				progress.batchesCommitted(pipeline.getCommittedBatches());
+			}
+		}
+		// Numbered like the pipeline numbers them, which ignores empty batches
+		int[] batchNumber = { 0 };
+		return widgetImport.saveWidgets(batch -> {
+			if (batch.isEmpty() || checkpoint.isCommitted(batchNumber[0]++)) {
+				return;
+			}
+			saveWidgets(batch, batchSize, persistenceType);
+			progress.rowsPersisted(batch.size());
+		});
+	}
 
-				@Override
-				public void endRow(int rowNumber) {
-					rowCount.incrementAndGet();
-					batchedWidgets.add(currentWidget);
-					if (batchedWidgets.size() == batchSize) {
-						saveWidgets(batchedWidgets, batchSize, persistenceType);
-						batchedWidgets.clear();
+	/**
+	 * Uploads are parsed by the format their name gives, and only workbooks
+	 * take notice of the parse type. Workbooks asked to be parsed with dom are
+	 * streamed when they would take too much of the heap, see DomAdmission.
+	 */
+	protected int saveWidgets(Path savedFile, ImportOptions options, Consumer<List<Widget>> batchWriter)
+			throws Exception {
+		int batchSize = options.getBatchSize();
+		int firstRow = options.getFirstRow();
+		ImportProgress progress = options.getProgress();
+		FileFormat format = FileFormat.forFilename(savedFile.getFileName().toString());
+		if (format != FileFormat.XLSX) {
+			return saveWidgetsFromRecords(savedFile, format, batchSize, firstRow, Integer.MAX_VALUE, batchWriter,
+					progress);
+		} else if ("dom".equalsIgnoreCase(options.getParseType())) {
+			checkUpload(savedFile);
+			DomAdmission.Admission admission = domAdmission.tryAdmit(savedFile);
+			if (admission != null) {
+				try (admission) {
+					long start = System.nanoTime();
+					Workbook wb = admission.openWorkbook(savedFile);
+					if (wb != null) {
+						metrics.domParse("admitted");
+						try (wb) {
+							return saveWidgetsUsingDom(wb, start, batchSize, firstRow, batchWriter, progress);
+						}
 					}
 				}
+			}
+			// Not admitted, or larger than the zip directory claimed
+			metrics.domParse("streamed");
+			return saveWidgetsUsingSax(savedFile, batchSize, firstRow, Integer.MAX_VALUE, batchWriter, progress);
+		} else {
+			return saveWidgetsUsingSax(savedFile, batchSize, firstRow, Integer.MAX_VALUE, batchWriter, progress);
+		}
+	}
 
-				@Override
-				public void endSpreadsheet() {
-					// Left over widgets
-					saveWidgets(batchedWidgets, batchSize, persistenceType);
-					batchedWidgets.clear();
-				}
+	protected int saveWidgetsUsingSax(Path savedFile, final int batchSize, final String persistenceType)
+			throws Exception {
+		return saveWidgetsUsingSax(savedFile, batchSize, 0, Integer.MAX_VALUE,
+				batch -> saveWidgets(batch, batchSize, persistenceType), ImportProgress.NONE);
+	}
 
-			});
-			xlsxStreamParser.parseFirstSheetOnly();
+	protected int saveWidgetsUsingSax(Path savedFile, final int batchSize, int firstRow, int maxRows,
+			final Consumer<List<Widget>> batchWriter, final ImportProgress progress) throws Exception {
+		final AtomicInteger rowCount = new AtomicInteger(0);
+		UploadGuard uploadGuard = newUploadGuard();
+		uploadGuard.checkDirectory(savedFile);
+		try (OPCPackage p = openPackage(savedFile, uploadGuard)) {
+			XlsxStreamParser xlsxStreamParser = new XlsxStreamParser(p, WIDGET_MAPPER.getColumnCount());
+			xlsxStreamParser.setUploadGuard(uploadGuard);
+			xlsxStreamParser.setColumns(WIDGET_MAPPER.getColumns());
+			xlsxStreamParser.setRowRange(firstRow, maxRows);
+			xlsxStreamParser.setProgressListener(progress);
+			xlsxStreamParser.setParseListener(metrics.parseListener("sax",
+					properties.getXlsx().getSharedStrings().name().toLowerCase().replace('_', '-')));
+			xlsxStreamParser.setSharedStringsType(properties.getXlsx().getSharedStrings());
+			xlsxStreamParser.setSharedStringsCacheSize(properties.getXlsx().getSharedStringsCacheSize());
+			xlsxStreamParser.parseFirstSheetOnly(newWidgetCallback(rowCount, batchSize, batchWriter, progress));
+		}
+		return rowCount.get();
+	}
+
+	/**
+	 * Turn away a saved workbook whose zip directory gives sizes over the
+	 * upload limits, before any of it is inflated. Other uploads are only
+	 * checked as they are parsed.
+	 */
+	public void checkUpload(Path savedFile) throws UploadLimitException {
+		if (FileFormat.forFilename(savedFile.getFileName().toString()) == FileFormat.XLSX) {
+			newUploadGuard().checkDirectory(savedFile);
+		}
+	}
+
+	/**
+	 * A guard for one upload, with the limits configured now.
+	 */
+	public UploadGuard newUploadGuard() {
+		WidgetProperties.Limits limits = properties.getLimits();
+		return new UploadGuard(limits.getMaxEntrySize().toBytes(), limits.getMaxTotalSize().toBytes(),
+				limits.getMaxExpansionRatio(), limits.getMaxRows(), limits.getMaxCells(), metrics::uploadRejected);
+	}
+
+	/**
+	 * The body of an upload that is parsed as it arrives, which may be no
+	 * larger than the configured limit.
+	 *
+	 * @param declaredLength the length the request gives, or -1
+	 */
+	public InputStream limitUpload(InputStream upload, long declaredLength) throws UploadLimitException {
+		UploadGuard uploadGuard = newUploadGuard();
+		long maxUploadBytes = properties.getLimits().getMaxUploadSize().toBytes();
+		if (declaredLength > maxUploadBytes) {
+			throw uploadGuard.reject("upload-size", "Upload is larger than " + maxUploadBytes + " bytes");
 		}
+		return uploadGuard.limitUpload(upload, maxUploadBytes);
+	}
+
+	/**
+	 * A mapped package counts every part against the guard as it is inflated.
+	 * Otherwise POI's ZipSecureFile limits the parts its parsers do not guard.
+	 */
+	protected OPCPackage openPackage(Path savedFile, UploadGuard uploadGuard)
+			throws IOException, InvalidFormatException {
+		if (properties.getXlsx().isMemoryMapped()) {
+			MappedZipEntrySource zipEntrySource = MappedZipEntrySource.open(savedFile);
+			zipEntrySource.setUploadGuard(uploadGuard);
+			try {
+				return OPCPackage.open(zipEntrySource);
+			} catch (InvalidFormatException | RuntimeException e) {
+				zipEntrySource.close();
+				throw e;
+			}
+		}
+		return OPCPackage.open(savedFile.toString(), PackageAccess.READ);
+	}
+
+	protected int saveWidgetsUsingSax(InputStream xlsxStream, final int batchSize, int firstRow,
+			final Consumer<List<Widget>> batchWriter, final ImportProgress progress) throws Exception {
+		final AtomicInteger rowCount = new AtomicInteger(0);
+		SheetStreamParser xlsxStreamParser = new XlsxZipStreamParser(xlsxStream, WIDGET_MAPPER.getColumnCount());
+		xlsxStreamParser.setUploadGuard(newUploadGuard());
+		xlsxStreamParser.setColumns(WIDGET_MAPPER.getColumns());
+		xlsxStreamParser.setRowRange(firstRow, Integer.MAX_VALUE);
+		xlsxStreamParser.setParseListener(metrics.parseListener("stream", "in-memory"));
+		xlsxStreamParser.parseFirstSheetOnly(newWidgetCallback(rowCount, batchSize, batchWriter, progress));
 		return rowCount.get();
 	}
 
+	protected int saveWidgetsFromRecords(Path savedFile, FileFormat format, int batchSize, int firstRow, int maxRows,
+			Consumer<List<Widget>> batchWriter, ImportProgress progress) throws Exception {
+		return saveWidgetsFromRecords(Files.newInputStream(savedFile), Files.size(savedFile), format, batchSize,
+				firstRow, maxRows, batchWriter, progress);
+	}
+
+	/**
+	 * Parse delimited text or columnar records through the same callback as
+	 * workbooks, see RecordStreamParser. The stream is closed once parsed.
+	 *
+	 * @param streamSize the length of the stream, or -1 if unknown
+	 */
+	protected int saveWidgetsFromRecords(InputStream stream, long streamSize, FileFormat format, int batchSize,
+			int firstRow, int maxRows, Consumer<List<Widget>> batchWriter, ImportProgress progress) throws Exception {
+		final AtomicInteger rowCount = new AtomicInteger(0);
+		RecordStreamParser parser = format == FileFormat.COLUMNAR
+				? new ColumnarStreamParser(stream, streamSize, WIDGET_MAPPER.getColumnCount())
+				: new DelimitedStreamParser(stream, streamSize, format.getCsvFormat(), WIDGET_MAPPER.getColumnCount());
+		parser.setUploadGuard(newUploadGuard());
+		parser.setColumns(WIDGET_MAPPER.getColumns());
+		parser.setRowRange(firstRow, maxRows);
+		parser.setProgressListener(progress);
+		// There are no shared strings to tag
+		parser.setParseListener(metrics.parseListener(format.name().toLowerCase(Locale.ROOT), "none"));
+		parser.parseFirstSheetOnly(newWidgetCallback(rowCount, batchSize, batchWriter, progress));
+		return rowCount.get();
+	}
+
+	/**
+	 * Cells are mapped from their raw values, without formatting them first.
+	 */
+	protected XlsxStreamParser.RawCallback newWidgetCallback(final AtomicInteger rowCount, final int batchSize,
+			final Consumer<List<Widget>> batchWriter, final ImportProgress progress) {
+		return new XlsxStreamParser.RawCallback() {
+
+			Widget currentWidget = null;
+			List<Widget> batchedWidgets = new ArrayList<>(batchSize);
+
+			@Override
+			public void beginRow(int rowNumber) {
+				currentWidget = WIDGET_MAPPER.newRow();
+			}
+
+			@Override
+			public void cellValue(int rowNumber, int columnNumber, XlsxStreamParser.RawValue value) {
+				WIDGET_MAPPER.setValue(currentWidget, value);
+			}
+
+			@Override
+			public void endRow(int rowNumber) {
+				checkCancelled(progress);
+				rowCount.incrementAndGet();
+				progress.rowParsed();
+				batchedWidgets.add(currentWidget);
+				if (batchedWidgets.size() == batchSize) {
+					// The writer may hold on to the batch, so start a new one
+					batchWriter.accept(batchedWidgets);
+					batchedWidgets = new ArrayList<>(batchSize);
+				}
+			}
+
+			@Override
+			public void endSpreadsheet() {
+				// Left over widgets
+				batchWriter.accept(batchedWidgets);
+				batchedWidgets = new ArrayList<>(batchSize);
+			}
+
+		};
+	}
+
 	protected int saveWidgetsUsingDom(Path savedFile, int batchSize, String persistenceType)
 			throws EncryptedDocumentException, IOException {
-		InputStream inp = new FileInputStream(savedFile.toString());
-		Workbook wb = WorkbookFactory.create(inp);
+		return saveWidgetsUsingDom(savedFile, batchSize, 0, batch -> saveWidgets(batch, batchSize, persistenceType),
+				ImportProgress.NONE);
+	}
+
+	/**
+	 * Loads the whole workbook into the heap, so callers should be admitted by
+	 * DomAdmission first. It is opened read only from the file, rather than
+	 * from a stream that would be buffered in memory as well.
+	 */
+	protected int saveWidgetsUsingDom(Path savedFile, int batchSize, int firstRow, Consumer<List<Widget>> batchWriter,
+			ImportProgress progress) throws EncryptedDocumentException, IOException {
+		long start = System.nanoTime();
+		try (Workbook wb = WorkbookFactory.create(savedFile.toFile(), null, true)) {
+			return saveWidgetsUsingDom(wb, start, batchSize, firstRow, batchWriter, progress);
+		}
+	}
+
+	/**
+	 * @param startNanos when the workbook started to be opened, as loading it
+	 *                   takes most of the time
+	 */
+	protected int saveWidgetsUsingDom(Workbook wb, long startNanos, int batchSize, int firstRow,
+			Consumer<List<Widget>> batchWriter, ImportProgress progress) {
+		int rowNumber = firstRow;
 		Sheet sheet = wb.getSheetAt(0);
-		int rowNumber = 0;
 		Row row = sheet.getRow(rowNumber);
-		List<Widget> batchedWidgets = new LinkedList<>();
+		List<Widget> batchedWidgets = new ArrayList<>(batchSize);
 		while (row != null) {
-			Widget currentWidget = new Widget();
-			Cell cell = row.getCell(ID_COLUMN);
-			Long id = null;
-			if (CellType.NUMERIC.equals(cell.getCellType())) {
-				id = Long.valueOf(Double.valueOf(cell.getNumericCellValue()).longValue());
-			} else {
-				String value = cell.getStringCellValue();
-				id = (value != null && !value.isEmpty()) ? Long.valueOf(value) : null;
-			}
-			currentWidget.setId(id);
-			cell = row.getCell(NAME_COLUMN);
-			String name = cell.getStringCellValue();
-			currentWidget.setName(name);
+			checkCancelled(progress);
+			Widget currentWidget = WIDGET_MAPPER.newRow();
+			WIDGET_MAPPER.setValues(currentWidget, row);
 			batchedWidgets.add(currentWidget);
+			progress.rowParsed();
 			if (batchedWidgets.size() == batchSize) {
-				saveWidgets(batchedWidgets, batchSize, persistenceType);
-				batchedWidgets.clear();
+				batchWriter.accept(batchedWidgets);
+				batchedWidgets = new ArrayList<>(batchSize);
 			}
 			row = sheet.getRow(++rowNumber);
 		}
 		// Left over widgets
-		saveWidgets(batchedWidgets, batchSize, persistenceType);
-		return rowNumber;
+		batchWriter.accept(batchedWidgets);
+		int rowCount = rowNumber - firstRow;
+		metrics.sheetParsed("dom", System.nanoTime() - startNanos, rowCount,
+				(long) rowCount * WIDGET_MAPPER.getColumnCount());
+		return rowCount;
 	}
 
-	protected void saveWidgets(List<Widget> widgets, int batchSize, String persistenceType) {
+	protected void checkCancelled(ImportProgress progress) {
+		if (progress.isCancelled()) {
+			throw new CancellationException("Import of widgets was cancelled");
+		}
+	}
 
-		if ("jpa".equalsIgnoreCase(persistenceType)) {
+	protected void saveWidgets(List<Widget> widgets, int batchSize, String persistenceType) {
+		if (widgets.isEmpty()) {
+			return;
+		}
+		if (widgets.stream().anyMatch(widget -> !widget.isNew())) {
+			ingestCache.widgetsUpdated();
+		}
+		widgetsChanged();
+		long start = System.nanoTime();
+		persistenceType = persistenceType(persistenceType);
+		if ("jpa".equals(persistenceType)) {
 			saveWidgetsUsingJpa(widgets, batchSize);
+		} else if ("bulk".equals(persistenceType)) {
+			saveWidgetsUsingBulk(widgets, batchSize);
+		} else if ("merge".equals(persistenceType)) {
+			saveWidgetsUsingMerge(widgets, batchSize);
 		} else {
 			saveWidgetsUsingJdbc(widgets, batchSize);
 		}
+		metrics.batchSaved(persistenceType, widgets.size(), System.nanoTime() - start);
+	}
+
+	protected String persistenceType(String persistenceType) {
+		if ("jpa".equalsIgnoreCase(persistenceType)) {
+			return "jpa";
+		} else if ("bulk".equalsIgnoreCase(persistenceType)) {
+			return "bulk";
+		} else if ("merge".equalsIgnoreCase(persistenceType)) {
+			return "merge";
+		} else {
+			return "jdbc";
+		}
+	}
+
+	/**
+	 * Stop serving downloads rendered before now, and again once the
+	 * transaction ends, as a download rendered before then does not see the
+	 * change yet.
+	 */
+	protected void widgetsChanged() {
+		exportSnapshots.invalidate();
+		if (TransactionSynchronizationManager.isSynchronizationActive()) {
+			TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+				@Override
+				public void afterCompletion(int status) {
+					exportSnapshots.invalidate();
+				}
+			});
+		}
 	}
 
 	protected void saveWidgetsUsingJpa(List<Widget> widgets, int batchSize) {
@@ -224,14 +937,24 @@ public class XlsxService {
 		entityManager.clear();
 	}
 
+	/**
+	 * New widgets are inserted with IDs from the allocator, rather than asking
+	 * the sequence in every insert.
+	 */
 	protected void saveWidgetsUsingJdbc(List<Widget> widgets, int batchSize) {
 		JdbcTemplate jdbcTemplate = new JdbcTemplate(dataSource);
-		jdbcTemplate.batchUpdate("insert into widget (id, name) values(SEQ_WIDGET.NEXTVAL, ?)",
-				widgets.stream().filter(w -> w.isNew()).collect(Collectors.toList()), batchSize,
-				new ParameterizedPreparedStatementSetter<Widget>() {
+		List<Widget> newWidgets = widgets.stream().filter(w -> w.isNew()).collect(Collectors.toList());
+		long[] ids = idAllocator.nextIds(newWidgets.size());
+		List<Object[]> rows = new ArrayList<>(newWidgets.size());
+		for (int i = 0; i < newWidgets.size(); i++) {
+			rows.add(new Object[] { ids[i], newWidgets.get(i).getName() });
+		}
+		jdbcTemplate.batchUpdate("insert into widget (id, name) values(?, ?)", rows, batchSize,
+				new ParameterizedPreparedStatementSetter<Object[]>() {
 					@Override
-					public void setValues(PreparedStatement ps, Widget widget) throws SQLException {
-						ps.setString(1, widget.getName());
+					public void setValues(PreparedStatement ps, Object[] row) throws SQLException {
+						ps.setLong(1, (Long) row[0]);
+						ps.setString(2, (String) row[1]);
 					}
 				});
 		jdbcTemplate.batchUpdate("update widget set name=? where id = ?",
@@ -244,4 +967,20 @@ public class XlsxService {
 					}
 				});
 	}
+
+	protected void saveWidgetsUsingBulk(List<Widget> widgets, int batchSize) {
+		bulkWidgetWriter.write(widgets, batchSize);
+	}
+
+	protected void saveWidgetsUsingMerge(List<Widget> widgets, int batchSize) {
+		mergeWidgetWriter.write(widgets);
+	}
+
+	protected interface WidgetImport {
+		int saveWidgets(Consumer<List<Widget>> batchWriter) throws Exception;
+	}
+
+	public interface WidgetRowHandler {
+		void row(long id, String name) throws SQLException;
+	}
 }
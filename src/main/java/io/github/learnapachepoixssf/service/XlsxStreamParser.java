@@ -2,164 +2,369 @@ package io.github.learnapachepoixssf.service;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.xml.parsers.ParserConfigurationException;
 
-import org.apache.poi.ooxml.util.SAXHelper;
 import org.apache.poi.openxml4j.exceptions.OpenXML4JException;
 import org.apache.poi.openxml4j.opc.OPCPackage;
-import org.apache.poi.ss.usermodel.DataFormatter;
-import org.apache.poi.ss.util.CellAddress;
-import org.apache.poi.ss.util.CellReference;
+import org.apache.poi.openxml4j.opc.PackagePart;
+import org.apache.poi.openxml4j.opc.ZipPackagePart;
+import org.apache.poi.ss.util.CellRangeAddress;
 import org.apache.poi.xssf.eventusermodel.XSSFReader;
-import org.apache.poi.xssf.eventusermodel.XSSFSheetXMLHandler;
-import org.apache.poi.xssf.eventusermodel.XSSFSheetXMLHandler.SheetContentsHandler;
 import org.apache.poi.xssf.model.SharedStrings;
-import org.apache.poi.xssf.model.Styles;
 import org.apache.poi.xssf.model.StylesTable;
 import org.apache.poi.xssf.usermodel.XSSFComment;
-import org.xml.sax.ContentHandler;
-import org.xml.sax.InputSource;
+import org.xml.sax.Attributes;
 import org.xml.sax.SAXException;
-import org.xml.sax.XMLReader;
+import org.xml.sax.helpers.DefaultHandler;
 
 import com.github.pjfanning.poi.xssf.streaming.TempFileSharedStringsTable;
 
 /**
  * Based from https://github.com/pjfanning/poi-shared-strings-sample
  */
-public class XlsxStreamParser {
+public class XlsxStreamParser extends SheetStreamParser {
 
-	private final OPCPackage xlsxPackage;
-	private final int minimumColumnsToProcess;
-	private final Callback callback;
+	protected final OPCPackage xlsxPackage;
+	private SharedStringsType sharedStringsType = SharedStringsType.TEMP_FILE;
+	private int sharedStringsCacheSize = OffHeapSharedStringsTable.DEFAULT_CACHE_SIZE;
+	private ThreadFactory threadFactory = WorkerThreads.PLATFORM.newThreadFactory("sheet-parser-");
+
+	public XlsxStreamParser(OPCPackage xlsxPackage, int minimumColumnsToProcess) {
+		this(xlsxPackage, minimumColumnsToProcess, new Callback() {
+		});
+	}
 
 	public XlsxStreamParser(OPCPackage xlsxPackage, int minimumColumnsToProcess, Callback callback) {
+		super(minimumColumnsToProcess, callback);
 		this.xlsxPackage = xlsxPackage;
-		this.minimumColumnsToProcess = minimumColumnsToProcess;
-		this.callback = callback;
 	}
 
-	public void parseFirstSheetOnly()
+	/**
+	 * How the shared strings are kept while parsing. TEMP_FILE uses the MVStore
+	 * backed table, MAPPED keeps them in memory mapped files outside the heap and
+	 * OFF_HEAP in a direct buffer with a cache of decoded strings.
+	 */
+	public void setSharedStringsType(SharedStringsType sharedStringsType) {
+		this.sharedStringsType = sharedStringsType;
+	}
+
+	/**
+	 * How many decoded strings the OFF_HEAP table keeps.
+	 */
+	public void setSharedStringsCacheSize(int sharedStringsCacheSize) {
+		this.sharedStringsCacheSize = sharedStringsCacheSize;
+	}
+
+	/**
+	 * Makes the worker threads of parseInParallel.
+	 */
+	public void setThreadFactory(ThreadFactory threadFactory) {
+		this.threadFactory = threadFactory;
+	}
+
+	/**
+	 * The used range of the first sheet as given by its dimension element,
+	 * which comes before the rows, so none of them are read. Null when the sheet
+	 * has no dimension. Writers that stream rows, like SXSSF, cannot know the
+	 * range when they start a sheet and give A1.
+	 */
+	public CellRangeAddress readDimension()
 			throws IOException, OpenXML4JException, SAXException, ParserConfigurationException {
-		parse(1);
+		XSSFReader xssfReader = new XSSFReader(xlsxPackage);
+		XSSFReader.SheetIterator iterator = (XSSFReader.SheetIterator) xssfReader.getSheetsData();
+		if (!iterator.hasNext()) {
+			return null;
+		}
+		try (InputStream stream = iterator.next()) {
+			return readDimension(stream);
+		}
 	}
 
-	public void parse() throws IOException, OpenXML4JException, SAXException, ParserConfigurationException {
-		parse(Integer.MAX_VALUE);
+	protected CellRangeAddress readDimension(InputStream sheetInputStream)
+			throws IOException, SAXException, ParserConfigurationException {
+		String[] dimension = new String[1];
+		try {
+			parseSheet(new DefaultHandler() {
+				@Override
+				public void startElement(String uri, String localName, String qName, Attributes attributes)
+						throws SAXException {
+					if ("dimension".equals(localName)) {
+						dimension[0] = attributes.getValue("ref");
+						throw new EndOfRangeException();
+					} else if ("sheetData".equals(localName)) {
+						throw new EndOfRangeException();
+					}
+				}
+			}, sheetInputStream);
+		} catch (EndOfRangeException e) {
+			// Nothing after the dimension is needed
+		}
+		return dimension[0] != null ? CellRangeAddress.valueOf(dimension[0]) : null;
 	}
 
+	@Override
 	protected void parse(int numberOfSheetsToProcess)
 			throws IOException, OpenXML4JException, SAXException, ParserConfigurationException {
-		try (TempFileSharedStringsTable stringsTable = new TempFileSharedStringsTable(xlsxPackage, true)) {
+		SharedStrings stringsTable = openSharedStrings();
+		try {
 			XSSFReader xssfReader = new XSSFReader(xlsxPackage);
 			StylesTable styles = xssfReader.getStylesTable();
 			XSSFReader.SheetIterator iterator = (XSSFReader.SheetIterator) xssfReader.getSheetsData();
 			int index = 0;
 			while (iterator.hasNext() && index < numberOfSheetsToProcess) {
-				try (InputStream stream = iterator.next()) {
+				try (InputStream stream = trackProgress(guard(iterator.next(), iterator.getSheetPart()),
+						iterator.getSheetPart().getSize())) {
 					String sheetName = iterator.getSheetName();
+					long start = System.nanoTime();
+					ColumnFilter columnFilter = newColumnFilter(stringsTable);
+					CallbackContentsHandler handler = new CallbackContentsHandler(callback, columnFilter);
 					callback.beginSheet(sheetName, index);
-					parseSheet(styles, stringsTable, new CallbackContentsHandler(), stream);
+					parseSheet(styles, stringsTable, handler, columnFilter, stream);
 					callback.endSheet(sheetName, index);
+					sheetParsed(sheetName, start, handler.getRowCount(), handler.getCellCount());
 				}
 				index++;
 			}
+			callback.endSpreadsheet();
+		} finally {
+			closeSharedStrings(stringsTable);
 		}
 	}
 
-	protected void parseSheet(Styles styles, SharedStrings sharedStrings, SheetContentsHandler sheetHandler,
-			InputStream sheetInputStream) throws IOException, SAXException, ParserConfigurationException {
-		DataFormatter formatter = new DataFormatter();
-		InputSource sheetSource = new InputSource(sheetInputStream);
-		XMLReader sheetParser = SAXHelper.newXMLReader();
-		ContentHandler handler = new XSSFSheetXMLHandler(styles, null, sharedStrings, sheetHandler, formatter, false);
-		sheetParser.setContentHandler(handler);
-		sheetParser.parse(sheetSource);
+	/**
+	 * Parse using the low level callback. Cell values are not formatted, so the
+	 * styles table is never loaded.
+	 */
+	@Override
+	protected void parse(int numberOfSheetsToProcess, RawCallback rawCallback)
+			throws IOException, OpenXML4JException, SAXException, ParserConfigurationException {
+		SharedStrings stringsTable = openSharedStrings();
+		try {
+			XSSFReader xssfReader = new XSSFReader(xlsxPackage);
+			XSSFReader.SheetIterator iterator = (XSSFReader.SheetIterator) xssfReader.getSheetsData();
+			int index = 0;
+			while (iterator.hasNext() && index < numberOfSheetsToProcess) {
+				try (InputStream stream = trackProgress(guard(iterator.next(), iterator.getSheetPart()),
+						iterator.getSheetPart().getSize())) {
+					String sheetName = iterator.getSheetName();
+					long start = System.nanoTime();
+					ColumnFilter columnFilter = newColumnFilter(stringsTable);
+					RawContentsHandler handler = new RawContentsHandler(rawCallback, stringsTable, columnFilter);
+					rawCallback.beginSheet(sheetName, index);
+					parseSheet(handler, columnFilter, stream);
+					rawCallback.endSheet(sheetName, index);
+					sheetParsed(sheetName, start, handler.getRowCount(), handler.getCellCount());
+				}
+				index++;
+			}
+			rawCallback.endSpreadsheet();
+		} finally {
+			closeSharedStrings(stringsTable);
+		}
 	}
 
-	public class CallbackContentsHandler implements SheetContentsHandler {
-		private int currentRowNumber = -1;
-		private int currentColumnNumber = -1;
+	/**
+	 * Parse each sheet on its own worker thread, at most parallelism sheets at a
+	 * time. The shared strings and styles tables are built once and only read by
+	 * the workers. Each sheet gets its own callback from the factory, while the
+	 * callback given to the constructor is told when all sheets are done. Once
+	 * a sheet fails the others stop at their next row, and the tables are only
+	 * closed after every worker has stopped.
+	 */
+	public void parseInParallel(int parallelism, SheetCallbackFactory callbackFactory)
+			throws IOException, OpenXML4JException, SAXException, ParserConfigurationException {
+		parseInParallel(Integer.MAX_VALUE, parallelism, callbackFactory);
+	}
 
-		@Override
-		public void startRow(int rowNumber) {
-			// Handle missing rows
-			if (callback.supportEmptyRows()) {
-				handleMissingRows(currentRowNumber, rowNumber - currentRowNumber - 1);
-			}
-			// Then setup for new row
-			currentRowNumber = rowNumber;
-			currentColumnNumber = -1;
-			callback.beginRow(currentRowNumber);
-		}
-
-		protected void handleMissingRows(int currentRowNumber, int numberMissing) {
-			for (int i = 0; i < numberMissing; i++) {
-				int missingRowNumber = currentRowNumber + i + 1;
-				callback.beginRow(missingRowNumber);
-				for (int columnNumber = 0; columnNumber < minimumColumnsToProcess; columnNumber++) {
-					callback.cellValue(missingRowNumber, columnNumber, null,
-							new CellAddress(missingRowNumber, columnNumber).formatAsString(), null);
-				}
-				callback.endRow(missingRowNumber);
+	protected void parseInParallel(int numberOfSheetsToProcess, int parallelism, SheetCallbackFactory callbackFactory)
+			throws IOException, OpenXML4JException, SAXException, ParserConfigurationException {
+		SharedStrings stringsTable = openSharedStrings();
+		try {
+			XSSFReader xssfReader = new XSSFReader(xlsxPackage);
+			StylesTable styles = xssfReader.getStylesTable();
+			XSSFReader.SheetIterator iterator = (XSSFReader.SheetIterator) xssfReader.getSheetsData();
+			AtomicBoolean cancelled = new AtomicBoolean();
+			List<Callable<Void>> tasks = new ArrayList<>();
+			int index = 0;
+			while (iterator.hasNext() && index < numberOfSheetsToProcess) {
+				// Each worker opens its own stream on the sheet part
+				iterator.next().close();
+				String sheetName = iterator.getSheetName();
+				PackagePart sheetPart = iterator.getSheetPart();
+				int sheetIndex = index;
+				Callback sheetCallback = callbackFactory.newCallback(sheetName, sheetIndex);
+				tasks.add(() -> {
+					try (InputStream stream = guard(sheetPart.getInputStream(), sheetPart)) {
+						long start = System.nanoTime();
+						ColumnFilter columnFilter = newColumnFilter(stringsTable);
+						CallbackContentsHandler handler = new CancellableContentsHandler(sheetCallback, columnFilter,
+								cancelled);
+						sheetCallback.beginSheet(sheetName, sheetIndex);
+						parseSheet(styles, stringsTable, handler, columnFilter, stream);
+						sheetCallback.endSheet(sheetName, sheetIndex);
+						sheetParsed(sheetName, start, handler.getRowCount(), handler.getCellCount());
+					}
+					return null;
+				});
+				index++;
 			}
+			runInParallel(tasks, parallelism, cancelled);
+			callback.endSpreadsheet();
+		} finally {
+			closeSharedStrings(stringsTable);
 		}
+	}
 
-		@Override
-		public void cell(String cellReference, String formattedValue, XSSFComment comment) {
-			if (cellReference == null) {
-				cellReference = new CellAddress(currentRowNumber, currentColumnNumber).formatAsString();
-			}
+	protected InputStream guard(InputStream stream, PackagePart part) {
+		long compressedBytes = part instanceof ZipPackagePart
+				? ((ZipPackagePart) part).getZipArchive().getCompressedSize()
+				: -1;
+		return guard(part.getPartName().getName(), stream, () -> compressedBytes);
+	}
 
-			// Handle missing columns in the middle of the row
-			int newColumnNumber = (new CellReference(cellReference)).getCol();
-			int numberMissing = newColumnNumber - currentColumnNumber - 1;
-			for (int i = 0; i < numberMissing; i++) {
-				int missingColumnNumber = currentColumnNumber + i + 1;
-				callback.cellValue(currentRowNumber, missingColumnNumber, null,
-						new CellAddress(currentRowNumber, missingColumnNumber).formatAsString(), null);
-			}
-			currentColumnNumber = newColumnNumber;
+	protected SharedStrings openSharedStrings() throws IOException, SAXException, ParserConfigurationException {
+		long start = System.nanoTime();
+		SharedStrings sharedStrings = createSharedStrings();
+		sharedStringsLoaded(start);
+		return sharedStrings;
+	}
 
-			callback.cellValue(currentRowNumber, currentColumnNumber, formattedValue, cellReference, comment);
+	protected SharedStrings createSharedStrings() throws IOException, SAXException, ParserConfigurationException {
+		switch (sharedStringsType) {
+		case MAPPED:
+			return MappedSharedStringsTable.open(xlsxPackage);
+		case OFF_HEAP:
+			return OffHeapSharedStringsTable.open(xlsxPackage, sharedStringsCacheSize);
+		case TEMP_FILE:
+		default:
+			return new TempFileSharedStringsTable(xlsxPackage, true);
 		}
+	}
 
-		@Override
-		public void endRow(int rowNum) {
-			// Make sure we handle all columns if row is short
-			int numberMissing = minimumColumnsToProcess - currentColumnNumber - 1;
-			for (int i = 0; i < numberMissing; i++) {
-				int missingColumnNumber = currentColumnNumber + i + 1;
-				callback.cellValue(currentRowNumber, missingColumnNumber + i + 1, null,
-						new CellAddress(currentRowNumber, missingColumnNumber).formatAsString(), null);
+	protected void closeSharedStrings(SharedStrings sharedStrings) throws IOException {
+		if (sharedStrings instanceof AutoCloseable) {
+			try {
+				((AutoCloseable) sharedStrings).close();
+			} catch (IOException | RuntimeException e) {
+				throw e;
+			} catch (Exception e) {
+				throw new IOException("Cannot close shared strings", e);
 			}
-			callback.endRow(currentRowNumber);
 		}
 	}
 
-	public interface Callback {
-		default void beginSheet(String sheetName, int index) {
+	/**
+	 * Sets cancelled and waits for every task to stop before returning, whether
+	 * they all completed or not.
+	 */
+	protected void runInParallel(List<Callable<Void>> tasks, int parallelism, AtomicBoolean cancelled)
+			throws IOException, SAXException, ParserConfigurationException {
+		if (tasks.isEmpty()) {
+			return;
 		}
-
-		default boolean supportEmptyRows() {
-			return true;
+		ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(parallelism, tasks.size())),
+				threadFactory);
+		try {
+			CompletionService<Void> completionService = new ExecutorCompletionService<>(executor);
+			tasks.forEach(completionService::submit);
+			for (int i = 0; i < tasks.size(); i++) {
+				// Fail fast on the first sheet that fails, whatever its position
+				Throwable failure = null;
+				try {
+					completionService.take().get();
+				} catch (ExecutionException e) {
+					failure = e.getCause();
+				}
+				if (failure instanceof IOException) {
+					throw (IOException) failure;
+				} else if (failure instanceof SAXException) {
+					throw (SAXException) failure;
+				} else if (failure instanceof ParserConfigurationException) {
+					throw (ParserConfigurationException) failure;
+				} else if (failure instanceof RuntimeException) {
+					throw (RuntimeException) failure;
+				} else if (failure instanceof Error) {
+					throw (Error) failure;
+				} else if (failure != null) {
+					throw new IllegalStateException("Cannot parse sheet", failure);
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while parsing sheets");
+		} finally {
+			cancelled.set(true);
+			executor.shutdownNow();
+			awaitTermination(executor);
 		}
+	}
 
-		default void beginRow(int rowNumber) {
+	protected void awaitTermination(ExecutorService executor) {
+		boolean interrupted = false;
+		while (true) {
+			try {
+				if (executor.awaitTermination(1, TimeUnit.SECONDS)) {
+					break;
+				}
+			} catch (InterruptedException e) {
+				// The workers still read the tables, so keep waiting
+				interrupted = true;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
 		}
+	}
+
+	/**
+	 * Stops a sheet at its next row or cell once another sheet has failed.
+	 */
+	protected class CancellableContentsHandler extends CallbackContentsHandler {
+		private final AtomicBoolean cancelled;
 
-		default void cellValue(int rowNumber, int columnNumber, String formattedValue, String cellReference,
-				XSSFComment comment) {
+		public CancellableContentsHandler(Callback callback, ColumnFilter columnFilter, AtomicBoolean cancelled) {
+			super(callback, columnFilter);
+			this.cancelled = cancelled;
 		}
 
-		default void endRow(int rowNumber) {
+		@Override
+		public void startRow(int rowNumber) {
+			checkCancelled();
+			super.startRow(rowNumber);
 		}
 
-		default void endSheet(String sheetName, int index) {
+		@Override
+		public void cell(String cellReference, String formattedValue, XSSFComment comment) {
+			checkCancelled();
+			super.cell(cellReference, formattedValue, comment);
 		}
 
-		default void endSpreadsheet() {
+		protected void checkCancelled() {
+			if (cancelled.get()) {
+				throw new CancellationException("Another sheet failed");
+			}
 		}
 	}
-}
\ No newline at end of file
+
+	public enum SharedStringsType {
+		TEMP_FILE, MAPPED, OFF_HEAP
+	}
+
+	public interface SheetCallbackFactory {
+		Callback newCallback(String sheetName, int index);
+	}
+}
@@ -0,0 +1,281 @@
+package io.github.learnapachepoixssf.service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveInputStream;
+import org.apache.commons.io.input.CloseShieldInputStream;
+import org.apache.commons.io.input.CountingInputStream;
+import org.apache.poi.ooxml.util.SAXHelper;
+import org.apache.poi.openxml4j.exceptions.OpenXML4JException;
+import org.apache.poi.xssf.eventusermodel.ReadOnlySharedStringsTable;
+import org.apache.poi.xssf.model.SharedStrings;
+import org.apache.poi.xssf.model.StylesTable;
+import org.xml.sax.Attributes;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * Parses a workbook as it is read from a stream, for example a request body,
+ * without saving it first. Zip entries are handled in the order they arrive.
+ * The shared strings and styles are kept in memory because cells refer to them
+ * by index. A sheet that arrives before a part it depends on (Excel writes the
+ * sheets before the shared strings) is copied to a temporary file and parsed
+ * once the end of the stream is reached. Sheets are reported in the order they
+ * are parsed. An upload guard counts every entry, the shared strings and the
+ * spilled sheets included.
+ */
+public class XlsxZipStreamParser extends SheetStreamParser {
+
+	static final String SHARED_STRINGS_CONTENT_TYPE = "application/vnd.openxmlformats-officedocument.spreadsheetml.sharedStrings+xml";
+	static final String STYLES_CONTENT_TYPE = "application/vnd.openxmlformats-officedocument.spreadsheetml.styles+xml";
+	static final String WORKSHEET_CONTENT_TYPE = "application/vnd.openxmlformats-officedocument.spreadsheetml.worksheet+xml";
+	static final String RELATIONSHIPS_NAMESPACE = "http://schemas.openxmlformats.org/officeDocument/2006/relationships";
+
+	private final InputStream inputStream;
+
+	public XlsxZipStreamParser(InputStream inputStream, int minimumColumnsToProcess) {
+		this(inputStream, minimumColumnsToProcess, new Callback() {
+		});
+	}
+
+	public XlsxZipStreamParser(InputStream inputStream, int minimumColumnsToProcess, Callback callback) {
+		super(minimumColumnsToProcess, callback);
+		this.inputStream = inputStream;
+	}
+
+	@Override
+	protected void parse(int numberOfSheetsToProcess)
+			throws IOException, OpenXML4JException, SAXException, ParserConfigurationException {
+		parseEntries(numberOfSheetsToProcess, true, (sheetName, index, styles, sharedStrings, stream) -> {
+			long start = System.nanoTime();
+			ColumnFilter columnFilter = newColumnFilter(sharedStrings);
+			CallbackContentsHandler handler = new CallbackContentsHandler(callback, columnFilter);
+			callback.beginSheet(sheetName, index);
+			parseSheet(styles, sharedStrings, handler, columnFilter, stream);
+			callback.endSheet(sheetName, index);
+			sheetParsed(sheetName, start, handler.getRowCount(), handler.getCellCount());
+		});
+		callback.endSpreadsheet();
+	}
+
+	@Override
+	protected void parse(int numberOfSheetsToProcess, RawCallback rawCallback)
+			throws IOException, OpenXML4JException, SAXException, ParserConfigurationException {
+		parseEntries(numberOfSheetsToProcess, false, (sheetName, index, styles, sharedStrings, stream) -> {
+			long start = System.nanoTime();
+			ColumnFilter columnFilter = newColumnFilter(sharedStrings);
+			RawContentsHandler handler = new RawContentsHandler(rawCallback, sharedStrings, columnFilter);
+			rawCallback.beginSheet(sheetName, index);
+			parseSheet(handler, columnFilter, stream);
+			rawCallback.endSheet(sheetName, index);
+			sheetParsed(sheetName, start, handler.getRowCount(), handler.getCellCount());
+		});
+		rawCallback.endSpreadsheet();
+	}
+
+	protected void parseEntries(int numberOfSheetsToProcess, boolean needsStyles, SheetConsumer sheetConsumer)
+			throws IOException, SAXException, ParserConfigurationException {
+		Parts parts = new Parts();
+		Map<String, Path> spilledSheets = new LinkedHashMap<>();
+		SharedStrings sharedStrings = null;
+		StylesTable styles = null;
+		int sheetsParsed = 0;
+		// Entry sizes may not be known until after their data, so compressed bytes are counted as they arrive
+		CountingInputStream compressed = new CountingInputStream(inputStream);
+		// Unlike ZipInputStream, this reads the data descriptors POI writes
+		try (ZipArchiveInputStream zip = new ZipArchiveInputStream(compressed, "UTF-8", true, true)) {
+			ZipArchiveEntry entry;
+			while ((entry = zip.getNextZipEntry()) != null) {
+				String partName = entry.getName();
+				long entryStart = compressed.getByteCount();
+				InputStream entryStream = guard(partName, CloseShieldInputStream.wrap(zip),
+						() -> compressed.getByteCount() - entryStart);
+				if ("[Content_Types].xml".equals(partName)) {
+					parts.readContentTypes(entryStream);
+				} else if ("xl/workbook.xml".equals(partName)) {
+					parts.readWorkbook(entryStream);
+				} else if ("xl/_rels/workbook.xml.rels".equals(partName)) {
+					parts.readWorkbookRelationships(entryStream);
+				} else if (parts.isSharedStrings(partName)) {
+					long start = System.nanoTime();
+					sharedStrings = new ReadOnlySharedStringsTable(entryStream, false);
+					sharedStringsLoaded(start);
+				} else if (parts.isStyles(partName)) {
+					styles = new StylesTable(entryStream);
+				} else if (parts.isWorksheet(partName)) {
+					if (sheetsParsed >= numberOfSheetsToProcess
+							|| !parts.isWanted(partName, numberOfSheetsToProcess)) {
+						continue;
+					}
+					boolean ready = (sharedStrings != null || parts.hasNoSharedStrings())
+							&& (!needsStyles || styles != null || parts.hasNoStyles());
+					if (ready) {
+						dispatchSheet(parts, partName, sheetsParsed++, styles, sharedStrings, entryStream,
+								sheetConsumer);
+						if (sheetsParsed >= numberOfSheetsToProcess) {
+							// Stop reading the stream once the sheets are done
+							break;
+						}
+					} else {
+						// Parsed once the parts it depends on have arrived
+						Path spilledSheet = Files.createTempFile("xlsx-sheet", ".xml");
+						spilledSheets.put(partName, spilledSheet);
+						Files.copy(entryStream, spilledSheet, StandardCopyOption.REPLACE_EXISTING);
+					}
+				}
+			}
+			for (Map.Entry<String, Path> spilledSheet : spilledSheets.entrySet()) {
+				if (sheetsParsed >= numberOfSheetsToProcess) {
+					break;
+				}
+				try (InputStream stream = Files.newInputStream(spilledSheet.getValue())) {
+					dispatchSheet(parts, spilledSheet.getKey(), sheetsParsed++, styles, sharedStrings, stream,
+							sheetConsumer);
+				}
+			}
+		} finally {
+			for (Path spilledSheet : spilledSheets.values()) {
+				Files.deleteIfExists(spilledSheet);
+			}
+		}
+	}
+
+	protected void dispatchSheet(Parts parts, String partName, int sheetsParsed, StylesTable styles,
+			SharedStrings sharedStrings, InputStream stream, SheetConsumer sheetConsumer)
+			throws IOException, SAXException, ParserConfigurationException {
+		int index = parts.getSheetIndex(partName);
+		if (index < 0) {
+			index = sheetsParsed;
+		}
+		// A workbook without a styles part only has default styles
+		StylesTable sheetStyles = styles != null ? styles : new StylesTable();
+		sheetConsumer.parseSheet(parts.getSheetName(partName), index, sheetStyles, sharedStrings, stream);
+	}
+
+	protected interface SheetConsumer {
+		void parseSheet(String sheetName, int index, StylesTable styles, SharedStrings sharedStrings,
+				InputStream stream) throws IOException, SAXException, ParserConfigurationException;
+	}
+
+	/**
+	 * What is known about the package from the small parts that describe it.
+	 * Until [Content_Types].xml has been read, parts are recognised by the names
+	 * Excel gives them.
+	 */
+	protected static class Parts {
+		private final Map<String, String> contentTypes = new HashMap<>();
+		private final List<String> sheetRelationshipIds = new ArrayList<>();
+		private final Map<String, String> sheetNamesByRelationshipId = new HashMap<>();
+		private final Map<String, String> partNamesByRelationshipId = new HashMap<>();
+		private boolean contentTypesRead = false;
+
+		public boolean isSharedStrings(String partName) {
+			return contentTypesRead ? SHARED_STRINGS_CONTENT_TYPE.equals(contentTypes.get(partName))
+					: "xl/sharedStrings.xml".equals(partName);
+		}
+
+		public boolean isStyles(String partName) {
+			return contentTypesRead ? STYLES_CONTENT_TYPE.equals(contentTypes.get(partName))
+					: "xl/styles.xml".equals(partName);
+		}
+
+		public boolean isWorksheet(String partName) {
+			return contentTypesRead ? WORKSHEET_CONTENT_TYPE.equals(contentTypes.get(partName))
+					: partName.startsWith("xl/worksheets/") && partName.endsWith(".xml");
+		}
+
+		public boolean hasNoSharedStrings() {
+			return contentTypesRead && !contentTypes.containsValue(SHARED_STRINGS_CONTENT_TYPE);
+		}
+
+		public boolean hasNoStyles() {
+			return contentTypesRead && !contentTypes.containsValue(STYLES_CONTENT_TYPE);
+		}
+
+		/**
+		 * Skip sheets known to be past the sheets to process.
+		 */
+		public boolean isWanted(String partName, int numberOfSheetsToProcess) {
+			int index = getSheetIndex(partName);
+			return index < 0 || index < numberOfSheetsToProcess;
+		}
+
+		public int getSheetIndex(String partName) {
+			for (int i = 0; i < sheetRelationshipIds.size(); i++) {
+				if (partName.equals(partNamesByRelationshipId.get(sheetRelationshipIds.get(i)))) {
+					return i;
+				}
+			}
+			return -1;
+		}
+
+		public String getSheetName(String partName) {
+			int index = getSheetIndex(partName);
+			return index < 0 ? partName : sheetNamesByRelationshipId.get(sheetRelationshipIds.get(index));
+		}
+
+		public void readContentTypes(InputStream stream) throws IOException, SAXException, ParserConfigurationException {
+			read(stream, new DefaultHandler() {
+				@Override
+				public void startElement(String uri, String localName, String qName, Attributes attributes) {
+					if ("Override".equals(localName)) {
+						contentTypes.put(partName(attributes.getValue("PartName")), attributes.getValue("ContentType"));
+					}
+				}
+			});
+			contentTypesRead = true;
+		}
+
+		public void readWorkbook(InputStream stream) throws IOException, SAXException, ParserConfigurationException {
+			read(stream, new DefaultHandler() {
+				@Override
+				public void startElement(String uri, String localName, String qName, Attributes attributes) {
+					if ("sheet".equals(localName)) {
+						String relationshipId = attributes.getValue(RELATIONSHIPS_NAMESPACE, "id");
+						sheetRelationshipIds.add(relationshipId);
+						sheetNamesByRelationshipId.put(relationshipId, attributes.getValue("name"));
+					}
+				}
+			});
+		}
+
+		public void readWorkbookRelationships(InputStream stream)
+				throws IOException, SAXException, ParserConfigurationException {
+			read(stream, new DefaultHandler() {
+				@Override
+				public void startElement(String uri, String localName, String qName, Attributes attributes) {
+					if ("Relationship".equals(localName)) {
+						String target = attributes.getValue("Target");
+						partNamesByRelationshipId.put(attributes.getValue("Id"),
+								target.startsWith("/") ? partName(target) : "xl/" + target);
+					}
+				}
+			});
+		}
+
+		protected String partName(String name) {
+			return name.startsWith("/") ? name.substring(1) : name;
+		}
+
+		protected void read(InputStream stream, DefaultHandler handler)
+				throws IOException, SAXException, ParserConfigurationException {
+			XMLReader reader = SAXHelper.newXMLReader();
+			reader.setContentHandler(handler);
+			reader.parse(new InputSource(stream));
+		}
+	}
+}
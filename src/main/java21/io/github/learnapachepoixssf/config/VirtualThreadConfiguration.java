@@ -0,0 +1,43 @@
+package io.github.learnapachepoixssf.config;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import org.apache.coyote.ProtocolHandler;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.web.embedded.tomcat.TomcatProtocolHandlerCustomizer;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import io.github.learnapachepoixssf.service.WorkerThreads;
+
+/**
+ * Only part of the java21 build. Tomcat runs every request on a virtual thread
+ * of its own instead of taking one from its pool, and imports and exports
+ * start virtual threads for their work. What bounds them is the
+ * ResourceLimiter.
+ */
+@Configuration(proxyBeanMethods = false)
+@ConditionalOnProperty(prefix = "widgets.concurrency", name = "virtual-threads", havingValue = "true")
+public class VirtualThreadConfiguration {
+
+	@Bean
+	public TomcatProtocolHandlerCustomizer<ProtocolHandler> virtualThreadExecutor() {
+		return protocolHandler -> protocolHandler.setExecutor(Executors.newVirtualThreadPerTaskExecutor());
+	}
+
+	@Bean
+	public WorkerThreads virtualWorkerThreads() {
+		return new WorkerThreads() {
+			@Override
+			public ThreadFactory newThreadFactory(String namePrefix) {
+				return Thread.ofVirtual().name(namePrefix, 1).factory();
+			}
+
+			@Override
+			public boolean isVirtual() {
+				return true;
+			}
+		};
+	}
+}
@@ -1,28 +1,107 @@
 package io.github.learnapachepoixssf;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipException;
+
+import javax.sql.DataSource;
 
 import org.apache.commons.csv.CSVFormat;
 import org.apache.commons.csv.CSVPrinter;
 import org.apache.commons.io.FileUtils;
+import org.apache.poi.ooxml.util.SAXHelper;
 import org.apache.poi.openxml4j.opc.OPCPackage;
 import org.apache.poi.openxml4j.opc.PackageAccess;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.ss.usermodel.WorkbookFactory;
+import org.apache.poi.xssf.eventusermodel.ReadOnlySharedStringsTable;
+import org.apache.poi.xssf.streaming.SXSSFWorkbook;
 import org.apache.poi.xssf.usermodel.XSSFComment;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
 import org.junit.jupiter.api.Test;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.util.unit.DataSize;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
 
+import io.github.learnapachepoixssf.config.WidgetProperties;
+import io.github.learnapachepoixssf.model.SheetColumn;
+import io.github.learnapachepoixssf.model.Widget;
+import io.github.learnapachepoixssf.service.BatchImportException;
+import io.github.learnapachepoixssf.service.BulkInsertDialect;
+import io.github.learnapachepoixssf.service.ColumnarRowWriter;
+import io.github.learnapachepoixssf.service.ColumnarStreamParser;
+import io.github.learnapachepoixssf.service.DelimitedRowWriter;
+import io.github.learnapachepoixssf.service.DelimitedStreamParser;
+import io.github.learnapachepoixssf.service.DomAdmission;
+import io.github.learnapachepoixssf.service.ExportSnapshotCache;
+import io.github.learnapachepoixssf.service.FileFormat;
+import io.github.learnapachepoixssf.service.ImportCheckpoint;
+import io.github.learnapachepoixssf.service.ImportJob;
+import io.github.learnapachepoixssf.service.ImportJobService;
+import io.github.learnapachepoixssf.service.ImportOptions;
+import io.github.learnapachepoixssf.service.MappedZipEntrySource;
+import io.github.learnapachepoixssf.service.MergeWidgetWriter;
+import io.github.learnapachepoixssf.service.OffHeapSharedStringsTable;
+import io.github.learnapachepoixssf.service.ParallelWidgetExporter;
+import io.github.learnapachepoixssf.service.PermitPool;
+import io.github.learnapachepoixssf.service.ResourceLimiter;
+import io.github.learnapachepoixssf.service.SequenceIdAllocator;
+import io.github.learnapachepoixssf.service.SharedStringsXmlHandler;
+import io.github.learnapachepoixssf.service.SheetRowMapper;
+import io.github.learnapachepoixssf.service.SheetStreamParser;
+import io.github.learnapachepoixssf.service.StreamingXlsxWriter;
+import io.github.learnapachepoixssf.service.UploadGuard;
+import io.github.learnapachepoixssf.service.UploadLimitException;
 import io.github.learnapachepoixssf.service.XlsxService;
 import io.github.learnapachepoixssf.service.XlsxStreamParser;
+import io.github.learnapachepoixssf.service.XlsxZipStreamParser;
+import io.micrometer.core.instrument.MeterRegistry;
 
 @SpringBootTest
 public class LearnApachePoiXssfApplicationTests {
@@ -30,6 +109,24 @@ public class LearnApachePoiXssfApplicationTests {
 	@Autowired
 	protected XlsxService xlsxService;
 
+	@Autowired
+	protected ImportJobService importJobService;
+
+	@Autowired
+	protected DataSource dataSource;
+
+	@Autowired
+	protected MeterRegistry meterRegistry;
+
+	@Autowired
+	protected WidgetProperties properties;
+
+	@Autowired
+	protected ResourceLimiter resourceLimiter;
+
+	@Autowired
+	protected DomAdmission domAdmission;
+
 	@Test
 	public void convertSpreadsheetToCSV() throws Exception {
 		String actualFilename = "target/actual-testdata.csv";
@@ -66,6 +163,396 @@ public class LearnApachePoiXssfApplicationTests {
 		}
 	}
 
+	@Test
+	public void convertSpreadsheetToCSVUsingRawCallback() throws Exception {
+		String actualFilename = "target/actual-raw-testdata.csv";
+		final FileWriter out = new FileWriter(actualFilename);
+		final CSVPrinter printer = new CSVPrinter(out, CSVFormat.DEFAULT.withRecordSeparator("\n"));
+		int NUMBER_OF_COLUMNS = 5;
+		try (OPCPackage p = OPCPackage.open("src/test/resources/testdata.xlsx", PackageAccess.READ)) {
+			XlsxStreamParser xlsxStreamParser = new XlsxStreamParser(p, NUMBER_OF_COLUMNS);
+			xlsxStreamParser.parse(new XlsxStreamParser.RawCallback() {
+
+				List<String> values = new LinkedList<>();
+
+				@Override
+				public void cellValue(int rowNumber, int columnNumber, XlsxStreamParser.RawValue value) {
+					values.add(value.asString());
+				}
+
+				@Override
+				public void endRow(int rowNumber) {
+					try {
+						printer.printRecord(values);
+					} catch (IOException e) {
+						throw new IllegalArgumentException("Cannot write record", e);
+					}
+					values.clear();
+				}
+			});
+			printer.close();
+			boolean isSame = FileUtils.contentEquals(new File("src/test/resources/expected-testdata.csv"),
+					new File(actualFilename));
+			assertTrue(isSame, "Result CSV file does not match expected results");
+		}
+	}
+
+	@Test
+	public void convertStreamedSpreadsheetToCSV() throws Exception {
+		String actualFilename = "target/actual-streamed-testdata.csv";
+		final FileWriter out = new FileWriter(actualFilename);
+		final CSVPrinter printer = new CSVPrinter(out, CSVFormat.DEFAULT.withRecordSeparator("\n"));
+		int NUMBER_OF_COLUMNS = 5;
+		// Excel saves the sheet before the shared strings, so it has to be buffered
+		try (InputStream in = new FileInputStream("src/test/resources/testdata.xlsx")) {
+			SheetStreamParser xlsxStreamParser = new XlsxZipStreamParser(in, NUMBER_OF_COLUMNS,
+					new XlsxStreamParser.Callback() {
+
+						List<String> values = new LinkedList<>();
+
+						@Override
+						public void cellValue(int rowNumber, int columnNumber, String formattedValue,
+								String cellReference, XSSFComment comment) {
+							values.add(formattedValue);
+						}
+
+						@Override
+						public void endRow(int rowNumber) {
+							try {
+								printer.printRecord(values);
+							} catch (IOException e) {
+								throw new IllegalArgumentException("Cannot write record", e);
+							}
+							values.clear();
+						}
+					});
+			xlsxStreamParser.parse();
+			printer.close();
+			boolean isSame = FileUtils.contentEquals(new File("src/test/resources/expected-testdata.csv"),
+					new File(actualFilename));
+			assertTrue(isSame, "Result CSV file does not match expected results");
+		}
+	}
+
+	@Test
+	public void convertMappedSpreadsheetToCSV() throws Exception {
+		String actualFilename = "target/actual-mapped-testdata.csv";
+		final FileWriter out = new FileWriter(actualFilename);
+		final CSVPrinter printer = new CSVPrinter(out, CSVFormat.DEFAULT.withRecordSeparator("\n"));
+		int NUMBER_OF_COLUMNS = 5;
+		try (OPCPackage p = OPCPackage.open(MappedZipEntrySource.open(Paths.get("src/test/resources/testdata.xlsx")))) {
+			XlsxStreamParser xlsxStreamParser = new XlsxStreamParser(p, NUMBER_OF_COLUMNS,
+					new XlsxStreamParser.Callback() {
+
+						List<String> values = new LinkedList<>();
+
+						@Override
+						public void cellValue(int rowNumber, int columnNumber, String formattedValue,
+								String cellReference, XSSFComment comment) {
+							values.add(formattedValue);
+						}
+
+						@Override
+						public void endRow(int rowNumber) {
+							try {
+								printer.printRecord(values);
+							} catch (IOException e) {
+								throw new IllegalArgumentException("Cannot write record", e);
+							}
+							values.clear();
+						}
+					});
+			xlsxStreamParser.setSharedStringsType(XlsxStreamParser.SharedStringsType.MAPPED);
+			xlsxStreamParser.parse();
+			printer.close();
+			boolean isSame = FileUtils.contentEquals(new File("src/test/resources/expected-testdata.csv"),
+					new File(actualFilename));
+			assertTrue(isSame, "Result CSV file does not match expected results");
+		}
+	}
+
+	@Test
+	public void rejectCorruptMappedEntries() throws Exception {
+		byte[] zip = Files.readAllBytes(Paths.get("src/test/resources/testdata.xlsx"));
+		ByteBuffer buffer = ByteBuffer.wrap(zip).order(ByteOrder.LITTLE_ENDIAN);
+		int end = zip.length - 22;
+		while (buffer.getInt(end) != 0x06054b50) {
+			end--;
+		}
+		int firstEntry = buffer.getInt(end + 16);
+		String name = new String(zip, firstEntry + 46, buffer.getShort(firstEntry + 28), StandardCharsets.UTF_8);
+
+		// The CRC the central directory gives is checked at the end of the entry
+		Path corrupt = Paths.get("target/corrupt-crc.xlsx");
+		buffer.putInt(firstEntry + 16, buffer.getInt(firstEntry + 16) ^ 1);
+		Files.write(corrupt, zip);
+		MappedZipEntrySource source = MappedZipEntrySource.open(corrupt);
+		try (InputStream in = source.getInputStream(source.getEntry(name))) {
+			assertThrows(ZipException.class, () -> in.transferTo(OutputStream.nullOutputStream()));
+		}
+		buffer.putInt(firstEntry + 16, buffer.getInt(firstEntry + 16) ^ 1);
+
+		// As is a compressed size that runs past the end of the file
+		buffer.putInt(firstEntry + 20, Integer.MAX_VALUE);
+		Files.write(corrupt, zip);
+		MappedZipEntrySource truncated = MappedZipEntrySource.open(corrupt);
+		assertThrows(ZipException.class, () -> truncated.getInputStream(truncated.getEntry(name)));
+		Files.delete(corrupt);
+	}
+
+	@Test
+	public void lookUpOffHeapSharedStrings() throws Exception {
+		try (OPCPackage p = OPCPackage.open("src/test/resources/testdata.xlsx", PackageAccess.READ)) {
+			ReadOnlySharedStringsTable expected = new ReadOnlySharedStringsTable(p, false);
+			// A cache smaller than the table, so lookups both hit and miss
+			try (OffHeapSharedStringsTable actual = OffHeapSharedStringsTable.open(p, 2)) {
+				assertEquals(expected.getUniqueCount(), actual.getUniqueCount());
+				for (int pass = 0; pass < 2; pass++) {
+					for (int i = 0; i < expected.getUniqueCount(); i++) {
+						assertEquals(expected.getItemAt(i).getString(), actual.getString(i));
+						assertEquals(expected.getItemAt(i).getString(), actual.getItemAt(i).getString());
+					}
+				}
+			}
+		}
+	}
+
+	@Test
+	public void ignoreUnreadableSharedStringsCount() throws Exception {
+		for (String count : List.of("many", "99999999999", "-1")) {
+			List<String> strings = new ArrayList<>();
+			SharedStringsXmlHandler handler = new SharedStringsXmlHandler() {
+				@Override
+				protected void sharedString(String value) {
+					strings.add(value);
+				}
+			};
+			XMLReader reader = SAXHelper.newXMLReader();
+			reader.setContentHandler(handler);
+			String xml = "<sst xmlns=\"http://schemas.openxmlformats.org/spreadsheetml/2006/main\" count=\"" + count
+					+ "\"><si><t>only</t></si></sst>";
+			reader.parse(new InputSource(new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8))));
+			assertEquals(List.of("only"), strings);
+			assertEquals(0, handler.getCount());
+		}
+	}
+
+	@Test
+	public void mapRowsToColumns() throws Exception {
+		File file = new File("target/mapped-rows.xlsx");
+		try (StreamingXlsxWriter writer = new StreamingXlsxWriter(new FileOutputStream(file))) {
+			writer.startRow();
+			writer.numberCell(42);
+			writer.stringCell("first");
+			writer.stringCell("7");
+			writer.endRow();
+			writer.startRow();
+			writer.stringCell("");
+			writer.stringCell("second");
+			writer.endRow();
+		}
+		SheetRowMapper<MappedRow> mapper = SheetRowMapper.forType(MappedRow.class);
+		assertEquals(4, mapper.getColumnCount());
+		List<MappedRow> rows = new LinkedList<>();
+		try (OPCPackage p = OPCPackage.open(file, PackageAccess.READ)) {
+			new XlsxStreamParser(p, mapper.getColumnCount()).parse(new XlsxStreamParser.RawCallback() {
+				@Override
+				public void beginRow(int rowNumber) {
+					rows.add(mapper.newRow());
+				}
+
+				@Override
+				public void cellValue(int rowNumber, int columnNumber, XlsxStreamParser.RawValue value) {
+					mapper.setValue(rows.get(rowNumber), value);
+				}
+			});
+		}
+		assertEquals(2, rows.size());
+		assertEquals(42, rows.get(0).getNumber());
+		assertEquals("first", rows.get(0).getText());
+		assertEquals(7, (int) rows.get(0).getCount());
+		assertEquals(0, rows.get(1).getNumber());
+		assertEquals("second", rows.get(1).getText());
+		assertNull(rows.get(1).getCount());
+		assertNull(rows.get(1).getAmount());
+	}
+
+	@Test
+	public void parseWholeNumbersExactly() throws Exception {
+		File file = new File("target/whole-numbers.xlsx");
+		try (StreamingXlsxWriter writer = new StreamingXlsxWriter(new FileOutputStream(file))) {
+			writer.startRow();
+			writer.numberCell(Long.MAX_VALUE);
+			writer.stringCell("1E3");
+			writer.stringCell("1.5");
+			writer.stringCell("9223372036854775808");
+			writer.endRow();
+		}
+		List<Object> values = new ArrayList<>();
+		try (OPCPackage p = OPCPackage.open(file, PackageAccess.READ)) {
+			new XlsxStreamParser(p, 4).parse(new XlsxStreamParser.RawCallback() {
+				@Override
+				public void cellValue(int rowNumber, int columnNumber, XlsxStreamParser.RawValue value) {
+					try {
+						values.add(value.asLong());
+					} catch (NumberFormatException e) {
+						values.add(e.getClass());
+					}
+				}
+			});
+		}
+		// Fractions and values past a long are refused rather than cut short
+		assertEquals(List.of(Long.MAX_VALUE, 1000L, NumberFormatException.class, NumberFormatException.class), values);
+		file.delete();
+		// The usermodel gives doubles, which the mapper checks the same way
+		SheetRowMapper<MappedRow> mapper = SheetRowMapper.forType(MappedRow.class);
+		try (XSSFWorkbook workbook = new XSSFWorkbook()) {
+			Row row = workbook.createSheet().createRow(0);
+			MappedRow mapped = mapper.newRow();
+			row.createCell(0).setCellValue(1E3);
+			row.createCell(2).setCellValue(7.0);
+			mapper.setValues(mapped, row);
+			assertEquals(1000L, mapped.getNumber());
+			assertEquals(7, (int) mapped.getCount());
+			row.getCell(0).setCellValue(1.5);
+			assertThrows(NumberFormatException.class, () -> mapper.setValues(mapped, row));
+			row.getCell(0).setCellValue(0x1p63);
+			assertThrows(NumberFormatException.class, () -> mapper.setValues(mapped, row));
+			row.getCell(0).setCellValue(-0x1p63);
+			row.getCell(2).setCellValue(0x1p31);
+			assertThrows(ArithmeticException.class, () -> mapper.setValues(mapped, row));
+			assertEquals(Long.MIN_VALUE, mapped.getNumber());
+		}
+	}
+
+	@Test
+	public void projectColumns() throws Exception {
+		int NUMBER_OF_COLUMNS = 12;
+		int NUMBER_OF_ROWS = 20;
+		File file = new File("target/wide-data.xlsx");
+		file.delete();
+		// Shared strings, so the headers have to be looked up
+		SXSSFWorkbook workbook = new SXSSFWorkbook(null, 100, false, true);
+		Sheet sheet = workbook.createSheet("Wide");
+		Row header = sheet.createRow(0);
+		for (int c = 0; c < NUMBER_OF_COLUMNS; c++) {
+			header.createCell(c).setCellValue("Column " + c);
+		}
+		for (int i = 1; i <= NUMBER_OF_ROWS; i++) {
+			Row row = sheet.createRow(i);
+			for (int c = 0; c < NUMBER_OF_COLUMNS; c++) {
+				if (i != 3 || c != 7) {
+					row.createCell(c).setCellValue("R" + i + "C" + c);
+				}
+			}
+		}
+		OutputStream out = new FileOutputStream(file);
+		workbook.write(out);
+		out.close();
+		workbook.dispose();
+		workbook.close();
+
+		Map<String, String> formattedValues = new ConcurrentHashMap<>();
+		Map<String, String> rawValues = new ConcurrentHashMap<>();
+		try (OPCPackage p = OPCPackage.open(file.getPath(), PackageAccess.READ)) {
+			XlsxStreamParser xlsxStreamParser = new XlsxStreamParser(p, NUMBER_OF_COLUMNS,
+					new XlsxStreamParser.Callback() {
+						@Override
+						public void cellValue(int rowNumber, int columnNumber, String formattedValue,
+								String cellReference, XSSFComment comment) {
+							formattedValues.put(cellReference, formattedValue == null ? "" : formattedValue);
+						}
+					});
+			xlsxStreamParser.setColumnNames("column 7", " Column 2 ");
+			xlsxStreamParser.parse();
+
+			xlsxStreamParser = new XlsxStreamParser(p, NUMBER_OF_COLUMNS);
+			xlsxStreamParser.setColumns(7, 2);
+			xlsxStreamParser.parse(new XlsxStreamParser.RawCallback() {
+				@Override
+				public void cellValue(int rowNumber, int columnNumber, XlsxStreamParser.RawValue value) {
+					rawValues.put(value.getCellReference(), value.isBlank() ? "" : value.asString());
+				}
+			});
+
+			XlsxStreamParser missingColumn = new XlsxStreamParser(p, NUMBER_OF_COLUMNS);
+			missingColumn.setColumnNames("Column 99");
+			assertThrows(SAXException.class, () -> missingColumn.parse());
+		}
+		assertEquals((NUMBER_OF_ROWS + 1) * 2, formattedValues.size());
+		assertEquals("Column 2", formattedValues.get("C1"));
+		assertEquals("Column 7", formattedValues.get("H1"));
+		assertEquals("R1C2", formattedValues.get("C2"));
+		assertEquals("R20C7", formattedValues.get("H21"));
+		assertEquals("", formattedValues.get("H4"));
+		assertEquals(formattedValues, rawValues);
+	}
+
+	@Test
+	public void parseSheetsInParallel() throws Exception {
+		int NUMBER_OF_SHEETS = 4;
+		int NUMBER_OF_ROWS = 500;
+		File file = new File("target/multi-sheet-data.xlsx");
+		file.delete();
+		SXSSFWorkbook workbook = new SXSSFWorkbook(100);
+		for (int s = 0; s < NUMBER_OF_SHEETS; s++) {
+			Sheet sheet = workbook.createSheet("Sheet" + s);
+			for (int i = 0; i < NUMBER_OF_ROWS; i++) {
+				Row row = sheet.createRow(i);
+				row.createCell(0).setCellValue(i);
+				row.createCell(1).setCellValue("Widget " + i);
+			}
+		}
+		OutputStream out = new FileOutputStream(file);
+		workbook.write(out);
+		out.close();
+		workbook.dispose();
+		workbook.close();
+
+		final Map<Integer, AtomicInteger> rowCounts = new ConcurrentHashMap<>();
+		final AtomicBoolean ended = new AtomicBoolean(false);
+		try (OPCPackage p = OPCPackage.open(file.getPath(), PackageAccess.READ)) {
+			XlsxStreamParser xlsxStreamParser = new XlsxStreamParser(p, 2, new XlsxStreamParser.Callback() {
+				@Override
+				public void endSpreadsheet() {
+					ended.set(true);
+				}
+			});
+			xlsxStreamParser.parseInParallel(2, (sheetName, index) -> new XlsxStreamParser.Callback() {
+				@Override
+				public void endRow(int rowNumber) {
+					rowCounts.computeIfAbsent(index, i -> new AtomicInteger()).incrementAndGet();
+				}
+			});
+		}
+		assertEquals(NUMBER_OF_SHEETS, rowCounts.size());
+		rowCounts.values().forEach(rowCount -> assertEquals(NUMBER_OF_ROWS, rowCount.get()));
+		assertTrue(ended.get(), "End of spreadsheet was not reported");
+
+		// The other sheets stop before a failure is thrown
+		final AtomicBoolean failed = new AtomicBoolean(false);
+		final AtomicBoolean calledAfterFailure = new AtomicBoolean(false);
+		try (OPCPackage p = OPCPackage.open(file.getPath(), PackageAccess.READ)) {
+			XlsxStreamParser xlsxStreamParser = new XlsxStreamParser(p, 2);
+			assertThrows(IllegalStateException.class,
+					() -> xlsxStreamParser.parseInParallel(2, (sheetName, index) -> new XlsxStreamParser.Callback() {
+						@Override
+						public void endRow(int rowNumber) {
+							assertTrue(Thread.currentThread().getName().startsWith("sheet-parser-"));
+							if (failed.get()) {
+								calledAfterFailure.set(true);
+							}
+							if (index == 0 && rowNumber == 10) {
+								throw new IllegalStateException("Cannot read row");
+							}
+						}
+					}));
+			failed.set(true);
+		}
+		Thread.sleep(100);
+		assertFalse(calledAfterFailure.get(), "A sheet was parsed after the failure was thrown");
+	}
+
 	@Test
 	public void testSaxAndJdbc() throws Exception {
 		assertUploadAndDownload(1000, "sax", "jdbc");
@@ -86,23 +573,874 @@ public class LearnApachePoiXssfApplicationTests {
 		assertUploadAndDownload(1000, "dom", "jpa");
 	}
 
+	@Test
+	public void testSaxAndBulk() throws Exception {
+		assertUploadAndDownload(1000, "sax", "bulk");
+	}
+
+	@Test
+	public void testSaxAndBulkPipelined() throws Exception {
+		assertUploadAndDownload(2500, 100, "sax", "bulk", 2);
+	}
+
+	@Test
+	public void testSaxAndMerge() throws Exception {
+		assertUploadAndDownload(1000, "sax", "merge");
+	}
+
+	@Test
+	public void reimportUsingMerge() throws Exception {
+		assertUploadAndDownload(2500, 100, "sax", "merge", 2);
+
+		// The download has the IDs, so importing it again only updates
+		File file = new File("target/test-data.xlsx");
+		assertEquals(2500, xlsxService.saveWidgets(file.toPath(), 1000, "sax", "merge"));
+		List<Long> ids = new ArrayList<>();
+		assertEquals(2500, xlsxService.forEachSavedWidget(1000, (id, name) -> ids.add(id)));
+
+		// The last row with an ID wins, and an ID that is not saved fails the batch
+		BulkInsertDialect h2 = BulkInsertDialect.forDatabase("H2");
+		MergeWidgetWriter writer = new MergeWidgetWriter(dataSource, h2,
+				new SequenceIdAllocator(dataSource, h2, Widget.SEQUENCE, Widget.ID_BLOCK_SIZE, 1));
+		writer.write(List.of(new Widget(ids.get(0), "first"), new Widget(null, "new"), new Widget(ids.get(0), "last")));
+		JdbcTemplate jdbcTemplate = new JdbcTemplate(dataSource);
+		assertEquals("last", jdbcTemplate.queryForObject("select name from widget where id = ?", String.class,
+				ids.get(0)));
+		long unsaved = ids.get(ids.size() - 1) + 1;
+		assertThrows(IllegalArgumentException.class,
+				() -> writer.write(List.of(new Widget(null, "new"), new Widget(unsaved, "gone"))));
+		assertEquals(2501, xlsxService.forEachSavedWidget(1000, (id, name) -> {
+		}));
+	}
+
+	@Test
+	public void testSaxAndJdbcPipelined() throws Exception {
+		assertUploadAndDownload(2500, 100, "sax", "jdbc", 2);
+	}
+
+	@Test
+	public void testSaxAndJpaPipelined() throws Exception {
+		assertUploadAndDownload(2500, 100, "sax", "jpa", 2);
+	}
+
+	@Test
+	public void reportCommittedBatches() throws Exception {
+		xlsxService.truncateWidgets();
+
+		// A name too long for the column, in the 13th batch
+		File file = new File("target/test-data.xlsx");
+		file.delete();
+		try (StreamingXlsxWriter writer = new StreamingXlsxWriter(new FileOutputStream(file))) {
+			for (int i = 0; i < 2500; i++) {
+				writer.startRow();
+				writer.stringCell("");
+				writer.stringCell(i == 1234 ? "x".repeat(60) : "widget " + i);
+				writer.endRow();
+			}
+		}
+		BatchImportException e = assertThrows(BatchImportException.class,
+				() -> xlsxService.saveWidgets(file.toPath(),
+						ImportOptions.of(100, "sax", "jdbc").withWriterThreads(2)));
+		assertEquals(12, e.getFailedBatch());
+		assertFalse(e.getCommittedBatches().contains(12));
+		assertEquals(e.getCommittedBatches().size() * 100, e.getCommittedRows());
+		assertEquals(e.getCommittedRows(), xlsxService.forEachSavedWidget(1000, (id, name) -> {
+		}));
+	}
+
+	@Test
+	public void resumeFromCheckpoint() throws Exception {
+		xlsxService.truncateWidgets();
+
+		File file = new File("target/test-data.xlsx");
+		writeNamedWidgets(file, 2500, 1234);
+		ImportCheckpoint start = ImportCheckpoint.start(0, 100);
+		BatchImportException e = assertThrows(BatchImportException.class,
+				() -> xlsxService.saveWidgets(file.toPath(),
+						ImportOptions.of(start, "sax", "jdbc").withWriterThreads(2)));
+		ImportCheckpoint checkpoint = start.after(e.getCommittedBatches());
+		assertTrue(checkpoint.getResumeRow() <= 1200);
+		assertEquals(0, checkpoint.getResumeRow() % 100);
+
+		// Fix the bad row and carry on, which must not save any row twice
+		writeNamedWidgets(file, 2500, -1);
+		xlsxService.saveWidgets(file.toPath(), ImportOptions.of(checkpoint, "sax", "jdbc").withWriterThreads(2));
+		Set<String> names = new HashSet<>();
+		assertEquals(2500, xlsxService.forEachSavedWidget(1000, (id, name) -> names.add(name)));
+		assertEquals(2500, names.size());
+	}
+
+	@Test
+	public void resumeAfterParseFailure() throws Exception {
+		xlsxService.truncateWidgets();
+
+		File file = new File("target/test-data.xlsx");
+		writeNamedWidgets(file, 2500, -1);
+		ImportJob job = new ImportJob("parse-failure", "test-data.xlsx", "sax", "jdbc", 2,
+				ImportCheckpoint.start(0, 100), null) {
+			@Override
+			public void rowParsed() {
+				super.rowParsed();
+				if (getRowsParsed() == 1550) {
+					throw new IllegalStateException("Cannot read row");
+				}
+			}
+		};
+		assertThrows(IllegalStateException.class,
+				() -> xlsxService.saveWidgets(file.toPath(),
+						ImportOptions.of(job.getCheckpoint(), "sax", "jdbc").withWriterThreads(2).withProgress(job)));
+		// The batches still queued were dropped, so only the checkpoint's rows are saved
+		ImportCheckpoint checkpoint = job.getCheckpoint();
+		assertTrue(checkpoint.getResumeRow() <= 1500);
+		assertEquals(checkpoint.getResumeRow() + checkpoint.getCommittedBatches().size() * 100,
+				xlsxService.forEachSavedWidget(1000, (id, name) -> {
+				}));
+
+		xlsxService.saveWidgets(file.toPath(), ImportOptions.of(checkpoint, "sax", "jdbc").withWriterThreads(2));
+		Set<String> names = new HashSet<>();
+		assertEquals(2500, xlsxService.forEachSavedWidget(1000, (id, name) -> names.add(name)));
+		assertEquals(2500, names.size());
+	}
+
+	@Test
+	public void readRowRange() throws Exception {
+		File file = new File("target/test-data.xlsx");
+		writeNamedWidgets(file, 10000, -1);
+
+		List<Integer> rowNumbers = new LinkedList<>();
+		long[] bytesRead = { 0, 0 };
+		try (OPCPackage p = OPCPackage.open(file, PackageAccess.READ)) {
+			XlsxStreamParser xlsxStreamParser = new XlsxStreamParser(p, 2);
+			xlsxStreamParser.setRowRange(100, 10);
+			xlsxStreamParser.setProgressListener((read, size) -> {
+				bytesRead[0] = read;
+				bytesRead[1] = size;
+			});
+			xlsxStreamParser.parseFirstSheetOnly(new XlsxStreamParser.RawCallback() {
+				@Override
+				public void beginRow(int rowNumber) {
+					rowNumbers.add(rowNumber);
+				}
+			});
+		}
+		assertEquals(10, rowNumbers.size());
+		assertEquals(100, (int) rowNumbers.get(0));
+		assertEquals(109, (int) rowNumbers.get(9));
+		// Reading stopped well before the end of the sheet
+		assertTrue(bytesRead[0] < bytesRead[1] / 2);
+
+		List<Widget> widgets = xlsxService.previewWidgets(file.toPath(), 9998, 5);
+		assertEquals(2, widgets.size());
+		assertEquals("widget 9998", widgets.get(0).getName());
+		assertEquals("widget 9999", widgets.get(1).getName());
+
+		try (XSSFWorkbook workbook = new XSSFWorkbook()) {
+			Sheet sheet = workbook.createSheet();
+			for (int i = 0; i < 3; i++) {
+				Row row = sheet.createRow(i);
+				row.createCell(0).setCellValue(i);
+				row.createCell(1).setCellValue("widget " + i);
+			}
+			try (OutputStream out = new FileOutputStream(file)) {
+				workbook.write(out);
+			}
+		}
+		assertEquals("A1:B3", xlsxService.readDimension(file.toPath()).formatAsString());
+	}
+
+	@Test
+	public void skipRepeatedUploads() throws Exception {
+		xlsxService.truncateWidgets();
+
+		File file = new File("target/test-data.xlsx");
+		writeNamedWidgets(file, 2500, -1);
+		double hits = meterRegistry.counter("widgets.ingest.uploads", "result", "hit").count();
+		for (int i = 0; i < 2; i++) {
+			assertEquals(2500, xlsxService.saveUpload(file.toPath(), "test-data.xlsx", "named",
+					ImportOptions.of(100, "sax", "jdbc")));
+		}
+		assertEquals(hits + 1, meterRegistry.counter("widgets.ingest.uploads", "result", "hit").count());
+		List<Long> ids = new LinkedList<>();
+		assertEquals(2500, xlsxService.forEachSavedWidget(1000, (id, name) -> ids.add(id)));
+
+		// Merge an edited download twice, where only one batch changed the second time
+		writeDownload(file, ids, -1);
+		xlsxService.saveUpload(file.toPath(), "widgets.xlsx", "download",
+				ImportOptions.of(100, "sax", "merge").withWriterThreads(2));
+		double rowsMerged = meterRegistry.counter("widgets.persist.rows", "persistenceType", "merge").count();
+		writeDownload(file, ids, 1234);
+		assertEquals(2500, xlsxService.saveUpload(file.toPath(), "widgets.xlsx", "edited",
+				ImportOptions.of(100, "sax", "merge").withWriterThreads(2)));
+		assertEquals(rowsMerged + 100,
+				meterRegistry.counter("widgets.persist.rows", "persistenceType", "merge").count());
+		Set<String> names = new HashSet<>();
+		assertEquals(2500, xlsxService.forEachSavedWidget(1000, (id, name) -> names.add(name)));
+		assertTrue(names.contains("edited 1234"));
+
+		// Once the widgets are gone the same upload is saved again
+		xlsxService.truncateWidgets();
+		writeNamedWidgets(file, 2500, -1);
+		xlsxService.saveUpload(file.toPath(), "test-data.xlsx", "named", ImportOptions.of(100, "sax", "jdbc"));
+		assertEquals(2500, xlsxService.forEachSavedWidget(1000, (id, name) -> {
+		}));
+
+		// Merging the same upload is not skipped because it was saved some other way
+		hits = meterRegistry.counter("widgets.ingest.uploads", "result", "hit").count();
+		xlsxService.saveUpload(file.toPath(), "test-data.xlsx", "named", ImportOptions.of(100, "sax", "MERGE"));
+		assertEquals(hits, meterRegistry.counter("widgets.ingest.uploads", "result", "hit").count());
+		assertEquals(5000, xlsxService.forEachSavedWidget(1000, (id, name) -> {
+		}));
+		xlsxService.saveUpload(file.toPath(), "test-data.xlsx", "named", ImportOptions.of(100, "sax", "merge"));
+		assertEquals(hits + 1, meterRegistry.counter("widgets.ingest.uploads", "result", "hit").count());
+	}
+
+	protected void writeDownload(File file, List<Long> ids, int editedRow) throws IOException {
+		file.delete();
+		try (StreamingXlsxWriter writer = new StreamingXlsxWriter(new FileOutputStream(file))) {
+			for (int i = 0; i < ids.size(); i++) {
+				writer.startRow();
+				writer.numberCell(ids.get(i));
+				writer.stringCell((i == editedRow ? "edited " : "widget ") + i);
+				writer.endRow();
+			}
+		}
+	}
+
+	protected void writeNamedWidgets(File file, int rows, int tooLongRow) throws IOException {
+		file.delete();
+		try (StreamingXlsxWriter writer = new StreamingXlsxWriter(new FileOutputStream(file))) {
+			for (int i = 0; i < rows; i++) {
+				writer.startRow();
+				writer.stringCell("");
+				writer.stringCell(i == tooLongRow ? "x".repeat(60) : "widget " + i);
+				writer.endRow();
+			}
+		}
+	}
+
+	@Test
+	public void testStreamedSaxAndJdbc() throws Exception {
+		xlsxService.truncateWidgets();
+
+		File file = new File("target/test-data.xlsx");
+		file.delete();
+		OutputStream out = new FileOutputStream(file);
+		xlsxService.writeOutTestWidgets(out, 2500);
+		out.close();
+
+		try (InputStream in = new FileInputStream(file)) {
+			int rowCount = xlsxService.saveWidgets(in, FileFormat.XLSX, ImportOptions.of(1000, "sax", "jdbc"));
+			assertEquals(2500, rowCount);
+		}
+
+		file.delete();
+		out = new FileOutputStream(file);
+		int rowCount = xlsxService.writeOutSavedWidgets(out);
+		out.close();
+		assertEquals(2500, rowCount);
+	}
+
+	@Test
+	public void testImportJob() throws Exception {
+		xlsxService.truncateWidgets();
+
+		// The job deletes the directory of the file once done
+		Path directory = Files.createTempDirectory("widget-files");
+		Path file = directory.resolve("test-data.xlsx");
+		try (OutputStream out = Files.newOutputStream(file)) {
+			xlsxService.writeOutTestWidgets(out, 2500);
+		}
+
+		ImportJob job = importJobService.submit(file, 1000, "sax", "jdbc", 0);
+		long deadline = System.currentTimeMillis() + 30000;
+		while (!job.isDone() && System.currentTimeMillis() < deadline) {
+			Thread.sleep(50);
+		}
+		assertEquals(ImportJob.Status.COMPLETED, job.getStatus(), job.getError());
+		assertEquals(2500, job.getRowsParsed());
+		assertEquals(2500, job.getRowsPersisted());
+		assertEquals(0L, job.getEtaSeconds());
+		assertSame(job, importJobService.getJob(job.getId()).orElse(null));
+		assertFalse(Files.exists(directory));
+	}
+
+	@Test
+	public void recordMetrics() throws Exception {
+		// Other tests share the registry, so only look for an increase
+		double rowsParsed = meterRegistry.counter("xlsx.parse.rows", "parseType", "sax").count();
+		double rowsExported = meterRegistry.counter("widgets.export.rows", "exportType", "sxssf").count();
+		assertUploadAndDownload(1000, "sax", "jdbc");
+		try (OutputStream out = new FileOutputStream("target/test-data.xlsx")) {
+			assertEquals(1000, xlsxService.writeOutSavedWidgets(out, "sxssf"));
+		}
+
+		assertEquals(rowsParsed + 1000, meterRegistry.get("xlsx.parse.rows").tag("parseType", "sax").counter().count());
+		assertTrue(meterRegistry.get("xlsx.parse.sheet").tag("parseType", "sax").timer().count() > 0);
+		assertTrue(meterRegistry.get("xlsx.parse.shared.strings").tag("parseType", "sax").timer().count() > 0);
+		assertTrue(meterRegistry.get("widgets.persist.batch").tag("persistenceType", "jdbc").timer().count() > 0);
+		assertTrue(meterRegistry.get("widgets.persist.batch.rows").tag("persistenceType", "jdbc").summary()
+				.max() >= 1000);
+		assertEquals(rowsExported + 1000,
+				meterRegistry.get("widgets.export.rows").tag("exportType", "sxssf").counter().count());
+		assertTrue(meterRegistry.get("widgets.export.bytes").tag("exportType", "sxssf").counter().count() > 0);
+		assertTrue(meterRegistry.get("widgets.export.flush").tag("exportType", "sxssf").timer().count() > 0);
+	}
+
+	@Test
+	public void readSavedWidgetsInPages() throws Exception {
+		assertUploadAndDownload(2500, 1000, "sax", "jdbc", 0);
+
+		// A page size that does not divide the number of rows
+		List<Long> ids = new LinkedList<>();
+		long rowCount = xlsxService.forEachSavedWidget(7, (id, name) -> ids.add(id));
+		assertEquals(2500, rowCount);
+		assertEquals(2500, ids.size());
+		assertEquals(2500, ids.stream().distinct().sorted().count());
+		assertEquals(ids, ids.stream().sorted().collect(Collectors.toList()));
+	}
+
+	@Test
+	public void exportInParallel() throws Exception {
+		assertUploadAndDownload(2500, 1000, "sax", "jdbc", 0);
+
+		// Small chunks and sheets, so the rows span several of both
+		File file = new File("target/parallel-export.xlsx");
+		try (OutputStream out = new FileOutputStream(file)) {
+			int rowCount = new ParallelWidgetExporter(xlsxService, dataSource, 3, 300, 1000, 100).export(out);
+			assertEquals(2500, rowCount);
+		}
+		assertSheets(file, 2500, 3);
+
+		// The other workbook exports split sheets at the same configured size
+		int rowsPerSheet = properties.getExport().getRowsPerSheet();
+		properties.getExport().setRowsPerSheet(1000);
+		try {
+			try (OutputStream out = new FileOutputStream(file)) {
+				assertEquals(2500, xlsxService.writeOutSavedWidgets(out));
+			}
+			assertSheets(file, 2500, 3);
+			try (OutputStream out = new FileOutputStream(file)) {
+				assertEquals(2500, xlsxService.writeOutSavedWidgetsDirectly(out));
+			}
+			assertSheets(file, 2500, 3);
+		} finally {
+			properties.getExport().setRowsPerSheet(rowsPerSheet);
+		}
+	}
+
+	@Test
+	public void testDirectExport() throws Exception {
+		xlsxService.truncateWidgets();
+
+		File file = new File("target/test-data.xlsx");
+		file.delete();
+		try (OutputStream out = new FileOutputStream(file)) {
+			xlsxService.writeOutTestWidgets(out, 2500, "direct");
+		}
+		assertEquals(2500, xlsxService.saveWidgets(file.toPath(), 1000, "sax", "jdbc"));
+
+		file.delete();
+		try (OutputStream out = new FileOutputStream(file)) {
+			assertEquals(2500, xlsxService.writeOutSavedWidgets(out, "direct"));
+		}
+		// The sheet comes before the parts that list it
+		try (InputStream in = new FileInputStream(file)) {
+			assertEquals(2500, xlsxService.saveWidgets(in, FileFormat.XLSX, ImportOptions.of(1000, "sax", "jdbc")));
+		}
+	}
+
+	@Test
+	public void abortFailedDownloads() throws Exception {
+		assertUploadAndDownload(2500, 1000, "sax", "jdbc", 0);
+
+		ByteArrayOutputStream workbook = new ByteArrayOutputStream();
+		assertThrows(IOException.class, () -> xlsxService.writeOutSavedWidgets(new StreamingXlsxWriter(workbook) {
+			@Override
+			public void endRow() throws IOException {
+				if (getRowCount() == 2000) {
+					throw new IOException("Lost the connection");
+				}
+				super.endRow();
+			}
+		}));
+		assertThrows(Exception.class,
+				() -> WorkbookFactory.create(new ByteArrayInputStream(workbook.toByteArray())).close());
+
+		// The columnar end marker is left out, so the rows written are not taken for all of them
+		ByteArrayOutputStream columnar = new ByteArrayOutputStream();
+		ColumnarRowWriter columnarWriter = new ColumnarRowWriter(columnar, 1000, ColumnarRowWriter.ColumnType.NUMBER,
+				ColumnarRowWriter.ColumnType.STRING) {
+			@Override
+			public void endRow() throws IOException {
+				if (getRowCount() == 2000) {
+					throw new IllegalStateException("Lost the database");
+				}
+				super.endRow();
+			}
+		};
+		assertThrows(IllegalStateException.class, () -> xlsxService.writeOutSavedWidgets(columnarWriter));
+		assertThrows(IOException.class, () -> xlsxService.saveWidgets(new ByteArrayInputStream(columnar.toByteArray()),
+				FileFormat.COLUMNAR, ImportOptions.of(1000, "sax", "jdbc")));
+	}
+
+	@Test
+	public void cacheDownloads() throws Exception {
+		assertUploadAndDownload(1000, "sax", "jdbc");
+
+		String eTag = xlsxService.getSavedWidgetsETag("sxssf");
+		double rendered = meterRegistry.counter("widgets.export.snapshot", "exportType", "sxssf", "result", "rendered")
+				.count();
+		byte[] first;
+		try (ExportSnapshotCache.Download download = xlsxService.openSavedWidgetsSnapshot("sxssf")) {
+			assertEquals(eTag, download.getETag());
+			assertEquals(1000, download.getRowCount());
+			first = readDownload(download);
+		}
+		try (ExportSnapshotCache.Download download = xlsxService.openSavedWidgetsSnapshot("SXSSF")) {
+			assertEquals(eTag, download.getETag());
+			assertArrayEquals(first, readDownload(download));
+			// A range past the end stops there
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			download.transferTo(10, download.getLength(), Channels.newChannel(out));
+			assertEquals(download.getLength() - 10, out.size());
+		}
+		assertEquals(rendered + 1,
+				meterRegistry.counter("widgets.export.snapshot", "exportType", "sxssf", "result", "rendered").count());
+
+		// Saving widgets makes it render the download again
+		File file = new File("target/test-data.xlsx");
+		writeNamedWidgets(file, 1000, -1);
+		assertEquals(1000, xlsxService.saveWidgets(file.toPath(), 1000, "sax", "jdbc"));
+		assertNotEquals(eTag, xlsxService.getSavedWidgetsETag("sxssf"));
+		try (ExportSnapshotCache.Download download = xlsxService.openSavedWidgetsSnapshot("sxssf")) {
+			assertEquals(2000, download.getRowCount());
+		}
+
+		// The direct export keeps sending rows as they are read
+		assertTrue(xlsxService.isSnapshotted("sxssf", FileFormat.XLSX));
+		assertFalse(xlsxService.isSnapshotted("direct", FileFormat.XLSX));
+		assertTrue(xlsxService.isSnapshotted("direct", FileFormat.CSV));
+	}
+
+	@Test
+	public void exportAndImportOtherFormats() throws Exception {
+		xlsxService.truncateWidgets();
+
+		// Names that need quoting in delimited text, and text outside ASCII
+		List<String> names = new ArrayList<>();
+		names.add("comma, \"quote\"\nand line");
+		names.add("tab\tand \u00fcn\u00efc\u00f6d\u00e9 \u20ac \ud83d\ude00");
+		for (int i = names.size(); i < 2500; i++) {
+			names.add("widget " + i);
+		}
+		File csvFile = new File("target/test-data.csv");
+		try (OutputStream out = new FileOutputStream(csvFile);
+				DelimitedRowWriter writer = new DelimitedRowWriter(out, FileFormat.CSV.getCsvFormat())) {
+			for (String name : names) {
+				writer.startRow();
+				writer.stringCell(null);
+				writer.stringCell(name);
+				writer.endRow();
+			}
+		}
+		assertEquals(2500, xlsxService.saveWidgets(csvFile.toPath(), 1000, "sax", "jdbc"));
+
+		// Each download imports again as updates of the same widgets
+		long[] csvLength = { 0 };
+		long[] columnarLength = { 0 };
+		for (FileFormat format : List.of(FileFormat.CSV, FileFormat.TSV, FileFormat.COLUMNAR)) {
+			for (boolean gzip : List.of(false, true)) {
+				File file = new File("target/test-data." + format.getExtension() + (gzip ? ".gz" : ""));
+				try (OutputStream out = new FileOutputStream(file)) {
+					assertEquals(2500, xlsxService.writeOutSavedWidgets(out, "sxssf", format, gzip));
+				}
+				List<Widget> preview = xlsxService.previewWidgets(file.toPath(), 0, 3);
+				assertEquals(names.subList(0, 3), preview.stream().map(Widget::getName).collect(Collectors.toList()));
+				assertTrue(preview.stream().noneMatch(Widget::isNew));
+				assertEquals(2500, xlsxService.saveWidgets(file.toPath(), 1000, "sax", "jdbc"));
+				try (InputStream in = new FileInputStream(file)) {
+					assertEquals(2500, xlsxService.saveWidgets(in, format, ImportOptions.of(1000, "sax", "jdbc")));
+				}
+				if (!gzip && format == FileFormat.CSV) {
+					csvLength[0] = file.length();
+				} else if (!gzip && format == FileFormat.COLUMNAR) {
+					columnarLength[0] = file.length();
+				}
+			}
+		}
+		assertTrue(columnarLength[0] < csvLength[0], columnarLength[0] + " >= " + csvLength[0]);
+		assertEquals(2500, xlsxService.forEachSavedWidget(1000, (id, name) -> {
+		}));
+		assertTrue(meterRegistry.get("widgets.export.rows").tag("exportType", "columnar-gzip").counter()
+				.count() >= 2500);
+
+		// Delimited text goes through the same callbacks as a sheet
+		byte[] csv = "Name,ID\nfirst,1\nsecond,2\n".getBytes(StandardCharsets.UTF_8);
+		List<String> ids = new ArrayList<>();
+		DelimitedStreamParser parser = new DelimitedStreamParser(new ByteArrayInputStream(csv), csv.length,
+				FileFormat.CSV.getCsvFormat(), 0, new XlsxStreamParser.Callback() {
+					@Override
+					public void cellValue(int rowNumber, int columnNumber, String formattedValue, String cellReference,
+							XSSFComment comment) {
+						ids.add(cellReference + "=" + formattedValue);
+					}
+				});
+		parser.setColumnNames("id");
+		parser.setRowRange(1, 1);
+		parser.parseFirstSheetOnly();
+		assertEquals(List.of("B2=1"), ids);
+
+		// Forged counts fail on the bytes that are missing, not on allocating what they claim
+		byte[] forgedText = { 'W', 'C', 'O', 'L', 1, 1, 1, 1, 0, 1, (byte) 0xF7, (byte) 0xFF, (byte) 0xFF,
+				(byte) 0xFF, 0x07 };
+		assertThrows(IOException.class, () -> new ColumnarStreamParser(new ByteArrayInputStream(forgedText),
+				forgedText.length, 1).parseFirstSheetOnly());
+		ByteArrayOutputStream forgedBlock = new ByteArrayOutputStream();
+		forgedBlock.write(new byte[] { 'W', 'C', 'O', 'L', 1, (byte) 0x80, 0x08 });
+		forgedBlock.write(new byte[1024]);
+		forgedBlock.write(new byte[] { (byte) 0x80, (byte) 0x80, 0x40 });
+		assertThrows(IOException.class, () -> new ColumnarStreamParser(
+				new ByteArrayInputStream(forgedBlock.toByteArray()), forgedBlock.size(), 1).parseFirstSheetOnly());
+	}
+
+	@Test
+	public void admitDomParsesWithinBudget() throws Exception {
+		File file = new File("target/test-dom.xlsx");
+		try (OutputStream out = new FileOutputStream(file)) {
+			xlsxService.writeOutTestWidgets(out, 1000);
+		}
+		DomAdmission admission = new DomAdmission(1, 64 * 1024 * 1024, 16);
+		assertTrue(admission.estimateHeap(file.toPath()) > 1000 * 16);
+		try (DomAdmission.Admission permit = admission.tryAdmit(file.toPath())) {
+			assertNotNull(permit);
+			// One parse at a time
+			assertNull(admission.tryAdmit(file.toPath()));
+		}
+		assertEquals(1, admission.getAvailableParses());
+		assertEquals(64 * 1024 * 1024, admission.getAvailableMemory());
+		// More than the whole budget
+		assertNull(new DomAdmission(1, 1024 * 1024, 1000).tryAdmit(file.toPath()));
+		// Not a workbook
+		Path text = Files.writeString(Paths.get("target/test-dom.txt"), "1,Widget");
+		assertEquals(-1, admission.estimateHeap(text));
+		assertNull(admission.tryAdmit(text));
+		Files.delete(text);
+
+		double admitted = meterRegistry.counter("xlsx.parse.dom", "result", "admitted").count();
+		xlsxService.truncateWidgets();
+		assertEquals(1000, xlsxService.saveWidgets(file.toPath(), 1000, "dom", "jdbc"));
+		assertEquals(admitted + 1, meterRegistry.counter("xlsx.parse.dom", "result", "admitted").count());
+		assertEquals(2, domAdmission.getAvailableParses());
+
+		// A sheet larger than its zip directory claims is streamed once that shows
+		Path understated = Paths.get("target/test-dom-understated.xlsx");
+		Files.copy(file.toPath(), understated, StandardCopyOption.REPLACE_EXISTING);
+		understateSize(understated, "xl/worksheets/sheet1.xml", 100);
+		try (DomAdmission.Admission permit = admission.tryAdmit(understated)) {
+			assertNotNull(permit);
+			assertNull(permit.openWorkbook(understated));
+		}
+		double streamed = meterRegistry.counter("xlsx.parse.dom", "result", "streamed").count();
+		xlsxService.truncateWidgets();
+		assertEquals(1000, xlsxService.saveWidgets(understated, 1000, "dom", "jdbc"));
+		assertEquals(streamed + 1, meterRegistry.counter("xlsx.parse.dom", "result", "streamed").count());
+		assertEquals(2, domAdmission.getAvailableParses());
+		Files.delete(understated);
+		file.delete();
+	}
+
+	@Test
+	public void guardUploadLimits() throws Exception {
+		// Inflates far more than a real upload would
+		ByteArrayOutputStream bomb = new ByteArrayOutputStream();
+		try (Writer writer = new OutputStreamWriter(new GZIPOutputStream(bomb), StandardCharsets.UTF_8)) {
+			for (int i = 0; i < 1000000; i++) {
+				writer.write("1,Widget\n");
+			}
+		}
+		double rejected = meterRegistry.counter("widgets.upload.rejected", "limit", "ratio").count();
+		UploadLimitException e = assertThrows(UploadLimitException.class, () -> xlsxService.saveWidgets(
+				new ByteArrayInputStream(bomb.toByteArray()), FileFormat.CSV, ImportOptions.of(1000, "sax", "jdbc")));
+		assertEquals("ratio", e.getLimit());
+		assertEquals(rejected + 1, meterRegistry.counter("widgets.upload.rejected", "limit", "ratio").count());
+
+		File file = new File("target/test-limits.xlsx");
+		try (OutputStream out = new FileOutputStream(file)) {
+			xlsxService.writeOutTestWidgets(out, 1000);
+		}
+		// The directory is checked before anything is inflated
+		UploadGuard guard = new UploadGuard(1024, Long.MAX_VALUE, 100, Long.MAX_VALUE, Long.MAX_VALUE, limit -> {
+		});
+		assertEquals("entry-size",
+				assertThrows(UploadLimitException.class, () -> guard.checkDirectory(file.toPath())).getLimit());
+		assertThrows(IllegalArgumentException.class,
+				() -> new UploadGuard(1024, Long.MAX_VALUE, 0, Long.MAX_VALUE, Long.MAX_VALUE, limit -> {
+				}));
+
+		WidgetProperties.Limits limits = properties.getLimits();
+		long maxRows = limits.getMaxRows();
+		limits.setMaxRows(100);
+		try {
+			assertEquals("rows", assertThrows(UploadLimitException.class,
+					() -> xlsxService.saveWidgets(file.toPath(), 1000, "sax", "jdbc")).getLimit());
+			try (InputStream in = new FileInputStream(file)) {
+				assertEquals("rows", assertThrows(UploadLimitException.class, () -> xlsxService.saveWidgets(in,
+						FileFormat.XLSX, ImportOptions.of(1000, "sax", "jdbc"))).getLimit());
+			}
+		} finally {
+			limits.setMaxRows(maxRows);
+		}
+
+		// Bodies parsed as they arrive are cut off at the upload size
+		DataSize maxUploadSize = limits.getMaxUploadSize();
+		limits.setMaxUploadSize(DataSize.ofBytes(file.length() / 2));
+		try {
+			assertEquals("upload-size", assertThrows(UploadLimitException.class,
+					() -> xlsxService.limitUpload(InputStream.nullInputStream(), file.length())).getLimit());
+			try (InputStream in = xlsxService.limitUpload(new FileInputStream(file), -1)) {
+				assertEquals("upload-size", assertThrows(UploadLimitException.class, () -> xlsxService.saveWidgets(in,
+						FileFormat.XLSX, ImportOptions.of(1000, "sax", "jdbc"))).getLimit());
+			}
+		} finally {
+			limits.setMaxUploadSize(maxUploadSize);
+		}
+		file.delete();
+
+		// A mapped package counts the shared strings as well, whatever size the directory claims
+		Path understated = Paths.get("target/test-limits-understated.xlsx");
+		try (XSSFWorkbook wb = new XSSFWorkbook(); OutputStream out = Files.newOutputStream(understated)) {
+			Sheet sheet = wb.createSheet();
+			for (int i = 0; i < 10; i++) {
+				sheet.createRow(i).createCell(1).setCellValue(i + "Widget".repeat(2000));
+			}
+			wb.write(out);
+		}
+		understateSize(understated, "xl/sharedStrings.xml", 100);
+		DataSize maxEntrySize = limits.getMaxEntrySize();
+		boolean memoryMapped = properties.getXlsx().isMemoryMapped();
+		limits.setMaxEntrySize(DataSize.ofKilobytes(10));
+		properties.getXlsx().setMemoryMapped(true);
+		try {
+			assertEquals("entry-size", assertThrows(UploadLimitException.class,
+					() -> xlsxService.saveWidgets(understated, 1000, "sax", "jdbc")).getLimit());
+		} finally {
+			properties.getXlsx().setMemoryMapped(memoryMapped);
+			limits.setMaxEntrySize(maxEntrySize);
+		}
+		Files.delete(understated);
+	}
+
+	@Test
+	public void guardSparseRows() throws Exception {
+		// One row far down the sheet is filled in with every blank row above it
+		Path sparse = Paths.get("target/test-sparse.xlsx");
+		try (XSSFWorkbook wb = new XSSFWorkbook(); OutputStream out = Files.newOutputStream(sparse)) {
+			Row row = wb.createSheet().createRow(1000000);
+			row.createCell(0).setCellValue(1);
+			row.createCell(1).setCellValue("Widget");
+			wb.write(out);
+		}
+		WidgetProperties.Limits limits = properties.getLimits();
+		long maxRows = limits.getMaxRows();
+		limits.setMaxRows(1000);
+		try {
+			assertEquals("rows", assertThrows(UploadLimitException.class,
+					() -> xlsxService.saveWidgets(sparse, 1000, "sax", "jdbc")).getLimit());
+			try (InputStream in = Files.newInputStream(sparse)) {
+				assertEquals("rows", assertThrows(UploadLimitException.class, () -> xlsxService.saveWidgets(in,
+						FileFormat.XLSX, ImportOptions.of(1000, "sax", "jdbc"))).getLimit());
+			}
+		} finally {
+			limits.setMaxRows(maxRows);
+		}
+		long maxCells = limits.getMaxCells();
+		limits.setMaxCells(1000);
+		try {
+			assertEquals("cells", assertThrows(UploadLimitException.class,
+					() -> xlsxService.saveWidgets(sparse, 1000, "sax", "jdbc")).getLimit());
+		} finally {
+			limits.setMaxCells(maxCells);
+		}
+		Files.delete(sparse);
+	}
+
+	@Test
+	public void allocateIdsInBlocks() throws Exception {
+		AtomicInteger roundTrips = new AtomicInteger();
+		BulkInsertDialect h2 = BulkInsertDialect.forDatabase("H2");
+		BulkInsertDialect counting = new BulkInsertDialect() {
+			@Override
+			public long[] nextValues(JdbcTemplate jdbcTemplate, String sequence, int count) {
+				roundTrips.incrementAndGet();
+				return h2.nextValues(jdbcTemplate, sequence, count);
+			}
+
+			@Override
+			public String createTemporaryTable(String table, String columnDefinitions) {
+				return h2.createTemporaryTable(table, columnDefinitions);
+			}
+		};
+		SequenceIdAllocator allocator = new SequenceIdAllocator(dataSource, counting, Widget.SEQUENCE,
+				Widget.ID_BLOCK_SIZE, 10);
+		Set<Long> ids = ConcurrentHashMap.newKeySet();
+		IntStream.range(0, 1000).parallel().forEach(i -> {
+			for (long id : allocator.nextIds(1000)) {
+				ids.add(id);
+			}
+		});
+		assertEquals(1000000, ids.size());
+		// Ten blocks of 10000 a round trip
+		assertEquals(10, roundTrips.get());
+
+		// JPA takes blocks from the same sequence
+		File file = new File("target/test-ids.xlsx");
+		try (OutputStream out = new FileOutputStream(file)) {
+			xlsxService.writeOutTestWidgets(out, 1000);
+		}
+		xlsxService.truncateWidgets();
+		for (String persistenceType : List.of("jpa", "jdbc", "bulk", "merge")) {
+			assertEquals(1000, xlsxService.saveWidgets(file.toPath(), 500, "sax", persistenceType));
+		}
+		JdbcTemplate jdbcTemplate = new JdbcTemplate(dataSource);
+		assertEquals(4000, jdbcTemplate.queryForObject("select count(distinct id) from widget", Long.class));
+		file.delete();
+	}
+
+	@Test
+	public void limitConnectionsAndDisk() throws Exception {
+		ResourceLimiter limiter = new ResourceLimiter(2, 2 * 1024 * 1024, Duration.ofMillis(50));
+		// Asking for more than there is waits for all of it
+		try (PermitPool.Permit connections = limiter.acquireConnections(5)) {
+			assertEquals(0, limiter.getAvailableConnections());
+			assertThrows(RejectedExecutionException.class, () -> limiter.acquireConnections(1));
+		}
+		assertEquals(2, limiter.getAvailableConnections());
+		try (PermitPool.Permit disk = limiter.acquireTempDisk(1024 * 1024 + 1)) {
+			assertEquals(0, limiter.getAvailableTempDisk());
+			assertThrows(RejectedExecutionException.class, () -> limiter.acquireTempDisk(1));
+		}
+		assertEquals(2 * 1024 * 1024, limiter.getAvailableTempDisk());
+
+		// The service gives back what an export took
+		int available = resourceLimiter.getAvailableConnections();
+		xlsxService.writeOutSavedWidgets(OutputStream.nullOutputStream(), "parallel");
+		assertEquals(available, resourceLimiter.getAvailableConnections());
+	}
+
+	protected byte[] readDownload(ExportSnapshotCache.Download download) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		download.transferTo(0, download.getLength(), Channels.newChannel(out));
+		return out.toByteArray();
+	}
+
+	public static class MappedRow {
+		@SheetColumn(0)
+		private long number;
+		@SheetColumn(1)
+		private String text;
+		@SheetColumn(2)
+		private Integer count;
+		@SheetColumn(3)
+		private Double amount;
+
+		public long getNumber() {
+			return number;
+		}
+
+		public void setNumber(long number) {
+			this.number = number;
+		}
+
+		public String getText() {
+			return text;
+		}
+
+		public void setText(String text) {
+			this.text = text;
+		}
+
+		public Integer getCount() {
+			return count;
+		}
+
+		public void setCount(Integer count) {
+			this.count = count;
+		}
+
+		public Double getAmount() {
+			return amount;
+		}
+
+		public void setAmount(Double amount) {
+			this.amount = amount;
+		}
+	}
+
+	private static void assertSheets(File file, int expectedRows, int expectedSheets) throws Exception {
+		AtomicInteger rows = new AtomicInteger();
+		AtomicInteger sheets = new AtomicInteger();
+		try (OPCPackage p = OPCPackage.open(file, PackageAccess.READ)) {
+			new XlsxStreamParser(p, 2, new XlsxStreamParser.Callback() {
+				@Override
+				public void beginSheet(String sheetName, int index) {
+					sheets.incrementAndGet();
+				}
+
+				@Override
+				public void endRow(int rowNumber) {
+					rows.incrementAndGet();
+				}
+			}).parse();
+		}
+		assertEquals(expectedRows, rows.get());
+		assertEquals(expectedSheets, sheets.get());
+	}
+
+	/**
+	 * Make the central directory claim an entry inflates to fewer bytes than it
+	 * does.
+	 */
+	private static void understateSize(Path workbook, String entryName, int size) throws IOException {
+		byte[] zip = Files.readAllBytes(workbook);
+		ByteBuffer buffer = ByteBuffer.wrap(zip).order(ByteOrder.LITTLE_ENDIAN);
+		int end = zip.length - 22;
+		while (buffer.getInt(end) != 0x06054b50) {
+			end--;
+		}
+		int entry = buffer.getInt(end + 16);
+		for (int i = 0; i < buffer.getShort(end + 10); i++) {
+			int nameLength = buffer.getShort(entry + 28);
+			if (entryName.equals(new String(zip, entry + 46, nameLength, StandardCharsets.UTF_8))) {
+				buffer.putInt(entry + 24, size);
+			}
+			entry += 46 + nameLength + buffer.getShort(entry + 30) + buffer.getShort(entry + 32);
+		}
+		Files.write(workbook, zip);
+	}
+
 	private void assertUploadAndDownload(int batchSize, String parseType, String persistenceType) throws Exception {
+		assertUploadAndDownload(batchSize, batchSize, parseType, persistenceType, 0);
+	}
+
+	private void assertUploadAndDownload(int rows, int batchSize, String parseType, String persistenceType,
+			int writerThreads) throws Exception {
 
 		xlsxService.truncateWidgets();
 
 		File file = new File("target/test-data.xlsx");
 		file.delete();
 		OutputStream out = new FileOutputStream(file);
-		xlsxService.writeOutTestWidgets(out, batchSize);
+		xlsxService.writeOutTestWidgets(out, rows);
 		out.close();
 
-		int rowCount = xlsxService.saveWidgets(file.toPath(), batchSize, parseType, persistenceType);
-		assertEquals(batchSize, rowCount);
+		int rowCount = xlsxService.saveWidgets(file.toPath(),
+				ImportOptions.of(batchSize, parseType, persistenceType).withWriterThreads(writerThreads));
+		assertEquals(rows, rowCount);
 
 		file.delete();
 		out = new FileOutputStream(file);
 		rowCount = xlsxService.writeOutSavedWidgets(out);
 		out.close();
-		assertEquals(batchSize, rowCount);
+		assertEquals(rows, rowCount);
 	}
 }